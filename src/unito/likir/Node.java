@@ -9,8 +9,8 @@ import java.util.LinkedList;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -27,13 +27,16 @@ import unito.likir.io.FileManager;
 import unito.likir.io.FindNodeManager;
 import unito.likir.io.FindValueManager;
 import unito.likir.io.GetManager;
+import unito.likir.io.InstrumentedExecutor;
 import unito.likir.io.PutManager;
 import unito.likir.io.LookupManager;
 import unito.likir.io.MessageDispatcher;
 import unito.likir.io.NodeInitializator;
 import unito.likir.io.ObservableFuture;
 import unito.likir.io.PingManager;
+import unito.likir.io.ThreadMode;
 import unito.likir.io.StoreManager;
+import unito.likir.io.TimerWheel;
 import unito.likir.io.UnsignedGetManager;
 import unito.likir.messages.dht.RPCMessage;
 import unito.likir.messages.dht.RPCMessageFactory;
@@ -51,6 +54,8 @@ import unito.likir.storage.EntryFactory;
 import unito.likir.storage.Storage;
 import unito.likir.storage.StorageCleaner;
 import unito.likir.storage.StorageEntry;
+import unito.likir.storage.ConcurrentStorage;
+import unito.likir.storage.LogStorage;
 import unito.likir.storage.StorageImpl;
 
 /**
@@ -82,8 +87,12 @@ public class Node implements Serializable
 
     //inner managers
     private transient NodeInitializator initializator;
-    private transient ExecutorService executor;
+    private transient InstrumentedExecutor executor; //client work: managers started by the local user
+    private transient InstrumentedExecutor serverExecutor; //server sessions opened by other nodes
+    private transient InstrumentedExecutor dispatchExecutor; //decoding and dispatching of the received datagrams
     private transient ScheduledExecutorService innerExecutor;
+    private transient TimerWheel timerWheel; //expires the sessions which are not completed in time
+    private transient Thread dispatcherThread;
     private transient StorageCleaner storageCleaner;
     private transient RouteTableRefresher routeTableRefresher;
     private NodeSecurityAgent securityAgent;
@@ -97,7 +106,7 @@ public class Node implements Serializable
     //Settings parameters
     private final String NODE_PERSISTENCE_PATH;
     private final String CS_KEY_PATH;
-    private final int MAX_CONTENT_SIZE = 64000;
+    private final int MAX_CONTENT_SIZE = Integer.parseInt(PropFinder.get(Settings.MAX_CONTENT_SIZE));
 
     //------------ Constructor and initialization -------------
     /**
@@ -134,6 +143,7 @@ public class Node implements Serializable
         }
         this.userId = userId.toLowerCase();
         this.startTime = 0;
+        createExecutors(); //the message dispatcher uses the timer wheel
 
         localAddress = null;
         int i = 0;
@@ -158,10 +168,8 @@ public class Node implements Serializable
             }
         } //TODO: gestisci il caso in cui non si riesca proprio ad ottenere un indirizzo
 
-        this.storage = new StorageImpl();
+        this.storage = createStorage();
         this.initializator = new NodeInitializator(this);
-        this.executor = Executors.newCachedThreadPool();
-        this.innerExecutor = Executors.newScheduledThreadPool(2);
         this.securityAgent = new NodeSecurityAgent(this);
         this.messageFactory = new RPCMessageFactoryImpl(this);
         this.storageCleaner = new StorageCleaner(this);
@@ -186,10 +194,8 @@ public class Node implements Serializable
 
         this.startTime = 0;
 
-        this.storage = new StorageImpl();
         this.initializator = new NodeInitializator(this);
-        this.executor = Executors.newCachedThreadPool();
-        this.innerExecutor = Executors.newScheduledThreadPool(2);
+        createExecutors();
         this.securityAgent = new NodeSecurityAgent(this);
         this.messageFactory = new RPCMessageFactoryImpl(this);
         this.storageCleaner = new StorageCleaner(this);
@@ -218,8 +224,9 @@ public class Node implements Serializable
                 //this.securityAgent = n.getSecurityAgent();
 
                 this.routeTable = new RouteTableImpl(this);
-                this.storage = new StorageImpl();
-                this.storage = n.getStorage();
+                this.storage = createStorage();
+                if (!(storage instanceof LogStorage)) //a log storage recovers its entries from its own log
+                    this.storage = n.getStorage();
                 this.routeTable.fill(n.getRouteTable().getAllBucketContacts());
                 port = n.getAddress().getPort();
             }
@@ -274,10 +281,9 @@ public class Node implements Serializable
         this.startTime = 0;
 
         this.userId = userId;
-        this.storage = new StorageImpl();
+        this.storage = createStorage();
         this.initializator = new NodeInitializator(this);
-        this.executor = Executors.newCachedThreadPool();
-        this.innerExecutor = Executors.newScheduledThreadPool(2);
+        createExecutors();
         this.securityAgent = new NodeSecurityAgent(this);
         this.messageFactory = new RPCMessageFactoryImpl(this);
         this.storageCleaner = new StorageCleaner(this);
@@ -286,7 +292,6 @@ public class Node implements Serializable
         this.fileManager = new FileManager();
         this.blacklist = Collections.synchronizedSet(new TreeSet<String>());
         this.routeTable = new RouteTableImpl(this);
-        this.storage = new StorageImpl();
 
         localAddress = null;
         try
@@ -320,7 +325,8 @@ public class Node implements Serializable
                 Node n = (Node) ois.readObject();
                 if (n.getStorage() != null && n.getRouteTable() != null)
                 {
-                    this.storage = n.getStorage();
+                    if (!(storage instanceof LogStorage)) //a log storage recovers its entries from its own log
+                        this.storage = n.getStorage();
                     this.routeTable.fill(n.getRouteTable().getAllBucketContacts());
                     port = n.getAddress().getPort();
                 }
@@ -383,7 +389,7 @@ public class Node implements Serializable
     {
         System.out.println(userId + ": Startup Begin...");
         startTime = System.currentTimeMillis();
-        executor.execute(messageDispatcher);
+        startDispatcher();
         messageFactory.setStartTime(startTime);
         if (securityAgent.getAuthNodeId() == null)
         {
@@ -400,7 +406,7 @@ public class Node implements Serializable
             this.routeTable = new RouteTableImpl(this);
         }
 
-        //storageCleaner.start();
+        storageCleaner.start();
         //routeTableRefresher.start();
         System.out.println(userId + ": Startup End...");
     }
@@ -416,7 +422,7 @@ public class Node implements Serializable
     {
         System.out.println(userId + ": Startup Begin...");
         startTime = System.currentTimeMillis();
-        executor.execute(messageDispatcher);
+        startDispatcher();
         messageFactory.setStartTime(startTime);
 
         if (routeTable.size() < 3)
@@ -548,11 +554,54 @@ public class Node implements Serializable
      *
      * @return the thread executor
      */
-    public ExecutorService getExecutor()
+    public InstrumentedExecutor getExecutor()
     {
         return executor;
     }
 
+    /**
+     * Returns the object which manages the execution of the server sessions
+     * opened by other nodes
+     *
+     * @return the thread executor
+     */
+    public InstrumentedExecutor getServerExecutor()
+    {
+        return serverExecutor;
+    }
+
+    /**
+     * Returns the object which decodes and dispatches the received messages
+     *
+     * @return the thread executor
+     */
+    public InstrumentedExecutor getDispatchExecutor()
+    {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Returns the load of the thread pools of this Node (threads, queue depth,
+     * rejected and shed tasks), useful to size the pools
+     *
+     * @return a description of the executors state
+     */
+    public String getExecutorStatus()
+    {
+        return dispatchExecutor + "\n" + serverExecutor + "\n" + executor + "\n" + messageDispatcher.getTransport() + "\n" + timerWheel;
+    }
+
+    /**
+     * Returns the timer which expires the client and server sessions of this
+     * Node
+     *
+     * @return the timer wheel
+     */
+    public TimerWheel getTimerWheel()
+    {
+        return timerWheel;
+    }
+
     /**
      * Returns the object which manages the periodical execution of inner
      * managers
@@ -876,7 +925,7 @@ public class Node implements Serializable
      * @param key the lookup key
      * @returns a Future Collection of the found Contacts
      */
-    public synchronized ObservableFuture<Collection<Contact>> lookup(NodeId key)
+    public ObservableFuture<Collection<Contact>> lookup(NodeId key)
     {
         ObservableFuture<Collection<Contact>> task = new LookupManager(this, key);
         executor.execute(task);
@@ -901,7 +950,7 @@ public class Node implements Serializable
      * @param recent index-side filtering parameter
      * @return a Future Collection of the found entries
      */
-    public synchronized ObservableFuture<Collection<StorageEntry>> get(NodeId key, String type, String owner, boolean recent, int contentNumber)
+    public ObservableFuture<Collection<StorageEntry>> get(NodeId key, String type, String owner, boolean recent, int contentNumber)
     {
         if (owner != null)
         {
@@ -933,7 +982,7 @@ public class Node implements Serializable
      * there is an problem in calculating the Kademlia ID from the provided
      * keyWord
      */
-    public synchronized ObservableFuture<Collection<StorageEntry>> get(String keyWord, String type, String owner, boolean recent, int contentNumber) throws IOException
+    public ObservableFuture<Collection<StorageEntry>> get(String keyWord, String type, String owner, boolean recent, int contentNumber) throws IOException
     {
         NodeId key = fileManager.hash(keyWord);
         if (owner != null)
@@ -967,7 +1016,7 @@ public class Node implements Serializable
      * there is an problem in calculating the Kademlia ID from the provided
      * keyWord
      */
-    public synchronized ObservableFuture<LinkedList<HashMap<String, Integer>>> getCounters(String keyWord, String type, String owner, boolean recent, int contentNumber) throws IOException
+    public ObservableFuture<LinkedList<HashMap<String, Integer>>> getCounters(String keyWord, String type, String owner, boolean recent, int contentNumber) throws IOException
     {
         NodeId key = fileManager.hash(keyWord);
         if (owner != null)
@@ -994,9 +1043,9 @@ public class Node implements Serializable
      * @param ttl the time to live of the content (milliseconds)
      * @return the future result
      * @throws IllegalArgumentException if the content size exceeds the maximum
-     * size allowed (64000 Bytes)
+     * size allowed (maxContentSize setting)
      */
-    public synchronized ObservableFuture<Integer> put(NodeId key, byte[] content, String type, long ttl)
+    public ObservableFuture<Integer> put(NodeId key, byte[] content, String type, long ttl)
     {
         if (content.length > MAX_CONTENT_SIZE)
         {
@@ -1026,9 +1075,9 @@ public class Node implements Serializable
      * @throws IOException if there is an problem in calculating the Kademlia ID
      * from the provided keyWord
      * @throws IllegalArgumentException if the content size exceeds the maximum
-     * size allowed (64000 Bytes)
+     * size allowed (maxContentSize setting)
      */
-    public synchronized ObservableFuture<Integer> put(String keyWord, byte[] content, String type, long ttl) throws IOException
+    public ObservableFuture<Integer> put(String keyWord, byte[] content, String type, long ttl) throws IOException
     {
         if (content.length > MAX_CONTENT_SIZE)
         {
@@ -1054,9 +1103,9 @@ public class Node implements Serializable
      * @throws IOException if there is an problem in calculating the Kademlia ID
      * from the provided keyWord
      * @throws IllegalArgumentException if the content size exceeds the maximum
-     * size allowed (64000 Bytes)
+     * size allowed (maxContentSize setting)
      */
-    public synchronized ObservableFuture<Integer> put(String keyWord, byte[][] contents, String[] types, long[] ttls) throws IOException
+    public ObservableFuture<Integer> put(String keyWord, byte[][] contents, String[] types, long[] ttls) throws IOException
     {
         int totalLength = 0;
         for (byte[] content : contents)
@@ -1091,9 +1140,9 @@ public class Node implements Serializable
      * @throws IOException if there is an problem in calculating the Kademlia ID
      * from the provided file
      * @throws IllegalArgumentException if the file size exceeds the maximum
-     * size allowed (64000 Bytes)
+     * size allowed (maxContentSize setting)
      */
-    public synchronized ObservableFuture<Integer> put(File file, String type, long ttl) throws IOException
+    public ObservableFuture<Integer> put(File file, String type, long ttl) throws IOException
     {
         if (file.length() > MAX_CONTENT_SIZE)
         {
@@ -1124,9 +1173,9 @@ public class Node implements Serializable
      * @throws IOException if there is an problem in calculating the Kademlia ID
      * from the provided keyWord
      * @throws IllegalArgumentException if the content size exceeds the maximum
-     * size allowed (64000 Bytes)
+     * size allowed (maxContentSize setting)
      */
-    public synchronized ObservableFuture<Integer> unsignedPut(String keyWord, byte[][] contents, String[] types, long[] ttls) throws IOException
+    public ObservableFuture<Integer> unsignedPut(String keyWord, byte[][] contents, String[] types, long[] ttls) throws IOException
     {
         int totalLength = 0;
         for (byte[] content : contents)
@@ -1173,10 +1222,96 @@ public class Node implements Serializable
         }
         messageDispatcher.close();
         executor.shutdownNow();
+        serverExecutor.shutdownNow();
+        dispatchExecutor.shutdownNow();
         innerExecutor.shutdownNow();
+        timerWheel.stop();
+        if (storage instanceof LogStorage)
+        {
+            try
+            {
+                ((LogStorage) storage).close();
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Can't close the storage log");
+            }
+        }
         alive = false;
     }
 
+    /*
+     * Creates the storage named by the storageEngine setting: concurrent (default),
+     * synchronized or log. The log storage of a node is kept in the directory named
+     * by its userId
+     */
+    private Storage createStorage()
+    {
+        String engine = PropFinder.get(Settings.STORAGE_ENGINE);
+        if (engine == null || engine.trim().equalsIgnoreCase("concurrent"))
+            return new ConcurrentStorage();
+        if (engine.trim().equalsIgnoreCase("synchronized"))
+            return new StorageImpl();
+        if (engine.trim().equalsIgnoreCase("log"))
+        {
+            File directory = new File(PropFinder.get(Settings.LOG_STORAGE_PATH), userId);
+            try
+            {
+                return new LogStorage(directory);
+            }
+            catch (IOException ioe)
+            {
+                throw new IllegalStateException("Can't open the storage log " + directory, ioe);
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage engine: " + engine);
+    }
+
+    /*
+     * Creates the bounded thread pools of this Node. Datagrams which can't be
+     * dispatched are dropped, as are new server sessions when the server pool is
+     * saturated, while the client work exceeding its pool runs in the caller thread.
+     * In virtual thread mode the client and server managers run on virtual threads
+     */
+    private void createExecutors()
+    {
+        ThreadMode mode = ThreadMode.parse(PropFinder.get(Settings.THREAD_MODE)).effective();
+        int serverThreads = Integer.parseInt(PropFinder.get(Settings.SERVER_THREADS));
+        int clientThreads = Integer.parseInt(PropFinder.get(Settings.CLIENT_THREADS));
+        if (mode == ThreadMode.VIRTUAL)
+        {
+            serverThreads = Integer.parseInt(PropFinder.get(Settings.VIRTUAL_THREADS));
+            clientThreads = serverThreads;
+        }
+        this.dispatchExecutor = new InstrumentedExecutor("likir-dispatch",
+                Integer.parseInt(PropFinder.get(Settings.DISPATCH_THREADS)),
+                Integer.parseInt(PropFinder.get(Settings.DISPATCH_QUEUE_SIZE)),
+                Integer.parseInt(PropFinder.get(Settings.DISPATCH_QUEUE_SIZE)),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.serverExecutor = new InstrumentedExecutor("likir-server", mode, serverThreads,
+                Integer.parseInt(PropFinder.get(Settings.SERVER_QUEUE_SIZE)),
+                Integer.parseInt(PropFinder.get(Settings.SERVER_SHED_THRESHOLD)),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor = new InstrumentedExecutor("likir-client", mode, clientThreads,
+                Integer.parseInt(PropFinder.get(Settings.CLIENT_QUEUE_SIZE)),
+                Integer.parseInt(PropFinder.get(Settings.CLIENT_QUEUE_SIZE)),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.innerExecutor = Executors.newScheduledThreadPool(2);
+        this.timerWheel = new TimerWheel("likir-timer",
+                Long.parseLong(PropFinder.get(Settings.TIMER_TICK)), Settings.DEFAULT_TIME_UNIT,
+                Integer.parseInt(PropFinder.get(Settings.TIMER_WHEEL_SIZE)));
+    }
+
+    /*
+     * The message dispatcher blocks on the channel for the whole life of the node,
+     * so it has a thread of its own instead of a thread of the pools
+     */
+    private void startDispatcher()
+    {
+        dispatcherThread = new Thread(messageDispatcher, userId + "-receiver");
+        dispatcherThread.start();
+    }
+
     private void saveState() throws IOException
     {
         String path = NODE_PERSISTENCE_PATH;
@@ -19,6 +19,7 @@ import unito.likir.security.AuthNodeId;
 import unito.likir.security.AuthNodeIdContent;
 import unito.likir.security.BootstrapList;
 import unito.likir.security.BootstrapListContent;
+import unito.likir.security.CryptoSuites;
 import unito.likir.settings.PropFinder;
 import unito.likir.settings.Settings;
 
@@ -132,6 +133,10 @@ public class CAInst implements Runnable
 				response = ca.getMessageFactory().createErrorMessage(ca.getUserId(), msg.getMessageId(), "Error. Key mismatch");
 			}
 		}
+		else if (CryptoSuites.forKey(msg.getPublicKey()) == null)
+		{
+			response = ca.getMessageFactory().createErrorMessage(ca.getUserId(), msg.getMessageId(), "Error. Unsupported key algorithm");
+		}
 		else
 		{
 			try
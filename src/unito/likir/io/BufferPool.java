@@ -0,0 +1,105 @@
+package unito.likir.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers used to receive UDP datagrams.
+ * A buffer obtained with acquire() must be given back with release() as soon as
+ * the datagram it contains has been decoded. If the pool is empty a new buffer is
+ * allocated; buffers released when the pool is already full are left to the GC.
+ */
+public class BufferPool
+{
+	private final Queue<ByteBuffer> buffers;
+	private final AtomicInteger pooled; //number of buffers currently kept by the pool
+	private final AtomicLong allocated; //number of buffers allocated since creation
+	private final int bufferSize;
+	private final int capacity;
+
+	/**
+	 * Create a new BufferPool
+	 * @param bufferSize the size (in bytes) of every buffer
+	 * @param capacity the maximum number of idle buffers kept by the pool
+	 */
+	public BufferPool(int bufferSize, int capacity)
+	{
+		if (bufferSize <= 0 || capacity < 0)
+			throw new IllegalArgumentException("Invalid pool parameters");
+		this.buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.pooled = new AtomicInteger(0);
+		this.allocated = new AtomicLong(0);
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Return a cleared buffer, taken from the pool if available
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buffer = buffers.poll();
+		if (buffer != null)
+		{
+			pooled.decrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+		allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Give back a buffer previously obtained by acquire()
+	 * @param buffer the buffer
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect())
+			return;
+		if (pooled.incrementAndGet() <= capacity)
+		{
+			buffers.offer(buffer);
+		}
+		else
+		{
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the size of the buffers of this pool
+	 * @return the buffer size (in bytes)
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * Returns the number of idle buffers kept by the pool
+	 * @return the idle buffers
+	 */
+	public int getPooledCount()
+	{
+		return pooled.get();
+	}
+
+	/**
+	 * Returns the number of buffers allocated by this pool since its creation
+	 * @return the allocated buffers
+	 */
+	public long getAllocatedCount()
+	{
+		return allocated.get();
+	}
+
+	public String toString()
+	{
+		return "BufferPool - size=" + bufferSize + ", pooled=" + pooled.get() + "/" + capacity + ", allocated=" + allocated.get();
+	}
+}
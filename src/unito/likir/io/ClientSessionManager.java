@@ -1,9 +1,6 @@
 package unito.likir.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.SocketAddress;
 import java.net.SocketException;
@@ -12,6 +9,7 @@ import unito.likir.Node;
 import unito.likir.NodeId;
 import unito.likir.exceptions.TaskException;
 import unito.likir.messages.dht.DHTMessage;
+import unito.likir.messages.dht.MessageCodec;
 import unito.likir.messages.dht.Nonce;
 import unito.likir.messages.dht.RPCMessage;
 import unito.likir.routing.Contact;
@@ -28,6 +26,12 @@ import unito.likir.settings.Settings;
  */
 public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessage> implements SessionManager
 {
+	/**
+	 * The max number of timeouts a session lasts: the wait for a thread of the pool,
+	 * the nonce exchange and the RPC. The managers waiting for a session don't wait longer
+	 */
+	public static final int TIME_OUT_STEPS = 3;
+	
 	private static MTRandom rand = new MTRandom();
 	protected Node node;
 	protected MessageDispatcher messageDispatcher;
@@ -42,6 +46,23 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 	protected SocketAddress addresseeSocket;
 	protected NodeId addresseeId;
 	
+	private State state; //the state of this session
+	private TimerWheel.Timeout timeout; //expires the session if the current step is not completed in time
+	private byte[] cookie; //the cookie used instead of the nonce exchange, if any
+	
+	/**
+	 * The states of a client session. A session sends a nonce request, then sends the RPC
+	 * as soon as the nonce response arrives and completes when the RPC response arrives.
+	 * In stateless RPC mode a session holding a cookie of the addressee starts in RPC_SENT
+	 */
+	public static enum State
+	{
+		CREATED,
+		NONCE_SENT,
+		RPC_SENT,
+		DONE
+	}
+	
 	public ClientSessionManager(Node node, Contact addressee)
 	{
 		this.node = node;
@@ -50,6 +71,11 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 		this.addresseeId = addressee.getNodeId();
 		this.sid = rand.nextLong(); //random session ID
 		this.TIME_OUT = Integer.parseInt(PropFinder.get(Settings.TIME_OUT));
+		this.state = State.CREATED;
+		synchronized(this)
+		{
+			scheduleTimeout(); //a session waiting for a thread of the pool expires too
+		}
 	}
 	
 	public ClientSessionManager(Node node, NodeId addresseeId)
@@ -60,6 +86,11 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 		this.addresseeId = addresseeId;
 		this.sid = rand.nextLong(); //random session ID
 		this.TIME_OUT = Integer.parseInt(PropFinder.get(Settings.TIME_OUT));
+		this.state = State.CREATED;
+		synchronized(this)
+		{
+			scheduleTimeout(); //a session waiting for a thread of the pool expires too
+		}
 	}
 	
 	/**
@@ -119,14 +150,31 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 			//System.out.println(node.getUserId() + " -  ClientManager : Handling Nonce response");
 			synchronized(this)
 			{
+				if (state == State.RPC_SENT && cookie != null)
+				{
+					//the addressee refused the cookie and started a new session
+					messageDispatcher.getCookieCache().invalidate(addresseeId, cookie);
+					cookie = null;
+				}
+				else if (state != State.NONCE_SENT)
+					return; //duplicate or late nonce
 				receivedNonce = (Nonce)received; //set the received Nonce
-				this.notifyAll(); //wakeup
+				state = State.RPC_SENT;
+				cancelTimeout();
 			}
-			//System.out.println(node.getUserId() + " -  ClientManager : HandlED Nonce response " + sid);
+			if (receivedNonce.isCookie() && messageDispatcher.isStatelessRpc())
+				messageDispatcher.getCookieCache().put(addresseeId, receivedNonce.getNonce());
+			//the session goes on in the thread which delivered the nonce
+			sendRPC();
 		}
-		else if (opcode.isRPCMessageResponse() && receivedNonce != null) //message has a valid opcode
+		else if (opcode.isRPCMessageResponse()) //message has a valid opcode
 		{
 			RPCMessage receivedMessage = (RPCMessage) received;
+			synchronized(this)
+			{
+				if (state != State.RPC_SENT)
+					return; //unexpected, duplicate or late response
+			}
 			//System.out.println(node.getUserId() + " -  ClientManager : Handling RPC response");
 			//sender is not blacklisted
 			if(!node.getBlacklist().contains(receivedMessage.getAuthNodeId().getContent().getUser()))
@@ -136,12 +184,20 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 				{
 					synchronized(this)
 					{
+						if (state != State.RPC_SENT)
+							return; //the session expired during the check
 						receivedRPC = receivedMessage; //set the received RPC
-						this.notifyAll(); //wakeup
+						state = State.DONE;
+						cancelTimeout();
 					}
+					//the response outlives the receive buffer it was decoded from
+					MessageCodec.detach(receivedRPC);
+					messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
 					//System.out.println(node.getUserId() + " -  ClientManager : HandlED RPC response " + sid);
 					//refresh the route table entries
 					refreshRouteTable(receivedRPC);
+					//sets the result of the ObservableFuture
+					set(receivedRPC);
 				}
 				else
 				{
@@ -160,15 +216,42 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 		}
 	}
 	
+	/**
+	 * Starts the session: sends the nonce request and returns without waiting.
+	 * The session is carried on by handle() as the responses arrive, while the
+	 * shared timer of the node expires it if the addressee doesn't answer in time.
+	 * If a cookie of the addressee is known, the RPC is sent right away instead.
+	 * A session which expired while waiting for a thread of the pool is not started
+	 */
 	public void run() throws TaskException
 	{
-		findAddresseeSocket();
-		sendNonce();
-		if (receiveNonce())
+		synchronized(this)
 		{
-			sendRPC();
-			receiveRPC();
+			if (state != State.CREATED)
+				return;
 		}
+		findAddresseeSocket();
+		byte[] cached = null;
+		if (messageDispatcher.isStatelessRpc())
+			cached = messageDispatcher.getCookieCache().get(addresseeId);
+		if (cached != null)
+			sendCookieRPC(cached);
+		else
+			sendNonce();
+	}
+	
+	public SocketAddress getPeerAddress()
+	{
+		return addresseeSocket;
+	}
+	
+	/**
+	 * Returns the current state of this session
+	 * @return the session state
+	 */
+	public synchronized State getState()
+	{
+		return state;
 	}
 	
 	//Retrieves the addressee IP from the route table
@@ -188,7 +271,7 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 			else
 			{
 				TaskException e = new TaskException("ClientManager : The node "+addresseeId+" is unknown by the route table");
-				notifyFailure(e);
+				abort(e);
 				throw e;
 			}
 		}
@@ -205,179 +288,178 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 		//Builds the UDP packet
 		try
 		{
-			payload = serialize(sentNonce);
+			payload = MessageCodec.encode(sentNonce);
 			//System.out.println("ClientManager : PAYLOAD LENGTH = " + payload.length);
 			packet = new DatagramPacket(payload,payload.length,addresseeSocket);
 		}
 		catch (SocketException se)
 		{
 			TaskException e = new TaskException("ClientManager : Error in UDP packet construction");
-			notifyFailure(e);
+			abort(e);
 			throw e;
 		}
 		catch (IOException ioe)
 		{
 			ioe.printStackTrace();
 			TaskException e = new TaskException("ClientManager : Error in Nonce serialization");
-			notifyFailure(e);
+			abort(e);
 			throw e;
 		}
 		
 		//Sends the Nonce
+		synchronized(this)
+		{
+			if (state != State.CREATED)
+				return; //the session expired meanwhile
+			state = State.NONCE_SENT;
+			scheduleTimeout();
+		}
 		messageDispatcher.addSessionHandler(sid,this);
 		try
 		{ 
-			//System.out.println(node + " - SEND NONCE: \n"+ sentNonce);
-			//System.out.println("----------------------------------------------");
 			//System.out.println(node.getUserId() + " sending Nonce request : sid " + sid + " - to: " + packet.getAddress() +","+ packet.getPort());
-			//Logger.log(node.getUserId() + " sending Nonce request : sid " + sid + " - to: " + packet.getAddress() +","+ packet.getPort());
-			
 			messageDispatcher.send(packet);
 		}
 		catch (IOException ioe)
 		{
 			TaskException e = new TaskException("ClientManager : Error in sending UDP packet");
-			notifyFailure(e);
-			messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
+			abort(e);
 			throw e;
 		}
 	}
 	
-	private boolean receiveNonce()
+	/*
+	 * Sends the RPC using a cookie of the addressee as its nonce. The local nonce travels
+	 * with the RPC, and the addressee signs its response with it
+	 */
+	private void sendCookieRPC(byte[] cached)
 	{
-		try
-		{
-			synchronized(this)
-			{
-				if (receivedNonce == null)
-				{
-					//System.out.println(node.getUserId() + " - ClientManager :  waiting for NONCE in session " + sid);
-					this.wait(TIME_OUT);
-				}
-			}
-			if (receivedNonce == null)
-			{
-				////System.err.println(node.getUserId() + " - ClientManager : incoming nonce time out! to " + addresseeSocket);
-				
-				messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-				node.getRouteTable().handleFailure(addressee.getNodeId());
-				notifyFailure(new TaskException("Time out!"));
-				return false;
-			}
-			else
-			{
-				//System.out.println(node.getUserId() + " -  ClientManager : Received nonce in session " + sid);
-				return true;
-			}
-		}
-		catch(InterruptedException ie)
+		sentNonce = new Nonce(node.getNodeId(),sid,true);
+		receivedNonce = new Nonce(addresseeId,cached,sid,false);
+		receivedNonce.setCookie(true);
+		synchronized(this)
 		{
-			////ie.printStackTrace();
-			messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-			return false;
+			if (state != State.CREATED)
+				return; //the session expired meanwhile
+			cookie = cached;
+			state = State.RPC_SENT;
 		}
+		messageDispatcher.addSessionHandler(sid,this);
+		sendRPC();
 	}
 	
 	private void sendRPC()
 	{
 		//builds the RPC
 		RPCMessage msg = buildMessage(addresseeId, sid, receivedNonce.getNonce());
+		synchronized(this)
+		{
+			if (cookie != null)
+				msg.setClientNonce(sentNonce.getNonce());
+		}
 		
 		//Builds the UDP packet
 		byte[] payload = null; //payload of UDP packet
 		DatagramPacket packet = null; //UDP packet
 		try
 		{
-			payload = serialize(msg);
+			payload = MessageCodec.encode(msg);
 			packet = new DatagramPacket(payload,payload.length,addresseeSocket);
 		}
 		catch (SocketException se)
 		{
-			TaskException e = new TaskException("ClientManager : Error in UDP packet constuction");
-			notifyFailure(e);
-			messageDispatcher.removeSessionHandler(sid);
-			throw e;
+			abort(new TaskException("ClientManager : Error in UDP packet constuction"));
+			return;
 		}
 		catch (IOException ioe)
 		{
 			ioe.printStackTrace();
-			TaskException e = new TaskException("ClientManager : Error in RPC serialization");
-			notifyFailure(e);
-			messageDispatcher.removeSessionHandler(sid);
-			throw e;
+			abort(new TaskException("ClientManager : Error in RPC serialization"));
+			return;
 		}
 		
 		//Sends the RPC
+		sentRPC = msg;
+		synchronized(this)
+		{
+			if (state != State.RPC_SENT)
+				return; //the session has been closed meanwhile
+			scheduleTimeout();
+		}
 		try
 		{
-			//System.out.println(node + " - SEND REQUEST: \n"+ msg);
-			//System.out.println("----------------------------------------------");
-			sentRPC = msg;
 			//System.out.println(node.getUserId() + " sending RPC request : sid " + sid + " - to: " + packet.getAddress() +","+ packet.getPort());
-			
 			messageDispatcher.send(packet);
 		}
 		catch (IOException ioe)
 		{
-			TaskException e = new TaskException( node.getUserId() + " - ClientManager : Error in sending UDP packet to " + msg.getAuthenticator().getContent().getId() + ", " + packet.getPort());
-			notifyFailure(e);
-			messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-			throw e;
+			abort(new TaskException( node.getUserId() + " - ClientManager : Error in sending UDP packet to " + msg.getAuthenticator().getContent().getId() + ", " + packet.getPort()));
 		}
 	}
 	
-	private void receiveRPC()
+	/*
+	 * Called by the timer wheel of the node when the addressee didn't answer in time.
+	 * Runs in the thread of the wheel, so it must not block
+	 */
+	private void expire()
 	{
-		try
+		State expired;
+		synchronized(this)
 		{
-			synchronized(this)
-			{
-				if (receivedRPC == null)
-				{
-					//System.out.println(node.getUserId() + " - ClientManager :  waiting for RPC in session " + sid);
-					this.wait(TIME_OUT);
-				}
-			}
-			if (receivedRPC == null)
-			{
-				String errorMsg = "";
-				errorMsg += node.getUserId() + " - ClientManager : incoming RPC time out! to " + sentRPC.getAuthenticator().getContent().getId() + ", " + addresseeSocket +"\n";
-				errorMsg += node.getUserId() + " -     Addressee : " + addresseeSocket + "\n";
-				errorMsg += node.getUserId() + " -     " + sentRPC;
-				////System.err.println(errorMsg);
-				
-				messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-				node.getRouteTable().handleFailure(addressee.getNodeId());
-				notifyFailure(new TaskException("Time out!"));
-			}
-			else
-			{
-				messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-				//sets the result of the ObservableFuture
-				set(receivedRPC);
-			}
+			if (state == State.DONE)
+				return;
+			expired = state;
+			state = State.DONE;
+			timeout = null;
 		}
-		catch(InterruptedException ie)
+		if (expired == State.CREATED)
 		{
-			messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-			ie.printStackTrace();
-		}	
+			//the session never started: the pool is saturated, the addressee is not to blame
+			setFailure(new TaskException("Time out in the queue of the pool!"));
+			return;
+		}
+		if (cookie != null)
+			messageDispatcher.getCookieCache().invalidate(addresseeId, cookie); //the next session will get a fresh one
+		RPCMessage sent = sentRPC;
+		if (sent != null)
+			node.getSecurityAgent().invalidateSession(sent.getAuthenticator()); //the next session will be signed
+		////System.err.println(node.getUserId() + " - ClientManager : time out in session " + sid + " to " + addresseeSocket);
+		messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
+		node.getRouteTable().handleFailure(addressee.getNodeId());
+		setFailure(new TaskException("Time out!"));
 	}
 	
-	private byte[] serialize(Serializable msg) throws IOException
+	/*
+	 * Closes the session after a local error
+	 */
+	private void abort(TaskException e)
 	{
-		//compose the UDP packet to be sent
-		byte[] data;
-		
-	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	    ObjectOutputStream oos = new ObjectOutputStream(bos);
-	    oos.writeObject(msg);
-	    oos.flush();
-	    data = bos.toByteArray();
-	    oos.close();
-	    bos.close();
-	    
-	    return data;
+		synchronized(this)
+		{
+			if (state == State.DONE)
+				return;
+			state = State.DONE;
+			cancelTimeout();
+		}
+		messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
+		setFailure(e);
+	}
+	
+	//must be called holding the lock on this session
+	private void scheduleTimeout()
+	{
+		cancelTimeout();
+		timeout = node.getTimerWheel().schedule(new SessionTimeout(), TIME_OUT, Settings.DEFAULT_TIME_UNIT);
+	}
+	
+	//must be called holding the lock on this session
+	private void cancelTimeout()
+	{
+		if (timeout != null)
+		{
+			timeout.cancel();
+			timeout = null;
+		}
 	}
 	
 	private void refreshRouteTable(RPCMessage message)
@@ -387,9 +469,17 @@ public abstract class ClientSessionManager extends ObservableFutureTask<RPCMessa
 		node.getRouteTable().add(contact);
 	}
 	
+	private class SessionTimeout implements Runnable
+	{
+		public void run()
+		{
+			expire();
+		}
+	}
+	
 	public String toString()
 	{
-		String result = "Client Session " + sid + " with " + addresseeId + " , " + addresseeSocket + "\n";
+		String result = "Client Session " + sid + " with " + addresseeId + " , " + addresseeSocket + " (" + state + ")\n";
 		result += "Rec  Nonce : " + receivedNonce + "\n";
 		result += "Sent Nonce : " + sentNonce + "\n";
 		result += "Rec  RPC   : " + receivedRPC + "\n";
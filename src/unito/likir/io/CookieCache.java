@@ -0,0 +1,101 @@
+package unito.likir.io;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import unito.likir.NodeId;
+import unito.likir.security.CookieManager;
+
+/**
+ * Keeps the nonce cookies received from the other nodes, so that later RPCs to the
+ * same node can skip the nonce exchange. A cookie is dropped as soon as it
+ * is about to expire, or when a session using it fails.
+ */
+public class CookieCache
+{
+	private final ConcurrentMap<NodeId,byte[]> cookies;
+	private final int capacity;
+	private final long margin; //a cookie is not used if it expires within this time (in milliseconds)
+
+	/**
+	 * Create a new CookieCache
+	 * @param capacity the maximum number of cookies kept
+	 * @param margin cookies expiring within this time (in milliseconds) are not returned
+	 */
+	public CookieCache(int capacity, long margin)
+	{
+		if (capacity < 0 || margin < 0)
+			throw new IllegalArgumentException("Invalid cache parameters");
+		this.cookies = new ConcurrentHashMap<NodeId,byte[]>();
+		this.capacity = capacity;
+		this.margin = margin;
+	}
+
+	/**
+	 * Store the cookie received from a node, replacing the previous one
+	 * @param peer the NodeId of the node which issued the cookie
+	 * @param cookie the cookie
+	 */
+	public void put(NodeId peer, byte[] cookie)
+	{
+		if (cookie == null || cookie.length != CookieManager.COOKIE_LENGTH)
+			return;
+		if (!cookies.containsKey(peer) && cookies.size() >= capacity)
+		{
+			purge();
+			if (cookies.size() >= capacity)
+				return; //full of valid cookies
+		}
+		cookies.put(peer, cookie);
+	}
+
+	/**
+	 * Returns a valid cookie for a node
+	 * @param peer the NodeId of the node
+	 * @return the cookie, or null if there is no valid cookie for the node
+	 */
+	public byte[] get(NodeId peer)
+	{
+		byte[] cookie = cookies.get(peer);
+		if (cookie == null)
+			return null;
+		if (CookieManager.getExpireTime(cookie) <= System.currentTimeMillis() + margin)
+		{
+			cookies.remove(peer, cookie);
+			return null;
+		}
+		return cookie;
+	}
+
+	/**
+	 * Drop the cookie of a node, unless it has already been replaced by a newer one
+	 * @param peer the NodeId of the node
+	 * @param cookie the cookie to drop
+	 */
+	public void invalidate(NodeId peer, byte[] cookie)
+	{
+		cookies.remove(peer, cookie);
+	}
+
+	public int size()
+	{
+		return cookies.size();
+	}
+
+	private void purge()
+	{
+		long limit = System.currentTimeMillis() + margin;
+		Iterator<byte[]> it = cookies.values().iterator();
+		while (it.hasNext())
+		{
+			if (CookieManager.getExpireTime(it.next()) <= limit)
+				it.remove();
+		}
+	}
+
+	public String toString()
+	{
+		return "CookieCache - size=" + cookies.size() + "/" + capacity;
+	}
+}
@@ -0,0 +1,546 @@
+package unito.likir.io;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import unito.likir.security.MTRandom;
+
+/**
+ * Splits the messages too large for a single datagram into fragments and rebuilds
+ * them at the receiver, so that a large FIND_VALUE response or STORE request still
+ * travels as one RPC.
+ * A fragment starts with a header whose first byte (MAGIC) can't start a serialized
+ * message, so fragments and whole messages share the same socket:
+ * <pre>
+ * DATA : MAGIC, DATA, message id (8), message length (4), offset (4), index (2), count (2), payload
+ * NACK : MAGIC, NACK, message id (8), missing (2), missing indexes (2 each)
+ * </pre>
+ * The receiver keeps a reassembly buffer per message, within a per-message, a per-sender
+ * and a total memory cap. The buffer grows as the fragments arrive, so a fragment
+ * declaring a large message only holds the memory of its own payload. If the fragments stop arriving before the message is complete, it asks
+ * the sender for the missing ones only (NACK); the sender answers from a bounded cache
+ * of its recently sent messages. Incomplete messages are discarded after a few NACKs.
+ * NACKs are sent only to the known peers of the node, for messages of which at least
+ * two fragments arrived, and take at most 1/MAX_NACK_SHARE of the bytes received for
+ * the message, so that a spoofed fragment can't turn the node into an amplifier.
+ */
+public class Fragmenter
+{
+	public static final byte MAGIC = (byte)0xF7; //encoded messages start with MessageCodec.MAGIC or 0xAC (Java serialization)
+	private static final byte DATA = 0;
+	private static final byte NACK = 1;
+	private static final int DATA_HEADER = 22;
+	private static final int NACK_HEADER = 12;
+	private static final int MAX_FRAGMENTS = 0xFFFF;
+	private static final int MAX_NACKS = 3; //NACKs sent before an incomplete message is discarded
+	private static final int MAX_NACK_SHARE = 8; //the NACKs of a message take at most 1/8 of its received bytes
+
+	private static MTRandom rand = new MTRandom();
+
+	private final Transport transport;
+	private final TimerWheel timer;
+	private final Peers peers;
+	private final int fragmentSize; //max payload of a fragment
+	private final int maxMessageSize;
+	private final long reassemblyMemory; //max bytes of all the reassembly buffers
+	private final long senderMemory; //max bytes of the reassembly buffers of a sender
+	private final long retransmitDelay; //time without new fragments before a NACK (in milliseconds)
+	private final long retainTime; //time a sent message is kept for retransmission (in milliseconds)
+	private final long retransmitCacheSize; //max bytes of the sent messages kept
+
+	private final ConcurrentMap<Key,Reassembly> reassemblies;
+	private final AtomicLong reservedMemory;
+	private final Map<SocketAddress,Long> senderReserved; //the memory reserved by every sender, guarded by itself
+	private final ConcurrentMap<Long,Sent> sentMessages;
+	private final Queue<Sent> sentOrder; //eviction order of the sent messages
+	private final AtomicLong cachedBytes;
+
+	private final AtomicLong fragmented;
+	private final AtomicLong reassembled;
+	private final AtomicLong retransmitted;
+	private final AtomicLong discarded;
+
+	/**
+	 * Create a new Fragmenter
+	 * @param transport the transport of the datagrams
+	 * @param timer the timer driving retransmissions and expirations
+	 * @param peers the addresses which may be sent NACKs
+	 * @param fragmentSize the max payload of a fragment; larger messages are fragmented
+	 * @param maxMessageSize the max length of a fragmented message
+	 * @param reassemblyMemory the max memory used by the messages being reassembled
+	 * @param senderMemory the max memory used by the messages of a sender being reassembled
+	 * @param retransmitDelay the time without new fragments after which the missing ones are requested
+	 * @param retainTime the time a sent message can be retransmitted
+	 * @param retransmitCacheSize the max memory used by the sent messages kept for retransmission
+	 */
+	public Fragmenter(Transport transport, TimerWheel timer, Peers peers, int fragmentSize, int maxMessageSize, long reassemblyMemory,
+			long senderMemory, long retransmitDelay, long retainTime, long retransmitCacheSize)
+	{
+		if (fragmentSize <= 0 || maxMessageSize <= 0 || (maxMessageSize - 1) / fragmentSize >= MAX_FRAGMENTS)
+			throw new IllegalArgumentException("Invalid fragmentation parameters");
+		this.transport = transport;
+		this.timer = timer;
+		this.peers = peers;
+		this.fragmentSize = fragmentSize;
+		this.maxMessageSize = maxMessageSize;
+		this.reassemblyMemory = reassemblyMemory;
+		this.senderMemory = senderMemory;
+		this.retransmitDelay = retransmitDelay;
+		this.retainTime = retainTime;
+		this.retransmitCacheSize = retransmitCacheSize;
+		this.reassemblies = new ConcurrentHashMap<Key,Reassembly>();
+		this.reservedMemory = new AtomicLong(0);
+		this.senderReserved = new HashMap<SocketAddress,Long>();
+		this.sentMessages = new ConcurrentHashMap<Long,Sent>();
+		this.sentOrder = new ConcurrentLinkedQueue<Sent>();
+		this.cachedBytes = new AtomicLong(0);
+		this.fragmented = new AtomicLong(0);
+		this.reassembled = new AtomicLong(0);
+		this.retransmitted = new AtomicLong(0);
+		this.discarded = new AtomicLong(0);
+	}
+
+	/**
+	 * Returns whether a message must be fragmented
+	 * @param length the length of the message
+	 * @return true if the message doesn't fit a single fragment
+	 */
+	public boolean needsFragmentation(int length)
+	{
+		return length > fragmentSize;
+	}
+
+	/**
+	 * Returns whether a received datagram is a fragment (or a NACK)
+	 * @param datagram the datagram, its remaining bytes are examined without being consumed
+	 * @return true if the datagram must be given to receive()
+	 */
+	public static boolean isFragment(ByteBuffer datagram)
+	{
+		return datagram.remaining() > 1 && datagram.get(datagram.position()) == MAGIC;
+	}
+
+	/**
+	 * Sends a message in fragments, and keeps it for a while to retransmit the lost ones
+	 * @param data the message
+	 * @param offset the offset of the message in data
+	 * @param length the length of the message
+	 * @param target the addressee
+	 * @throws IllegalArgumentException if the message exceeds the max message size
+	 * @throws IOException if the transport is closed
+	 */
+	public void send(byte[] data, int offset, int length, SocketAddress target) throws IOException
+	{
+		if (length > maxMessageSize)
+			throw new IllegalArgumentException("Message exceeds the maximum size allowed (" + length + " bytes)");
+		long id = rand.nextLong();
+		int count = (length + fragmentSize - 1) / fragmentSize;
+		Sent sent = new Sent(id, data, offset, length, count, target);
+		cache(sent);
+		fragmented.incrementAndGet();
+		for (int i = 0; i < count; i++)
+			transport.send(sent.fragment(i), target);
+	}
+
+	/**
+	 * Handles a received fragment or NACK
+	 * @param datagram the datagram (see isFragment()), its bytes are copied
+	 * @param sender the address of the sender
+	 * @return the whole message if the fragment completed it, otherwise null
+	 */
+	public ByteBuffer receive(ByteBuffer datagram, SocketAddress sender)
+	{
+		ByteBuffer in = datagram.slice();
+		if (in.remaining() < NACK_HEADER || in.get() != MAGIC)
+			return null;
+		byte type = in.get();
+		long id = in.getLong();
+		if (type == NACK)
+		{
+			handleNack(id, in, sender);
+			return null;
+		}
+		if (type != DATA || in.remaining() < DATA_HEADER - NACK_HEADER)
+			return null;
+		int length = in.getInt();
+		int offset = in.getInt();
+		int index = in.getShort() & 0xFFFF;
+		int count = in.getShort() & 0xFFFF;
+		if (length <= 0 || length > maxMessageSize || count == 0 || index >= count || offset < 0 || offset > length - in.remaining())
+			return null; //malformed or too large
+		if (offset != (long)index * fragmentSize || count != (length + fragmentSize - 1) / fragmentSize
+				|| in.remaining() != Math.min(fragmentSize, length - offset))
+			return null; //not cut by the same fragment size
+
+		Key key = new Key(sender, id);
+		Reassembly r = reassemblies.get(key);
+		if (r == null)
+		{
+			r = new Reassembly(key, length, count);
+			Reassembly old = reassemblies.putIfAbsent(key, r);
+			if (old != null)
+				r = old;
+			else
+				r.start();
+		}
+		return r.add(index, in);
+	}
+
+	//reserves the memory of a fragment, false if the sender or the node has no memory left
+	private boolean reserve(SocketAddress sender, long bytes)
+	{
+		synchronized (senderReserved)
+		{
+			Long reserved = senderReserved.get(sender);
+			long total = (reserved == null ? 0 : reserved) + bytes;
+			if (total > senderMemory || reservedMemory.get() + bytes > reassemblyMemory)
+				return false;
+			senderReserved.put(sender, total);
+			reservedMemory.addAndGet(bytes);
+			return true;
+		}
+	}
+
+	private void release(SocketAddress sender, long bytes)
+	{
+		if (bytes == 0)
+			return;
+		synchronized (senderReserved)
+		{
+			long total = senderReserved.get(sender) - bytes;
+			if (total == 0)
+				senderReserved.remove(sender);
+			else
+				senderReserved.put(sender, total);
+			reservedMemory.addAndGet(-bytes);
+		}
+	}
+
+	private void handleNack(long id, ByteBuffer in, SocketAddress sender)
+	{
+		Sent sent = sentMessages.get(id);
+		if (sent == null || !sent.target.equals(sender) || in.remaining() < 2)
+			return; //unknown or already evicted message
+		int missing = in.getShort() & 0xFFFF;
+		for (int i = 0; i < missing && in.remaining() >= 2; i++)
+		{
+			int index = in.getShort() & 0xFFFF;
+			if (index < sent.count)
+			{
+				retransmitted.incrementAndGet();
+				if (!offer(sent.fragment(index), sender))
+					return;
+			}
+		}
+	}
+
+	//sends a datagram from the threads which can't handle an IOException
+	private boolean offer(ByteBuffer datagram, SocketAddress target)
+	{
+		try
+		{
+			return transport.send(datagram, target);
+		}
+		catch (IOException ioe)
+		{
+			return false; //the transport is closed
+		}
+	}
+
+	private void cache(final Sent sent)
+	{
+		if (sent.length > retransmitCacheSize)
+			return;
+		long bytes = cachedBytes.addAndGet(sent.length);
+		while (bytes > retransmitCacheSize)
+		{
+			Sent oldest = sentOrder.poll();
+			if (oldest == null)
+				break;
+			bytes = uncache(oldest);
+		}
+		sentMessages.put(sent.id, sent);
+		sentOrder.offer(sent);
+		timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				if (sentOrder.remove(sent))
+					uncache(sent);
+			}
+		}, retainTime, TimeUnit.MILLISECONDS);
+	}
+
+	private long uncache(Sent sent)
+	{
+		sentMessages.remove(sent.id, sent);
+		return cachedBytes.addAndGet(-sent.length);
+	}
+
+	/**
+	 * Returns the number of messages sent in fragments
+	 * @return the fragmented messages
+	 */
+	public long getFragmentedCount()
+	{
+		return fragmented.get();
+	}
+
+	/**
+	 * Returns the number of messages rebuilt from their fragments
+	 * @return the reassembled messages
+	 */
+	public long getReassembledCount()
+	{
+		return reassembled.get();
+	}
+
+	/**
+	 * Returns the number of fragments sent again after a NACK
+	 * @return the retransmitted fragments
+	 */
+	public long getRetransmittedCount()
+	{
+		return retransmitted.get();
+	}
+
+	/**
+	 * Returns the number of incoming messages discarded because they were incomplete
+	 * or because the reassembly memory was exhausted
+	 * @return the discarded messages
+	 */
+	public long getDiscardedCount()
+	{
+		return discarded.get();
+	}
+
+	/**
+	 * Returns the memory reserved by the messages being reassembled
+	 * @return the reserved bytes
+	 */
+	public long getReassemblyMemory()
+	{
+		return reservedMemory.get();
+	}
+
+	public String toString()
+	{
+		return "Fragmenter - fragmented=" + fragmented.get() + ", reassembled=" + reassembled.get() + ", retransmitted=" +
+				retransmitted.get() + ", discarded=" + discarded.get() + ", reassembly memory=" + reservedMemory.get() + "/" + reassemblyMemory;
+	}
+
+	/**
+	 * Tells whether the node talks with an address, e.g. through a session
+	 */
+	public static interface Peers
+	{
+		/**
+		 * Called before a NACK is sent, so it may be slow
+		 * @param address the address of a sender of fragments
+		 * @return true if the address may be sent a NACK
+		 */
+		public boolean isKnown(SocketAddress address);
+	}
+
+	//a message being reassembled, identified by sender and message id
+	private class Reassembly implements Runnable
+	{
+		private final Key key;
+		private final int length;
+		private final byte[][] fragments; //the payloads received so far
+		private final BitSet received;
+		private final int count;
+		private long reserved; //the memory held by the fragments
+		private long receivedBytes;
+		private long nackBytes;
+		private int receivedCount;
+		private int lastCount; //receivedCount at the previous check
+		private int nacks;
+		private boolean closed; //completed or discarded: late fragments are ignored
+
+		Reassembly(Key key, int length, int count)
+		{
+			this.key = key;
+			this.length = length;
+			this.fragments = new byte[count][];
+			this.received = new BitSet(count);
+			this.count = count;
+		}
+
+		void start()
+		{
+			timer.schedule(this, retransmitDelay, TimeUnit.MILLISECONDS);
+		}
+
+		ByteBuffer add(int index, ByteBuffer payload)
+		{
+			byte[] data = null;
+			long freed;
+			synchronized(this)
+			{
+				if (closed || received.get(index))
+					return null; //duplicate
+				if (reserve(key.sender, payload.remaining()))
+				{
+					reserved += payload.remaining();
+					receivedBytes += payload.remaining();
+					fragments[index] = new byte[payload.remaining()];
+					payload.get(fragments[index]);
+					received.set(index);
+					receivedCount++;
+					if (receivedCount < count)
+						return null;
+					data = new byte[length];
+					for (int i = 0; i < count; i++)
+						System.arraycopy(fragments[i], 0, data, i * fragmentSize, fragments[i].length);
+				}
+				freed = close();
+			}
+			release(key.sender, freed);
+			if (data == null)
+			{
+				discarded.incrementAndGet(); //no memory left: the sender will time out
+				return null;
+			}
+			reassembled.incrementAndGet();
+			//the closed entry stays for a while, so that retransmitted fragments don't start it again
+			return ByteBuffer.wrap(data);
+		}
+
+		//must be called holding the lock on this reassembly; returns the memory to release
+		private long close()
+		{
+			closed = true;
+			for (int i = 0; i < count; i++)
+				fragments[i] = null;
+			long freed = reserved;
+			reserved = 0;
+			return freed;
+		}
+
+		/*
+		 * Run by the timer: requests the missing fragments if none arrived since the
+		 * last check, and discards the message after MAX_NACKS useless requests
+		 */
+		public void run()
+		{
+			ByteBuffer nack = null;
+			boolean discard = false;
+			long freed = 0;
+			synchronized(this)
+			{
+				if (closed)
+				{
+					reassemblies.remove(key, this);
+					return;
+				}
+				if (receivedCount > lastCount)
+				{
+					lastCount = receivedCount;
+				}
+				else if (receivedCount > 1 && nacks++ < MAX_NACKS)
+				{
+					nack = buildNack();
+					if ((nackBytes + nack.remaining()) * MAX_NACK_SHARE > receivedBytes)
+						nack = null; //the NACKs would amplify the received traffic
+					else
+						nackBytes += nack.remaining();
+				}
+				else
+				{
+					discard = true;
+					freed = close();
+				}
+			}
+			if (discard)
+			{
+				release(key.sender, freed);
+				discarded.incrementAndGet();
+				reassemblies.remove(key, this);
+				return;
+			}
+			if (nack != null && peers.isKnown(key.sender))
+				offer(nack, key.sender);
+			timer.schedule(this, retransmitDelay, TimeUnit.MILLISECONDS);
+		}
+
+		//must be called holding the lock on this reassembly
+		private ByteBuffer buildNack()
+		{
+			int missing = Math.min(count - receivedCount, (fragmentSize - NACK_HEADER - 2) / 2);
+			ByteBuffer nack = ByteBuffer.allocate(NACK_HEADER + 2 + 2 * missing);
+			nack.put(MAGIC).put(NACK).putLong(key.id).putShort((short)missing);
+			for (int i = received.nextClearBit(0), n = 0; i < count && n < missing; i = received.nextClearBit(i + 1), n++)
+				nack.putShort((short)i);
+			nack.flip();
+			return nack;
+		}
+	}
+
+	//a message sent in fragments
+	private class Sent
+	{
+		final long id;
+		final byte[] data;
+		final int offset;
+		final int length;
+		final int count;
+		final SocketAddress target;
+
+		Sent(long id, byte[] data, int offset, int length, int count, SocketAddress target)
+		{
+			this.id = id;
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.count = count;
+			this.target = target;
+		}
+
+		ByteBuffer fragment(int index)
+		{
+			int start = index * fragmentSize;
+			int size = Math.min(fragmentSize, length - start);
+			ByteBuffer fragment = ByteBuffer.allocate(DATA_HEADER + size);
+			fragment.put(MAGIC).put(DATA).putLong(id).putInt(length).putInt(start).putShort((short)index).putShort((short)count);
+			fragment.put(data, offset + start, size);
+			fragment.flip();
+			return fragment;
+		}
+	}
+
+	private static class Key
+	{
+		final SocketAddress sender;
+		final long id;
+
+		Key(SocketAddress sender, long id)
+		{
+			this.sender = sender;
+			this.id = id;
+		}
+
+		public int hashCode()
+		{
+			return (int)(id ^ (id >>> 32)) * 31 + sender.hashCode();
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return id == k.id && sender.equals(k.sender);
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package unito.likir.io;
 
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+import java.util.HashSet;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.Collection;
 import java.util.Iterator;
@@ -12,6 +16,7 @@ import java.util.Comparator;
 import unito.likir.Node;
 import unito.likir.NodeId;
 import unito.likir.messages.dht.FindValueResponse;
+import unito.likir.messages.dht.LazyEntryList;
 import unito.likir.messages.dht.RPCMessage;
 import unito.likir.routing.Contact;
 import unito.likir.settings.PropFinder;
@@ -37,6 +42,7 @@ public class GetManager extends ObservableFutureTask<Collection<StorageEntry>>
     private TreeSet<Contact> shortList; //list of contacts improved at each step
     private TreeSet<Contact> markedList; //subset of shortList containing the probed contacts
     private List<StorageEntry> contentList;
+    private Set<ByteBuffer> signatures; //signatures of the entries in contentList, to skip their copies
     private final int K; //replication factor
     private final int ALPHA; //parallelism factor
     private final int TIME_OUT;
@@ -63,6 +69,7 @@ public class GetManager extends ObservableFutureTask<Collection<StorageEntry>>
         this.shortList = new TreeSet<Contact>(comparator);
         this.markedList = new TreeSet<Contact>(comparator);
         this.contentList = new LinkedList<StorageEntry>();
+        this.signatures = new HashSet<ByteBuffer>();
         this.replies = new LinkedList<Couple<Contact, Future<RPCMessage>>>();
         this.K = Integer.parseInt(PropFinder.get(Settings.K));
         this.ALPHA = Integer.parseInt(PropFinder.get(Settings.ALPHA));
@@ -84,7 +91,11 @@ public class GetManager extends ObservableFutureTask<Collection<StorageEntry>>
 
         if (localEntries != null)
         {
-            contentList.addAll(localEntries);
+            for (StorageEntry e : node.getSecurityAgent().clean(localEntries))
+            {
+                if (e.getCredentials().getSignature() != null && signatures.add(ByteBuffer.wrap(e.getCredentials().getSignature())))
+                    contentList.add(e);
+            }
         }
 
         if (shortList.isEmpty())
@@ -128,9 +139,62 @@ public class GetManager extends ObservableFutureTask<Collection<StorageEntry>>
             }
         }
 
-        Collection<StorageEntry> cleanedList = node.getSecurityAgent().clean(contentList);
+        set(contentList);
+    }
 
-        set(cleanedList);
+    /*
+     * Adds the valid entries of a response which are not in contentList yet, until
+     * contentNumber entries are collected. The entries of a lazily decoded response
+     * are decoded only if they are new and needed
+     */
+    private void collect(Collection<StorageEntry> values)
+    {
+        if (values instanceof LazyEntryList)
+        {
+            LazyEntryList list = (LazyEntryList)values;
+            for (int i = 0; i < list.size() && contentList.size() < contentNumber; i++)
+            {
+                ByteBuffer signature = list.getSignature(i);
+                if (signature == null || signatures.contains(signature))
+                    continue; //unsigned entry or copy of a collected one
+                try
+                {
+                    add(list.get(i), signature);
+                }
+                catch (IllegalStateException ise)
+                {
+                    //malformed entry, skipped
+                }
+            }
+        }
+        else
+        {
+            for (StorageEntry e : values)
+            {
+                if (contentList.size() >= contentNumber)
+                    break;
+                if (e.getCredentials().getSignature() != null)
+                    add(e, ByteBuffer.wrap(e.getCredentials().getSignature()));
+            }
+        }
+    }
+
+    private void add(StorageEntry entry, ByteBuffer signature)
+    {
+        if (signatures.contains(signature))
+            return;
+        try
+        {
+            if (node.getSecurityAgent().check(entry))
+            {
+                contentList.add(entry);
+                signatures.add(signature);
+            }
+        }
+        catch (SignatureException se)
+        {
+            System.err.println("Can't verify Credentials signature");
+        }
     }
 
     /*
@@ -176,8 +240,8 @@ public class GetManager extends ObservableFutureTask<Collection<StorageEntry>>
             futureReply = replyCouple.second();
             try
             {
-                //waits the FIND_NODE responses for a short time
-                reply = (FindValueResponse) (futureReply.get(TIME_OUT, Settings.DEFAULT_TIME_UNIT).getRPC());
+                //waits the FIND_VALUE responses: the session fails if the contact doesn't answer in time
+                reply = (FindValueResponse) (futureReply.get(ClientSessionManager.TIME_OUT_STEPS * TIME_OUT, Settings.DEFAULT_TIME_UNIT).getRPC());
 
                 if (reply.getContacts() != null)
                 {
@@ -186,7 +250,7 @@ public class GetManager extends ObservableFutureTask<Collection<StorageEntry>>
                 }
                 if (reply.getValues() != null)
                 {
-                    contentList.addAll(reply.getValues());
+                    collect(reply.getValues());
                 }
                 markedList.add(contact);
             }
@@ -0,0 +1,230 @@
+package unito.likir.io;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+
+/**
+ * A simulated network connecting the InMemoryTransports of the same JVM.
+ * Every datagram can be lost with a fixed probability, waits for the link of its
+ * sender (if a bandwidth is set) and then travels with a fixed latency. Datagrams
+ * sent to an address no transport is bound to are lost, as with UDP.
+ */
+public class InMemoryNetwork implements Runnable
+{
+	private static InMemoryNetwork defaultNetwork;
+
+	private final ConcurrentMap<SocketAddress,InMemoryTransport> endpoints;
+	private final long latency; //in nanoseconds
+	private final double loss; //probability that a datagram is lost
+	private final long bandwidth; //bytes per second of the link of every node, 0 means unlimited
+	private final DelayQueue<Delivery> inFlight;
+	private Thread courier; //delivers the delayed datagrams
+
+	private final AtomicLong transmitted;
+	private final AtomicLong delivered;
+	private final AtomicLong lost;
+	private final AtomicLong unreachable;
+
+	/**
+	 * Create a new InMemoryNetwork
+	 * @param latency the delivery latency
+	 * @param unit the time unit of latency
+	 * @param loss the probability that a datagram is lost (between 0 and 1)
+	 * @param bandwidth the bytes per second the link of a node can send, 0 means unlimited
+	 */
+	public InMemoryNetwork(long latency, TimeUnit unit, double loss, long bandwidth)
+	{
+		if (latency < 0 || loss < 0 || loss > 1 || bandwidth < 0)
+			throw new IllegalArgumentException("Invalid network parameters");
+		this.endpoints = new ConcurrentHashMap<SocketAddress,InMemoryTransport>();
+		this.latency = unit.toNanos(latency);
+		this.loss = loss;
+		this.bandwidth = bandwidth;
+		this.inFlight = new DelayQueue<Delivery>();
+		this.transmitted = new AtomicLong(0);
+		this.delivered = new AtomicLong(0);
+		this.lost = new AtomicLong(0);
+		this.unreachable = new AtomicLong(0);
+	}
+
+	/**
+	 * Returns the network shared by the nodes of this JVM, created from the
+	 * memoryLatency, memoryLoss and memoryBandwidth settings
+	 * @return the default network
+	 */
+	public static synchronized InMemoryNetwork getDefault()
+	{
+		if (defaultNetwork == null)
+		{
+			defaultNetwork = new InMemoryNetwork(Long.parseLong(PropFinder.get(Settings.MEMORY_LATENCY)), Settings.DEFAULT_TIME_UNIT,
+					Double.parseDouble(PropFinder.get(Settings.MEMORY_LOSS)), Long.parseLong(PropFinder.get(Settings.MEMORY_BANDWIDTH)));
+		}
+		return defaultNetwork;
+	}
+
+	/**
+	 * Bind a new transport to an address of this network
+	 * @param address the address
+	 * @param inboxSize the maximum number of datagrams waiting to be received
+	 * @return the transport
+	 * @throws SocketException if the address is already bound
+	 */
+	public InMemoryTransport bind(InetSocketAddress address, int inboxSize) throws SocketException
+	{
+		InMemoryTransport transport = new InMemoryTransport(this, address, inboxSize);
+		if (endpoints.putIfAbsent(address, transport) != null)
+			throw new SocketException("InMemoryNetwork: address already in use " + address);
+		return transport;
+	}
+
+	void unbind(InMemoryTransport transport)
+	{
+		endpoints.remove(transport.getLocalAddress(), transport);
+	}
+
+	/*
+	 * Called by the sender transport: loses, delays or delivers the datagram
+	 */
+	void transmit(InMemoryTransport from, ByteBuffer data, SocketAddress target)
+	{
+		transmitted.incrementAndGet();
+		if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss)
+		{
+			lost.incrementAndGet();
+			return;
+		}
+		long arrival = System.nanoTime() + latency;
+		if (bandwidth > 0)
+			arrival = from.reserveLink(data.remaining() * 1000000000L / bandwidth) + latency;
+		Delivery delivery = new Delivery(from.getLocalAddress(), data, target, arrival);
+		if (arrival <= System.nanoTime())
+		{
+			deliver(delivery);
+		}
+		else
+		{
+			startCourier();
+			inFlight.offer(delivery);
+		}
+	}
+
+	private void deliver(Delivery delivery)
+	{
+		InMemoryTransport to = endpoints.get(delivery.target);
+		if (to == null)
+		{
+			unreachable.incrementAndGet();
+			return;
+		}
+		if (to.deliver(delivery.data, delivery.sender))
+			delivered.incrementAndGet();
+	}
+
+	private synchronized void startCourier()
+	{
+		if (courier == null)
+		{
+			courier = new Thread(this, "likir-network");
+			courier.setDaemon(true);
+			courier.start();
+		}
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				deliver(inFlight.take());
+			}
+			catch (InterruptedException ie)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of transports bound to this network
+	 * @return the number of nodes
+	 */
+	public int size()
+	{
+		return endpoints.size();
+	}
+
+	public long getTransmittedCount()
+	{
+		return transmitted.get();
+	}
+
+	public long getDeliveredCount()
+	{
+		return delivered.get();
+	}
+
+	/**
+	 * Returns the number of datagrams lost by the simulated loss
+	 * @return the lost datagrams
+	 */
+	public long getLostCount()
+	{
+		return lost.get();
+	}
+
+	/**
+	 * Returns the number of datagrams sent to an address no transport is bound to
+	 * @return the unreachable datagrams
+	 */
+	public long getUnreachableCount()
+	{
+		return unreachable.get();
+	}
+
+	public String toString()
+	{
+		return "InMemoryNetwork - nodes=" + endpoints.size() + ", latency=" + TimeUnit.NANOSECONDS.toMillis(latency) + " ms, loss=" + loss +
+				", bandwidth=" + bandwidth + " bytes/s, transmitted=" + transmitted.get() + ", delivered=" + delivered.get() +
+				", lost=" + lost.get() + ", unreachable=" + unreachable.get() + ", in flight=" + inFlight.size();
+	}
+
+	private static class Delivery implements Delayed
+	{
+		final SocketAddress sender;
+		final ByteBuffer data;
+		final SocketAddress target;
+		final long arrival; //nanoTime of the delivery
+
+		Delivery(SocketAddress sender, ByteBuffer data, SocketAddress target, long arrival)
+		{
+			this.sender = sender;
+			this.data = data;
+			this.target = target;
+			this.arrival = arrival;
+		}
+
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o)
+		{
+			long d = arrival - ((Delivery)o).arrival;
+			return d < 0 ? -1 : (d > 0 ? 1 : 0);
+		}
+	}
+}
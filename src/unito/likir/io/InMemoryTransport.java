@@ -0,0 +1,136 @@
+package unito.likir.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport routing the datagrams through an InMemoryNetwork, so that many nodes
+ * can run in the same JVM without using real ports. The received datagrams wait in
+ * a bounded inbox: when it is full new datagrams are dropped, as a full socket buffer would do.
+ * Datagrams are not copied, so the buffers given to send() must not be modified afterwards
+ */
+public class InMemoryTransport implements Transport
+{
+	private static final Frame CLOSED = new Frame(null, null); //wakes up the receiver when closed
+
+	private final InMemoryNetwork network;
+	private final InetSocketAddress address;
+	private final BlockingQueue<Frame> inbox;
+	private volatile boolean open;
+	private long linkBusyUntil; //nanoTime when the link of this node is free again
+
+	private final AtomicLong sent;
+	private final AtomicLong received;
+	private final AtomicLong dropped;
+
+	InMemoryTransport(InMemoryNetwork network, InetSocketAddress address, int inboxSize)
+	{
+		this.network = network;
+		this.address = address;
+		this.inbox = new ArrayBlockingQueue<Frame>(inboxSize);
+		this.open = true;
+		this.sent = new AtomicLong(0);
+		this.received = new AtomicLong(0);
+		this.dropped = new AtomicLong(0);
+	}
+
+	public InetSocketAddress getLocalAddress()
+	{
+		return address;
+	}
+
+	public boolean send(ByteBuffer data, SocketAddress target) throws IOException
+	{
+		if (!open)
+			throw new IOException("InMemoryTransport: the transport is closed");
+		sent.incrementAndGet();
+		network.transmit(this, data.slice(), target);
+		return true;
+	}
+
+	/*
+	 * Reserves the link for a datagram taking the given time to be sent
+	 * and returns the nanoTime when it leaves the node
+	 */
+	synchronized long reserveLink(long nanos)
+	{
+		linkBusyUntil = Math.max(linkBusyUntil, System.nanoTime()) + nanos;
+		return linkBusyUntil;
+	}
+
+	/*
+	 * Called by the network: puts a datagram in the inbox
+	 */
+	boolean deliver(ByteBuffer data, SocketAddress sender)
+	{
+		if (open && inbox.offer(new Frame(data, sender)))
+			return true;
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	public void receive(Receiver receiver) throws IOException
+	{
+		try
+		{
+			while (open)
+			{
+				Frame frame = inbox.take();
+				if (frame == CLOSED)
+					break;
+				received.incrementAndGet();
+				//the buffer is not direct: the pool of the receiver ignores it when released
+				receiver.received(frame.data.duplicate(), frame.sender);
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			throw new IOException("InMemoryTransport: interrupted");
+		}
+	}
+
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	public void close()
+	{
+		open = false;
+		network.unbind(this);
+		inbox.clear();
+		inbox.offer(CLOSED);
+	}
+
+	/**
+	 * Returns the number of incoming datagrams dropped because the inbox was full
+	 * @return the dropped datagrams
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public String toString()
+	{
+		return "InMemoryTransport " + address + " - sent=" + sent.get() + ", received=" + received.get() + ", inbox=" + inbox.size() +
+				", dropped=" + dropped.get();
+	}
+
+	private static class Frame
+	{
+		final ByteBuffer data;
+		final SocketAddress sender;
+
+		Frame(ByteBuffer data, SocketAddress sender)
+		{
+			this.data = data;
+			this.sender = sender;
+		}
+	}
+}
@@ -1,15 +1,15 @@
 package unito.likir.io;
 
-import java.io.ObjectInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.SocketAddress;
-import java.io.ByteArrayInputStream;
-import java.lang.ClassNotFoundException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 
 import unito.likir.Node;
 import unito.likir.messages.dht.DHTMessage;
+import unito.likir.messages.dht.MessageCodec;
 import unito.likir.messages.dht.Nonce;
+import unito.likir.messages.dht.RPCMessage;
 //import unito.likir.test.Logger;
 
 /**
@@ -22,35 +22,61 @@ public class IncomingMessageHandler implements Runnable
 {
 	Node node;
 	MessageDispatcher messageDispatcher;
-	DatagramPacket packet;
+	ByteBuffer buffer;
 	SocketAddress senderAddress;
 
-	public IncomingMessageHandler(Node node, DatagramPacket packet)
+	/**
+	 * Create a new handler for a received datagram
+	 * @param node the local node
+	 * @param buffer the receive buffer, flipped so that its remaining bytes are the datagram.
+	 * It is given back to the MessageDispatcher pool once the message has been handled
+	 * @param senderAddress the address of the sender
+	 */
+	public IncomingMessageHandler(Node node, ByteBuffer buffer, SocketAddress senderAddress)
 	{
 		this.node = node;
 		this.messageDispatcher = node.getMessageDispatcher();
-		this.packet = packet;
-		this.senderAddress = packet.getSocketAddress();
+		this.buffer = buffer;
+		this.senderAddress = senderAddress;
 	}
 
 	public void run()
+	{
+		try
+		{
+			handle();
+		}
+		finally
+		{
+			//the sessions keeping the message have detached it from the buffer, which can be reused
+			messageDispatcher.releaseBuffer(buffer);
+		}
+	}
+
+	private void handle()
 	{
 		//deserialize data and check the validity of message
 		DHTMessage received = null;
 		try
 		{
-			received = deserialize(packet.getData());
+			ByteBuffer data = buffer.slice();
+			boolean pooled = true;
+			if (Fragmenter.isFragment(data))
+			{
+				//the fragment is copied into its reassembly buffer
+				data = messageDispatcher.getFragmenter().receive(data, senderAddress);
+				if (data == null)
+					return; //the message is not complete yet
+				pooled = false;
+			}
+			//the entries of a FIND_VALUE response are left in the buffer until they are read
+			received = MessageCodec.decode(data, pooled);
 		}
 		catch(IOException ioe)
 		{
 			System.err.println("Error in data deserialization");
 			return;
 		}
-		catch(ClassNotFoundException cnfe)
-		{
-			System.err.println("Error in data deserialization");
-			return;
-		}
 		
 		long sid = received.getSid();
 		DHTMessage.OpCode opcode = received.getMsgOpCode();
@@ -68,8 +94,24 @@ public class IncomingMessageHandler implements Runnable
 			if (opcode.isNonceRequest())
 			{
 				//System.out.println(node.getUserId() + " New session! " + received.getSid());
-				ServerSessionManager manager = new ServerSessionManager(node,packet.getSocketAddress(),(Nonce)received);
-				node.getExecutor().submit(manager);
+				//a saturated node drops new sessions early, the client will time out
+				if (node.getServerExecutor().shouldShed())
+					return;
+				ServerSessionManager manager = new ServerSessionManager(node,senderAddress,(Nonce)received);
+				try
+				{
+					node.getServerExecutor().execute(manager);
+				}
+				catch (RejectedExecutionException ree)
+				{
+					//the server pool is full: the session is dropped
+				}
+			}
+			else if (messageDispatcher.isStatelessRpc() && ServerSessionManager.isCookieRequest(received))
+			{
+				//RPC sent with a cookie: it is served right away, no session is kept
+				ServerSessionManager manager = new ServerSessionManager(node,senderAddress,(RPCMessage)received);
+				manager.handleCookieRequest();
 			}
 			else
 			{
@@ -153,16 +195,4 @@ public class IncomingMessageHandler implements Runnable
 		}*/
 	}
 
-	private DHTMessage deserialize(byte[] rawData) throws IOException, ClassNotFoundException
-	{
-		DHTMessage message = null;
-		ByteArrayInputStream bais = new ByteArrayInputStream(rawData);
-		ObjectInputStream ois = new ObjectInputStream(bais);
-		message = (DHTMessage)(ois.readObject());
-		bais.close();
-		ois.close();
-		if (message == null) throw new IOException("IncomingMessageHandler - Message deserialization failed");
-
-		return message;
-	}
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package unito.likir.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread pool with a bounded number of threads and a bounded queue, which counts
+ * the tasks it rejects and the tasks dropped by load shedding.
+ * Idle threads terminate after a while, so an idle node keeps no thread alive.
+ * With VIRTUAL threads the pool just bounds the number of running tasks: virtual
+ * threads are cheap, so they are discarded as soon as they are idle.
+ */
+public class InstrumentedExecutor extends ThreadPoolExecutor
+{
+	private static final long KEEP_ALIVE = 60000; //idle platform thread lifetime (in milliseconds)
+	private static final long VIRTUAL_KEEP_ALIVE = 100; //idle virtual thread lifetime (in milliseconds)
+
+	private final String name;
+	private final ThreadMode mode;
+	private final int queueCapacity;
+	private final int shedThreshold; //queue depth above which new work should be dropped
+	private final AtomicLong rejected;
+	private final AtomicLong shed;
+
+	/**
+	 * Create a new InstrumentedExecutor
+	 * @param name the name of the pool (used to name its threads)
+	 * @param threads the maximum number of threads
+	 * @param queueCapacity the maximum number of waiting tasks (0 means that a task is rejected
+	 * if no thread is available)
+	 * @param shedThreshold the queue depth above which shouldShed() returns true
+	 * @param handler the policy applied to the rejected tasks
+	 */
+	public InstrumentedExecutor(String name, int threads, int queueCapacity, int shedThreshold, RejectedExecutionHandler handler)
+	{
+		this(name, ThreadMode.PLATFORM, threads, queueCapacity, shedThreshold, handler);
+	}
+
+	/**
+	 * Create a new InstrumentedExecutor running threads of the given mode
+	 * @param name the name of the pool (used to name its threads)
+	 * @param mode the kind of threads of the pool (PLATFORM is used if VIRTUAL is not supported)
+	 * @param threads the maximum number of threads
+	 * @param queueCapacity the maximum number of waiting tasks
+	 * @param shedThreshold the queue depth above which shouldShed() returns true
+	 * @param handler the policy applied to the rejected tasks
+	 */
+	public InstrumentedExecutor(String name, ThreadMode mode, int threads, int queueCapacity, int shedThreshold, RejectedExecutionHandler handler)
+	{
+		super(threads, threads, mode.effective() == ThreadMode.VIRTUAL ? VIRTUAL_KEEP_ALIVE : KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				createQueue(queueCapacity), mode.newThreadFactory(name));
+		if (shedThreshold < 0 || shedThreshold > queueCapacity)
+			throw new IllegalArgumentException("Invalid shed threshold");
+		this.name = name;
+		this.mode = mode.effective();
+		this.queueCapacity = queueCapacity;
+		this.shedThreshold = shedThreshold;
+		this.rejected = new AtomicLong(0);
+		this.shed = new AtomicLong(0);
+		allowCoreThreadTimeOut(true);
+		setRejectedExecutionHandler(new CountingHandler(handler));
+	}
+
+	private static BlockingQueue<Runnable> createQueue(int capacity)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("Invalid queue capacity");
+		if (capacity == 0)
+			return new SynchronousQueue<Runnable>();
+		return new ArrayBlockingQueue<Runnable>(capacity);
+	}
+
+	/**
+	 * Returns whether new work should be dropped before being submitted, because every
+	 * thread is busy and the queue is above the shed threshold. A positive answer is counted
+	 * @return true if the caller should drop its task
+	 */
+	public boolean shouldShed()
+	{
+		if (getActiveCount() < getMaximumPoolSize() || getQueue().size() < shedThreshold)
+			return false;
+		shed.incrementAndGet();
+		return true;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the kind of threads actually run by this pool
+	 * @return the thread mode
+	 */
+	public ThreadMode getThreadMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a thread
+	 * @return the queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return getQueue().size();
+	}
+
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	/**
+	 * Returns the number of tasks rejected because the pool and its queue were full
+	 * @return the rejected tasks
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of tasks dropped because shouldShed() returned true
+	 * @return the shed tasks
+	 */
+	public long getShedCount()
+	{
+		return shed.get();
+	}
+
+	public String toString()
+	{
+		return name + " (" + mode + ") - threads=" + getPoolSize() + "/" + getMaximumPoolSize() + ", active=" + getActiveCount() +
+				", queue=" + getQueueDepth() + "/" + queueCapacity + ", completed=" + getCompletedTaskCount() +
+				", rejected=" + rejected.get() + ", shed=" + shed.get();
+	}
+
+	private class CountingHandler implements RejectedExecutionHandler
+	{
+		private final RejectedExecutionHandler handler;
+
+		CountingHandler(RejectedExecutionHandler handler)
+		{
+			this.handler = handler;
+		}
+
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+		{
+			rejected.incrementAndGet();
+			handler.rejectedExecution(r, executor);
+		}
+	}
+}
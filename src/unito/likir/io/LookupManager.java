@@ -190,8 +190,8 @@ public class LookupManager extends ObservableFutureTask<Collection<Contact>>
 			futureReply = replyCouple.second();
 			try
 			{
-				//waits the FIND_NODE responses for a short time
-				reply = (FindNodeResponse)(futureReply.get(TIME_OUT, Settings.DEFAULT_TIME_UNIT).getRPC());
+				//waits the FIND_NODE responses: the session fails if the contact doesn't answer in time
+				reply = (FindNodeResponse)(futureReply.get(ClientSessionManager.TIME_OUT_STEPS * TIME_OUT, Settings.DEFAULT_TIME_UNIT).getRPC());
 				
 				//removes the contact of failed nodes already probed
 				Collection<Contact> newContacts = reply.getContacts();
@@ -1,16 +1,19 @@
 package unito.likir.io;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Collections;
 
 import unito.likir.Node;
+import unito.likir.routing.Contact;
+import unito.likir.routing.RouteTable;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
 
 /**
  * MessageDispatcher class
@@ -18,20 +21,49 @@ import unito.likir.Node;
  * @version 0.1
  */
 
-public class MessageDispatcher implements Runnable
+public class MessageDispatcher implements Runnable, Transport.Receiver, Fragmenter.Peers
 {
 	Node node;
 	InetSocketAddress address;
-	DatagramSocket socket;
-	Map<Long,SessionManager> sessionHandlerPool;
+	Transport transport; //sends and receives the datagrams (UDP or in memory)
+	BufferPool bufferPool;
+	Fragmenter fragmenter; //splits and rebuilds the messages larger than a datagram
+	SessionTable<SessionManager> sessionHandlerPool;
+	CookieCache cookieCache; //cookies of the other nodes, null if stateless RPC mode is disabled
 	
 	public MessageDispatcher(Node node, InetSocketAddress address) throws SocketException
 	{
 		this.address = address;
 		this.node = node;
-		Map<Long,SessionManager> map = new HashMap<Long,SessionManager>();
-		this.sessionHandlerPool = Collections.synchronizedMap(map);
-		this.socket = new DatagramSocket(this.address);
+		this.sessionHandlerPool = new SessionTable<SessionManager>(Integer.parseInt(PropFinder.get(Settings.SESSION_TABLE_SIZE)));
+		this.bufferPool = new BufferPool(Integer.parseInt(PropFinder.get(Settings.RECEIVE_BUFFER_SIZE)),
+				Integer.parseInt(PropFinder.get(Settings.RECEIVE_BUFFER_POOL_SIZE)));
+		if (Boolean.parseBoolean(PropFinder.get(Settings.STATELESS_RPC)))
+			this.cookieCache = new CookieCache(Integer.parseInt(PropFinder.get(Settings.COOKIE_CACHE_SIZE)),
+					Long.parseLong(PropFinder.get(Settings.TIME_OUT)));
+		this.transport = createTransport(address, bufferPool);
+		this.fragmenter = new Fragmenter(transport, node.getTimerWheel(), this,
+				Integer.parseInt(PropFinder.get(Settings.FRAGMENT_SIZE)),
+				Integer.parseInt(PropFinder.get(Settings.MAX_MESSAGE_SIZE)),
+				Long.parseLong(PropFinder.get(Settings.REASSEMBLY_MEMORY)),
+				Long.parseLong(PropFinder.get(Settings.SENDER_REASSEMBLY_MEMORY)),
+				Long.parseLong(PropFinder.get(Settings.RETRANSMIT_DELAY)),
+				Long.parseLong(PropFinder.get(Settings.TIME_OUT)),
+				Long.parseLong(PropFinder.get(Settings.RETRANSMIT_CACHE_SIZE)));
+	}
+	
+	/*
+	 * Creates the transport named by the transport setting: udp (default) or memory
+	 */
+	private static Transport createTransport(InetSocketAddress address, BufferPool bufferPool) throws SocketException
+	{
+		String type = PropFinder.get(Settings.TRANSPORT);
+		int queueSize = Integer.parseInt(PropFinder.get(Settings.SEND_QUEUE_SIZE));
+		if (type != null && type.trim().equalsIgnoreCase("memory"))
+			return InMemoryNetwork.getDefault().bind(address, queueSize);
+		if (type != null && !type.trim().equalsIgnoreCase("udp"))
+			throw new IllegalArgumentException("Unknown transport: " + type);
+		return new UdpTransport(address, bufferPool, queueSize, Integer.parseInt(PropFinder.get(Settings.SEND_BATCH_SIZE)));
 	}
 	
 	public InetSocketAddress getLocalAddress()
@@ -40,83 +72,177 @@ public class MessageDispatcher implements Runnable
 	}
 	
 	//TODO: METODO TEST!!! ELIMINA!
-	public synchronized Map<Long,SessionManager> getSessionHandlerPool()
+	public Map<Long,SessionManager> getSessionHandlerPool()
 	{
-		return sessionHandlerPool;
+		return sessionHandlerPool.toMap();
 	}
 	
 	//TODO: METODO TEST!!! ELIMINA!
-	public synchronized String printResponseHandlerPool()
+	public String printResponseHandlerPool()
 	{
-		String result = node.getUserId() + " - Handler Tree\n";
-		Collection<Long> keys = sessionHandlerPool.keySet();
-		for (Long key : keys)
-			result += " * " + key + " : \n" + sessionHandlerPool.get(key) + "\n";
-		return result;
+		return toString();
 	}
 	
-	public synchronized void addSessionHandler(long key, SessionManager r)
+	public void addSessionHandler(long key, SessionManager r)
 	{
 		sessionHandlerPool.put(key, r);
 	}
 	
-	public synchronized SessionManager getSessionHandler(long key)
+	public SessionManager getSessionHandler(long key)
 	{
 		return sessionHandlerPool.get(key);
 	}
 	
-	public synchronized SessionManager removeSessionHandler(long key)
+	public SessionManager removeSessionHandler(long key)
 	{
 		return sessionHandlerPool.remove(key);
 	}
 	
-	public synchronized void send(DatagramPacket packet) throws IOException
+	/**
+	 * Returns the number of open sessions
+	 * @return the number of registered session handlers
+	 */
+	public int getSessionCount()
+	{
+		return sessionHandlerPool.size();
+	}
+	
+	/**
+	 * Sends a UDP packet. The packet is handed to the transport, so the caller never
+	 * waits for the socket nor for other senders: if the transport is congested
+	 * the packet is dropped (see getTransport()).
+	 * A packet larger than the fragment size is sent in fragments (see Fragmenter)
+	 * @param packet the packet, its data must not be modified afterwards
+	 * @throws IOException if the dispatcher is closed or the packet exceeds the max message size
+	 */
+	public void send(DatagramPacket packet) throws IOException
+	{
+		if (!transport.isOpen())
+			throw new IOException("MessageDispatcher: the transport is closed");
+		if (fragmenter.needsFragmentation(packet.getLength()))
+		{
+			try
+			{
+				fragmenter.send(packet.getData(), packet.getOffset(), packet.getLength(), packet.getSocketAddress());
+			}
+			catch (IllegalArgumentException iae)
+			{
+				throw new IOException("MessageDispatcher: " + iae.getMessage());
+			}
+			return;
+		}
+		ByteBuffer data = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+		transport.send(data, packet.getSocketAddress());
+	}
+	
+	/**
+	 * Returns the object which fragments the large messages and rebuilds the received ones
+	 * @return the fragmenter
+	 */
+	public Fragmenter getFragmenter()
+	{
+		return fragmenter;
+	}
+	
+	/**
+	 * Returns the transport of the datagrams, whose toString() describes its
+	 * state (e.g. queue depth, drops and throughput)
+	 * @return the transport
+	 */
+	public Transport getTransport()
+	{
+		return transport;
+	}
+	
+	/**
+	 * Gives back to the pool a buffer handed to an IncomingMessageHandler
+	 * @param buffer the receive buffer
+	 */
+	public void releaseBuffer(ByteBuffer buffer)
 	{
-		socket.send(packet);
+		bufferPool.release(buffer);
+	}
+	
+	/**
+	 * Returns whether the node runs in stateless RPC mode
+	 * @return true if nonce cookies are issued and reused
+	 */
+	public boolean isStatelessRpc()
+	{
+		return cookieCache != null;
+	}
+	
+	/**
+	 * Returns the cookies received from the other nodes
+	 * @return the cookie cache, or null if stateless RPC mode is disabled
+	 */
+	public CookieCache getCookieCache()
+	{
+		return cookieCache;
+	}
+	
+	public BufferPool getBufferPool()
+	{
+		return bufferPool;
 	}
 	
 	public void close()
 	{
-		socket.close();
+		transport.close();
 	}
 	
 	public void run()
 	{
-		if (socket == null)
-		{
-			System.err.println("MessageDispatcher: socket is null!");
-			System.exit(0);
-		}	
 		try
 		{
-			while (true)
-			{
-				//initialize the object to receive the next incoming UDP datagram
-				byte[] buf = new byte[64000];
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
-				//wait for a message to come
-				//synchronized(socket)
-				//{
-					socket.receive(packet);
-					//System.out.println(node.getUserId() +" received a packet!");
-				//}
-				//run a handler for the UDP datagram 
-				IncomingMessageHandler handler = new IncomingMessageHandler(node, packet);
-				node.getExecutor().submit(handler); //TODO: potrebbe essere .execute(handler)??
-			}
+			//the datagrams are received in this thread until the transport is closed
+			transport.receive(this);
 		}
 		catch (IOException e)
 		{
-			System.out.println("MessageDispatcher interrupted!");
 		}
+		System.out.println("MessageDispatcher interrupted!");
     }
 	
+	/**
+	 * Called by the transport for every received datagram
+	 */
+	public void received(ByteBuffer buffer, SocketAddress sender)
+	{
+		//run a handler for the UDP datagram, the handler gives the buffer back when done
+		IncomingMessageHandler handler = new IncomingMessageHandler(node, buffer, sender);
+		try
+		{
+			node.getDispatchExecutor().execute(handler);
+		}
+		catch (RejectedExecutionException ree)
+		{
+			//overloaded: the datagram is dropped
+			bufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Returns whether an address belongs to an open session or to a contact of the route table
+	 */
+	public boolean isKnown(SocketAddress address)
+	{
+		for (SessionManager session : sessionHandlerPool.toMap().values())
+			if (address.equals(session.getPeerAddress()))
+				return true;
+		RouteTable routeTable = node.getRouteTable();
+		if (routeTable != null)
+			for (Contact contact : routeTable.getAllBucketContacts())
+				if (address.equals(contact.getAddress()))
+					return true;
+		return false;
+	}
+	
 	public String toString()
 	{
 		String result = node.getUserId() + " - Handler Tree\n";
-		Collection<Long> keys = sessionHandlerPool.keySet();
-		for (Long key : keys)
-			result += " * " + key + " : \n" + sessionHandlerPool.get(key) + "\n";
+		for (Map.Entry<Long,SessionManager> e : sessionHandlerPool.toMap().entrySet())
+			result += " * " + e.getKey() + " : \n" + e.getValue() + "\n";
 		return result;
 	}
 }
\ No newline at end of file
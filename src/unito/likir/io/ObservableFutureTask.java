@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.HashSet;
 
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
@@ -20,10 +21,11 @@ import java.util.concurrent.locks.ReentrantLock;
 
 public class ObservableFutureTask<T> implements ObservableFuture<T>
 {
-	private T result;
+	private volatile T result;
 	private Set<FutureObserver<T>> observers;
-	private boolean isCancelled;
-	private boolean isDone;
+	private volatile boolean isCancelled;
+	private volatile boolean isDone;
+	private volatile Exception failure; //the cause of the failure, if the computation failed
 	private Lock resultLock;
 	private Condition resultCondition; 
 	
@@ -36,6 +38,7 @@ public class ObservableFutureTask<T> implements ObservableFuture<T>
 		this.observers = Collections.synchronizedSet(new HashSet<FutureObserver<T>>());
 		this.isCancelled = false;
 		this.isDone = false;
+		this.failure = null;
 		this.resultLock = new ReentrantLock();
 		this.resultCondition = resultLock.newCondition();
 	}
@@ -49,7 +52,12 @@ public class ObservableFutureTask<T> implements ObservableFuture<T>
 	{
 		observers.add(observer);
 		if (isDone)
-			observer.update(this, result);
+		{
+			if (failure != null)
+				observer.updateFailure(this, failure);
+			else
+				observer.update(this, result);
+		}
 	}
 	
 	public void notify(T result)
@@ -73,52 +81,48 @@ public class ObservableFutureTask<T> implements ObservableFuture<T>
 		return true;
 	}
 	
-	public T get() throws InterruptedException
+	public T get() throws InterruptedException, ExecutionException
 	{
 		resultLock.lock();
-
+		try
+		{
 			if (isCancelled)
 				throw new CancellationException();
-		
-			if (!isDone)
-			{
-				try
-				{	
-					resultCondition.await();//this.wait();
-				}
-				catch (InterruptedException e)
-				{
-					throw new InterruptedException();
-				}
-			}
-			
-		resultLock.unlock();
-		return result;
+			while (!isDone)
+				resultCondition.await();
+		}
+		finally
+		{
+			resultLock.unlock();
+		}
+		return getResult();
 	}
 	
-	public T get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
 	{
+		long nanos = unit.toNanos(timeout);
 		resultLock.lock();
+		try
+		{
 			if (isCancelled)
 				throw new CancellationException();
-			
-			if (!isDone)
-			{
-				try
-				{
-					resultCondition.await(timeout,unit);
-				}
-				catch (InterruptedException e)
-				{
-					throw new InterruptedException();
-				}
-			}
-		resultLock.unlock();
-			
-			if (!isDone)
-				throw new TimeoutException();
-			else
-				return result;
+			while (!isDone && nanos > 0)
+				nanos = resultCondition.awaitNanos(nanos);
+		}
+		finally
+		{
+			resultLock.unlock();
+		}
+		if (!isDone)
+			throw new TimeoutException();
+		return getResult();
+	}
+	
+	private T getResult() throws ExecutionException
+	{
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return result;
 	}
 	
 	public boolean isCancelled()
@@ -133,20 +137,46 @@ public class ObservableFutureTask<T> implements ObservableFuture<T>
 	
 	public boolean set(T result)
 	{
-		if (!isDone)
+		resultLock.lock();
+		try
+		{
+			if (isDone)
+				return false;
+			this.result = result;
+			isDone = true;
+			resultCondition.signalAll();
+		}
+		finally
 		{
-			resultLock.lock();
-				this.result = result;
-				isDone = true;
-				resultCondition.signalAll();
 			resultLock.unlock();
-			notify(result);
-			return true;
 		}
-		else
+		notify(result);
+		return true;
+	}
+	
+	/**
+	 * Completes the computation with a failure: the waiting threads get an
+	 * ExecutionException and the observers are notified of the failure
+	 * @param e the cause of the failure
+	 * @return false if the computation was already completed
+	 */
+	public boolean setFailure(Exception e)
+	{
+		resultLock.lock();
+		try
+		{
+			if (isDone)
+				return false;
+			failure = e;
+			isDone = true;
+			resultCondition.signalAll();
+		}
+		finally
 		{
-			return false;
+			resultLock.unlock();
 		}
+		notifyFailure(e);
+		return true;
 	}
 	
 	/**
@@ -3,6 +3,7 @@ package unito.likir.io;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Collection;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.io.IOException;
 
@@ -69,7 +70,9 @@ public class PutManager extends ObservableFutureTask<Integer>
 		Collection<Contact> nearestToKey = null;
 		try
 		{
-			LookupManager manager = (LookupManager) node.lookup(key);
+			//the lookup runs in this thread: waiting for it on the same pool could exhaust the pool
+			LookupManager manager = new LookupManager(node, key);
+			manager.run();
 			nearestToKey =  manager.get();
 			steps = manager.getSteps();
 		}
@@ -77,10 +80,10 @@ public class PutManager extends ObservableFutureTask<Integer>
 		{
 			set(storeCounter);//TODO: gestisci meglio
 		}
-		/*catch (ExecutionException ee)
+		catch (ExecutionException ee)
 		{
 			set(storeCounter);//TODO: gestisci meglio
-		}*/
+		}
 		
 		if (nearestToKey == null)
 		{
@@ -119,7 +122,7 @@ public class PutManager extends ObservableFutureTask<Integer>
 			{
 				try
 				{
-					msg = futureMsg.get(TIME_OUT, Settings.DEFAULT_TIME_UNIT);
+					msg = futureMsg.get(ClientSessionManager.TIME_OUT_STEPS * TIME_OUT, Settings.DEFAULT_TIME_UNIT);
 					resp = (StoreResponse)msg.getRPC();
 					if (resp.getStoreResult())
 						storeCounter++;
@@ -154,7 +157,7 @@ public class PutManager extends ObservableFutureTask<Integer>
 			{
 				try
 				{
-					msg = futureMsg.get(TIME_OUT, Settings.DEFAULT_TIME_UNIT);
+					msg = futureMsg.get(ClientSessionManager.TIME_OUT_STEPS * TIME_OUT, Settings.DEFAULT_TIME_UNIT);
 					resp = (StoreResponse)msg.getRPC();
 					if (resp.getStoreResult())
 						storeCounter++;
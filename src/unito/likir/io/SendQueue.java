@@ -0,0 +1,275 @@
+package unito.likir.io;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The pipeline of the outgoing datagrams. Any thread can enqueue an encoded datagram
+ * without locking (the queue is a lock-free multi producer, single consumer queue),
+ * while a single writer thread drains the queue to the non-blocking channel in batches.
+ * When the socket buffer is full the writer waits on a selector until the channel is
+ * writable again. When the queue is full new datagrams are dropped, as a congested
+ * network would do.
+ */
+public class SendQueue implements Runnable
+{
+	private static final long RATE_WINDOW = 1000; //interval of the throughput measure (in milliseconds)
+
+	private final DatagramChannel channel;
+	private final Queue<Frame> frames;
+	private final AtomicInteger depth; //number of queued frames
+	private final int capacity;
+	private final int batchSize; //frames written before the writer checks its state
+	private final AtomicBoolean waiting; //the writer is parked, waiting for frames
+	private volatile Thread writer;
+	private volatile boolean closed;
+	private Selector selector; //used by the writer when the channel is not writable
+
+	private final AtomicLong dropped;
+	private final AtomicLong sent;
+	private final AtomicLong sentBytes;
+	private volatile long bytesPerSecond;
+	private long windowStart; //only used by the writer
+	private long windowBytes; //only used by the writer
+
+	/**
+	 * Create a new SendQueue
+	 * @param channel the non-blocking channel
+	 * @param capacity the maximum number of queued datagrams
+	 * @param batchSize the number of datagrams written in a row by the writer
+	 */
+	public SendQueue(DatagramChannel channel, int capacity, int batchSize)
+	{
+		if (capacity <= 0 || batchSize <= 0)
+			throw new IllegalArgumentException("Invalid send queue parameters");
+		this.channel = channel;
+		this.frames = new ConcurrentLinkedQueue<Frame>();
+		this.depth = new AtomicInteger(0);
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.waiting = new AtomicBoolean(false);
+		this.dropped = new AtomicLong(0);
+		this.sent = new AtomicLong(0);
+		this.sentBytes = new AtomicLong(0);
+	}
+
+	/**
+	 * Enqueue a datagram. The buffer must not be modified afterwards
+	 * @param data the content of the datagram (its remaining bytes)
+	 * @param target the addressee
+	 * @return false if the datagram has been dropped because the queue is full or closed
+	 */
+	public boolean offer(ByteBuffer data, SocketAddress target)
+	{
+		if (closed || depth.incrementAndGet() > capacity)
+		{
+			if (!closed)
+				depth.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		frames.offer(new Frame(data, target));
+		if (waiting.get() && waiting.compareAndSet(true, false))
+			LockSupport.unpark(writer);
+		return true;
+	}
+
+	/**
+	 * The writer loop: drains the queue until the queue is closed
+	 */
+	public void run()
+	{
+		writer = Thread.currentThread();
+		windowStart = System.currentTimeMillis();
+		try
+		{
+			selector = Selector.open();
+			channel.register(selector, 0);
+			while (!closed)
+			{
+				if (drain() == 0)
+				{
+					waiting.set(true);
+					if (frames.isEmpty() && !closed)
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RATE_WINDOW));
+					waiting.set(false);
+				}
+				updateRate();
+			}
+		}
+		catch (ClosedChannelException cce)
+		{
+			//the node is shutting down
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("SendQueue: writer stopped - " + ioe.getMessage());
+		}
+		finally
+		{
+			closed = true;
+			try
+			{
+				if (selector != null)
+					selector.close();
+			}
+			catch (IOException ioe)
+			{
+			}
+		}
+	}
+
+	//writes up to batchSize frames, returns the number of frames written
+	private int drain() throws IOException
+	{
+		int count = 0;
+		Frame frame;
+		while (count < batchSize && !closed && (frame = frames.peek()) != null)
+		{
+			int written;
+			try
+			{
+				written = channel.send(frame.data, frame.target);
+			}
+			catch (ClosedChannelException cce)
+			{
+				throw cce;
+			}
+			catch (IOException ioe)
+			{
+				written = -1; //e.g. unreachable addressee: the frame is dropped
+			}
+			catch (RuntimeException re)
+			{
+				written = -1; //e.g. unresolved address
+			}
+			if (written == 0)
+			{
+				awaitWritable(); //the socket buffer is full
+				continue;
+			}
+			frames.poll();
+			depth.decrementAndGet();
+			if (written < 0)
+			{
+				dropped.incrementAndGet();
+			}
+			else
+			{
+				sent.incrementAndGet();
+				sentBytes.addAndGet(written);
+				windowBytes += written;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private void awaitWritable() throws IOException
+	{
+		SelectionKey key = channel.keyFor(selector);
+		key.interestOps(SelectionKey.OP_WRITE);
+		selector.select(RATE_WINDOW);
+		selector.selectedKeys().clear();
+		key.interestOps(0);
+	}
+
+	private void updateRate()
+	{
+		long now = System.currentTimeMillis();
+		long elapsed = now - windowStart;
+		if (elapsed >= RATE_WINDOW)
+		{
+			bytesPerSecond = windowBytes * 1000 / elapsed;
+			windowBytes = 0;
+			windowStart = now;
+		}
+	}
+
+	/**
+	 * Stop the writer. The queued datagrams are discarded
+	 */
+	public void close()
+	{
+		closed = true;
+		Thread w = writer;
+		if (w != null)
+			LockSupport.unpark(w);
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+
+	/**
+	 * Returns the number of datagrams waiting to be written
+	 * @return the queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return depth.get();
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of datagrams dropped because the queue was full or because
+	 * the channel refused them
+	 * @return the dropped datagrams
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public long getSentCount()
+	{
+		return sent.get();
+	}
+
+	public long getSentBytes()
+	{
+		return sentBytes.get();
+	}
+
+	/**
+	 * Returns the throughput of the writer measured over the last second
+	 * @return the bytes written per second
+	 */
+	public long getBytesPerSecond()
+	{
+		return bytesPerSecond;
+	}
+
+	public String toString()
+	{
+		return "SendQueue - queue=" + depth.get() + "/" + capacity + ", sent=" + sent.get() + " (" + sentBytes.get() +
+				" bytes), dropped=" + dropped.get() + ", rate=" + bytesPerSecond + " bytes/s";
+	}
+
+	private static class Frame
+	{
+		final ByteBuffer data;
+		final SocketAddress target;
+
+		Frame(ByteBuffer data, SocketAddress target)
+		{
+			this.data = data;
+			this.target = target;
+		}
+	}
+}
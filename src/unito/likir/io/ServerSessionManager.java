@@ -1,19 +1,18 @@
 package unito.likir.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import unito.likir.Node;
 import unito.likir.NodeId;
 import unito.likir.exceptions.TaskException;
 import unito.likir.messages.dht.DHTMessage;
+import unito.likir.messages.dht.MessageCodec;
 import unito.likir.messages.dht.FindRequest;
 import unito.likir.messages.dht.FindValueRequest;
 import unito.likir.messages.dht.Nonce;
@@ -24,12 +23,19 @@ import unito.likir.messages.dht.RPC.OpCode;
 import unito.likir.routing.Contact;
 import unito.likir.routing.ContactImpl;
 import unito.likir.routing.RouteTable.SelectMode;
+import unito.likir.security.CookieManager;
 import unito.likir.settings.PropFinder;
 import unito.likir.settings.Settings;
 import unito.likir.storage.MultiplePutContent;
 import unito.likir.storage.StorageEntry;
 //import unito.likir.test.Logger;
 
+/**
+ * Manager of a session opened by another node. run() answers the nonce request
+ * and returns: the session is completed by handle() in the thread which delivers
+ * the RPC request, or expired by the timer wheel of the node if the request
+ * doesn't arrive in time
+ */
 public class ServerSessionManager implements SessionManager, Runnable
 {
 	protected Node node;
@@ -41,6 +47,9 @@ public class ServerSessionManager implements SessionManager, Runnable
 	protected final int TIME_OUT;
 	protected long sid; //session ID
 	protected SocketAddress client;
+	private RPCMessage cookieRequest; //RPC request received with a cookie, outside of a session
+	private boolean done; //the RPC has been served or the session has expired
+	private TimerWheel.Timeout timeout; //expires the session if the RPC doesn't arrive in time
 	
 	public ServerSessionManager(Node node, SocketAddress client, Nonce receivedNonce)
 	{
@@ -50,6 +59,77 @@ public class ServerSessionManager implements SessionManager, Runnable
 		this.receivedNonce = receivedNonce;
 		this.messageDispatcher = node.getMessageDispatcher();
 		this.TIME_OUT = Integer.parseInt(PropFinder.get(Settings.TIME_OUT));
+		this.done = false;
+	}
+	
+	/**
+	 * Create a manager for an RPC request sent with a cookie in stateless RPC mode.
+	 * The nonce of the client is the one carried by the request
+	 * (see isCookieRequest() and handleCookieRequest())
+	 */
+	public ServerSessionManager(Node node, SocketAddress client, RPCMessage cookieRequest)
+	{
+		this(node, client, new Nonce(cookieRequest.getAuthNodeId().getContent().getNodeId(), cookieRequest.getClientNonce(), cookieRequest.getSid(), true));
+		this.cookieRequest = cookieRequest;
+	}
+	
+	/**
+	 * Returns whether a message received outside of a session is an RPC request sent with a cookie
+	 * @param message the received message
+	 * @return true if the message can be handled by handleCookieRequest()
+	 */
+	public static boolean isCookieRequest(DHTMessage message)
+	{
+		if (!message.getMsgOpCode().isRPCMessageRequest())
+			return false;
+		byte[] clientNonce = ((RPCMessage)message).getClientNonce();
+		return clientNonce != null && clientNonce.length == CookieManager.COOKIE_LENGTH;
+	}
+	
+	/**
+	 * Serves an RPC request sent with a cookie in the thread of the caller, without
+	 * registering a session. If the cookie is not valid (e.g. it is expired) a new
+	 * session is started, sending a fresh cookie as nonce response: the client
+	 * sends the RPC again in that session.
+	 */
+	public void handleCookieRequest()
+	{
+		CookieManager cookies = node.getSecurityAgent().getCookieManager();
+		byte[] cookie = cookieRequest.getAuthenticator().getContent().getNonce();
+		if (!cookies.check(cookie, receivedNonce.getSender()))
+		{
+			if (node.getServerExecutor().shouldShed())
+				return;
+			try
+			{
+				node.getServerExecutor().execute(this);
+			}
+			catch (RejectedExecutionException ree)
+			{
+				//the server pool is full: the session is dropped
+			}
+			return;
+		}
+		
+		if (node.getBlacklist().contains(cookieRequest.getAuthNodeId().getContent().getUser()))
+			return;
+		//the cookie plays the role of the nonce sent by this node
+		sentNonce = new Nonce(node.getNodeId(), cookie, sid, false);
+		sentNonce.setCookie(true);
+		if (!node.getSecurityAgent().check(cookieRequest, receivedNonce, sentNonce))
+		{
+			System.err.println(node.getUserId() + " - ServerManager : message check failed! \n " + cookieRequest);
+			return;
+		}
+		//a cookie can be used many times: a valid request is served once per session
+		if (!cookies.markServed(sid, cookie))
+		{
+			System.err.println(node.getUserId() + " - ServerManager : replayed request in session " + sid);
+			return;
+		}
+		receivedRPC = cookieRequest;
+		refreshRouteTable(receivedRPC);
+		sendRPC();
 	}
 	
 	public RPCMessage getReceivedRPC()
@@ -82,6 +162,11 @@ public class ServerSessionManager implements SessionManager, Runnable
 		this.sentNonce = sentNonce;
 	}
 
+	public SocketAddress getPeerAddress()
+	{
+		return client;
+	}
+
 	public Nonce getReceivedNonce()
 	{
 		return receivedNonce;
@@ -110,16 +195,25 @@ public class ServerSessionManager implements SessionManager, Runnable
 				//security checks are passed
 				if (node.getSecurityAgent().check(receivedMessage,receivedNonce,sentNonce))
 				{
+					//the cookie could be used to replay this request outside of the session
+					if (sentNonce.isCookie() && !node.getSecurityAgent().getCookieManager().markServed(sid, sentNonce.getNonce()))
+						return;
 					//System.out.println(node.getUserId() + " - ServerManager : Security check OK");
 					//System.out.println(node.getUserId() + " - ServerManager : setting result: \n" + receivedMessage);
 					synchronized(this)
 					{
+						if (done)
+							return; //duplicate request or expired session
 						receivedRPC = receivedMessage; //set the received RPC
-						this.notifyAll(); //wakeup
+						done = true;
+						if (timeout != null)
+							timeout.cancel();
 					}
 					//System.out.println(node.getUserId() + " - ServerManager : HandlED \n" + receivedMessage);
 					//refresh the route table entries
 					refreshRouteTable(receivedRPC);
+					//the response is sent by the thread which delivered the request
+					sendRPC();
 				}
 				else
 				{
@@ -148,8 +242,6 @@ public class ServerSessionManager implements SessionManager, Runnable
 	public void run()
 	{
 		sendNonce();
-		if (receiveRPC())
-			sendRPC();
 	}
 	
 	private void sendNonce()
@@ -158,12 +250,22 @@ public class ServerSessionManager implements SessionManager, Runnable
 		DatagramPacket packet = null; //UDP packet
 		
 		//generates a new nonce
-		sentNonce = new Nonce(node.getNodeId(),sid,false);
+		if (messageDispatcher.isStatelessRpc())
+		{
+			//the nonce is a cookie the client can reuse for its next RPCs
+			byte[] cookie = node.getSecurityAgent().getCookieManager().create(receivedNonce.getSender());
+			sentNonce = new Nonce(node.getNodeId(),cookie,sid,false);
+			sentNonce.setCookie(true);
+		}
+		else
+		{
+			sentNonce = new Nonce(node.getNodeId(),sid,false);
+		}
 		
 		//Builds the UDP packet
 		try
 		{
-			payload = serialize(sentNonce);
+			payload = MessageCodec.encode(sentNonce);
 			packet = new DatagramPacket(payload,payload.length,client);
 		}
 		catch (SocketException se)
@@ -180,6 +282,10 @@ public class ServerSessionManager implements SessionManager, Runnable
 		}
 		
 		//Sends the Nonce
+		synchronized(this)
+		{
+			timeout = node.getTimerWheel().schedule(new SessionTimeout(), TIME_OUT, Settings.DEFAULT_TIME_UNIT);
+		}
 		messageDispatcher.addSessionHandler(sid,this);
 		try
 		{
@@ -189,40 +295,34 @@ public class ServerSessionManager implements SessionManager, Runnable
 		catch (IOException ioe)
 		{
 			TaskException e = new TaskException("ServerManager : Error in sending UDP packet");
-			messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
+			expire();
 			throw e;
 		}
 	}
 	
-	private boolean receiveRPC()
+	/*
+	 * Called by the timer wheel of the node when the RPC request didn't arrive in time.
+	 * Runs in the thread of the wheel, so it must not block
+	 */
+	private void expire()
 	{
-		try
+		synchronized(this)
 		{
-			synchronized(this)
-			{
-				if (receivedRPC == null)
-				{
-					//System.out.println(node.getUserId() + " - ServerManager :  waiting for RPC in session " + sid);
-					this.wait(TIME_OUT);
-				}
-			}
-			if (receivedRPC == null)
-			{
-				////System.err.println(node.getUserId() + " - ServerManager : incoming RPC time out in session " + sid);
-							
-				messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
-				return false;
-			}
-			else
-			{
-				return true;
-			}
+			if (done)
+				return;
+			done = true;
+			if (timeout != null)
+				timeout.cancel();
 		}
-		catch(InterruptedException ie)
+		////System.err.println(node.getUserId() + " - ServerManager : incoming RPC time out in session " + sid);
+		messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
+	}
+	
+	private class SessionTimeout implements Runnable
+	{
+		public void run()
 		{
-			Object x = messageDispatcher.removeSessionHandler(sid); //unregister from the message dispatcher
-			System.err.println(node.getUserId() + " interrupted while waiting for response - removed " + x);
-			return false;
+			expire();
 		}
 	}
 	
@@ -253,22 +353,6 @@ public class ServerSessionManager implements SessionManager, Runnable
 		messageDispatcher.removeSessionHandler(sid);//unregister from the message dispatcher
 	}
 	
-	private byte[] serialize(Serializable msg) throws IOException
-	{
-		//compose the UDP packet to be sent
-		byte[] data;
-
-	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	    ObjectOutputStream oos = new ObjectOutputStream(bos);
-	    oos.writeObject(msg);
-	    oos.flush();
-	    data = bos.toByteArray();
-	    oos.close();
-	    bos.close();
-
-	    return data;
-	}
-
 	private void handlePingRequest(RPCMessage received)
 	{
 		RPCMessageFactory messageFactory = node.getMessageFactory();
@@ -277,7 +361,7 @@ public class ServerSessionManager implements SessionManager, Runnable
 		RPCMessage response = messageFactory.createPingResponse(addressee,sid, nonce);
 		try
 		{
-			byte[] payload = serialize(response);
+			byte[] payload = MessageCodec.encode(response);
 			DatagramPacket packet = new DatagramPacket(payload,payload.length,client);
 			//System.out.println(node.getUserId() + " sending Ping RPC message response : sid " + sid);
 			
@@ -301,7 +385,7 @@ public class ServerSessionManager implements SessionManager, Runnable
 		RPCMessage response = messageFactory.createFindNodeResponse(addressee,sid,nonce,contacts);
 		try
 		{
-			byte[] payload = serialize(response);
+			byte[] payload = MessageCodec.encode(response);
 			DatagramPacket packet = new DatagramPacket(payload,payload.length,client);
 			//System.out.println(node + " - SEND RESPONSE: \n"+ response);
 			//System.out.println("----------------------------------------------");
@@ -351,7 +435,7 @@ public class ServerSessionManager implements SessionManager, Runnable
 			RPCMessage response = messageFactory.createFindValueResponse(addressee, sid, nonce, contacts, entries, counters);
 			try
 			{
-				byte[] payload = serialize(response);
+				byte[] payload = MessageCodec.encode(response);
 				DatagramPacket packet = new DatagramPacket(payload,payload.length,client);
 				//System.out.println(node + " - SEND RESPONSE: \n"+ response);
 				//System.out.println("----------------------------------------------");
@@ -392,32 +476,38 @@ public class ServerSessionManager implements SessionManager, Runnable
 		else
 		{
 			storeResult = true;
-			byte[][] contents;
-			String[] types;
-			long[] ttls;
 			long ts;
 			NodeId key;
 			String owner;
-			for (StorageEntry entry : entries)
+			byte[][] batches = new byte[entries.length][];
+			try
 			{
-				MultiplePutContent mpc = MultiplePutContent.createFromBytes(entry.getContent().getValue());
-				key = entry.getKey();
-				owner = entry.getOwnerId();
-				contents = mpc.getContent();
-				types = mpc.getType();
-				ttls = mpc.getTtl();
-				ts = entry.getSubmissionTime();
-				
-				if (contents.length != types.length || contents.length != ttls.length || types.length != ttls.length)
-					storeResult = false;
-				else
+				//the batches are checked first, so that a malformed one stores nothing
+				for (int i = 0; i < entries.length; i++)
 				{
-					for (int i=0; i< contents.length; i++)
-					{
-						StorageEntry se =node.getEntryFactory().buildUnsignedStorageEntry(key, contents[i], types[i], ts, ttls[i], owner);
-						if (! node.getStorage().store(se))
-							storeResult = false;
-					}
+					batches[i] = entries[i].getContent().getValue();
+					MultiplePutContent.Cursor cursor = MultiplePutContent.cursor(batches[i]);
+					while (cursor.next());
+				}
+			}
+			catch (IllegalArgumentException iae)
+			{
+				System.err.println(node.getNodeId() + " malformed multiple put content - " + iae.getMessage());
+				storeResult = false;
+				batches = null;
+			}
+			for (int i = 0; batches != null && i < entries.length; i++)
+			{
+				key = entries[i].getKey();
+				owner = entries[i].getOwnerId();
+				ts = entries[i].getSubmissionTime();
+				//every content is stored straight from the batch
+				MultiplePutContent.Cursor cursor = MultiplePutContent.cursor(batches[i]);
+				while (cursor.next())
+				{
+					StorageEntry se = node.getEntryFactory().buildUnsignedStorageEntry(key, cursor.getValue(), cursor.getType(), ts, cursor.getTtl(), owner);
+					if (! node.getStorage().store(se))
+						storeResult = false;
 				}
 			}
 		}
@@ -429,7 +519,7 @@ public class ServerSessionManager implements SessionManager, Runnable
 		RPCMessage response = messageFactory.createStoreResponse(addressee, sid, nonce, storeResult);
 		try
 		{
-			byte[] payload = serialize(response);
+			byte[] payload = MessageCodec.encode(response);
 			DatagramPacket packet = new DatagramPacket(payload,payload.length,client);
 			//System.out.println(node + " - SEND RESPONSE: \n"+ response);
 			//System.out.println("----------------------------------------------");
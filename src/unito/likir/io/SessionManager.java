@@ -1,5 +1,7 @@
 package unito.likir.io;
 
+import java.net.SocketAddress;
+
 import unito.likir.messages.dht.DHTMessage;
 import unito.likir.messages.dht.Nonce;
 import unito.likir.messages.dht.RPCMessage;
@@ -25,4 +27,10 @@ public interface SessionManager
 
 	
 	public void handle(DHTMessage received);
+	
+	/**
+	 * Returns the address of the other node of the session
+	 * @return the address, null if not known yet
+	 */
+	public SocketAddress getPeerAddress();
 }
@@ -0,0 +1,293 @@
+package unito.likir.io;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A concurrent hash table keyed by primitive longs (the session IDs), based on open
+ * addressing with linear probing. Lookups never lock. Insertions and removals claim
+ * slots with CAS and share a read lock, which is taken exclusively only while the
+ * table is rebuilt.
+ * A slot, once claimed by a key, keeps that key until the next rebuild: removing
+ * a key only clears its value. Since session IDs are random and are used only once,
+ * the table is rebuilt (and resized on the number of live entries) whenever half
+ * of its slots have been claimed.
+ */
+public class SessionTable<V>
+{
+	private static final int MIN_CAPACITY = 64;
+	private static final long FREE = 0L; //key of the unclaimed slots, the key 0 is kept apart
+
+	private volatile Table<V> table;
+	private final AtomicReference<V> zeroValue; //value of the key 0
+	private final AtomicInteger size; //number of live entries
+	private final ReadWriteLock rebuildLock;
+
+	/**
+	 * Create a new SessionTable
+	 * @param initialCapacity the expected number of live entries
+	 */
+	public SessionTable(int initialCapacity)
+	{
+		this.table = new Table<V>(capacityFor(initialCapacity));
+		this.zeroValue = new AtomicReference<V>();
+		this.size = new AtomicInteger(0);
+		this.rebuildLock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Returns the value of a key, without locking
+	 * @param key the key
+	 * @return the value, or null if the key is not in the table
+	 */
+	public V get(long key)
+	{
+		if (key == FREE)
+			return zeroValue.get();
+		Table<V> t = table;
+		int mask = t.mask;
+		for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++)
+		{
+			long k = t.keys.get(i);
+			if (k == key)
+				return t.values.get(i);
+			if (k == FREE)
+				return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Associate a value with a key
+	 * @param key the key
+	 * @param value the value (not null)
+	 * @return the previous value of the key, or null
+	 */
+	public V put(long key, V value)
+	{
+		if (value == null)
+			throw new NullPointerException("The value is null!");
+		if (key == FREE)
+		{
+			V old = zeroValue.getAndSet(value);
+			if (old == null)
+				size.incrementAndGet();
+			return old;
+		}
+		while (true)
+		{
+			Table<V> t;
+			int slot;
+			V old = null;
+			rebuildLock.readLock().lock();
+			try
+			{
+				t = table;
+				slot = claim(t, key);
+				if (slot >= 0)
+				{
+					old = t.values.getAndSet(slot, value);
+					if (old == null)
+						size.incrementAndGet();
+				}
+			}
+			finally
+			{
+				rebuildLock.readLock().unlock();
+			}
+			if (slot < 0 || t.claimed.get() > (t.mask + 1) / 2)
+				rebuild(); //the lock must not be held here
+			if (slot >= 0)
+				return old;
+		}
+	}
+
+	/**
+	 * Remove a key from the table
+	 * @param key the key
+	 * @return the value of the key, or null if the key was not in the table
+	 */
+	public V remove(long key)
+	{
+		if (key == FREE)
+		{
+			V old = zeroValue.getAndSet(null);
+			if (old != null)
+				size.decrementAndGet();
+			return old;
+		}
+		rebuildLock.readLock().lock();
+		try
+		{
+			Table<V> t = table;
+			int slot = find(t, key);
+			if (slot < 0)
+				return null;
+			V old = t.values.getAndSet(slot, null);
+			if (old != null)
+				size.decrementAndGet();
+			return old;
+		}
+		finally
+		{
+			rebuildLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the table
+	 * @return the size
+	 */
+	public int size()
+	{
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of slots of the table
+	 * @return the capacity
+	 */
+	public int capacity()
+	{
+		return table.mask + 1;
+	}
+
+	/**
+	 * Returns a copy of the content of the table. The copy is not an atomic
+	 * snapshot when the table is modified concurrently
+	 * @return a map with the entries of the table
+	 */
+	public Map<Long,V> toMap()
+	{
+		Map<Long,V> map = new HashMap<Long,V>();
+		V zero = zeroValue.get();
+		if (zero != null)
+			map.put(FREE, zero);
+		Table<V> t = table;
+		for (int i = 0; i <= t.mask; i++)
+		{
+			long k = t.keys.get(i);
+			V v = t.values.get(i);
+			if (k != FREE && v != null)
+				map.put(k, v);
+		}
+		return map;
+	}
+
+	//returns the slot of key, claiming a free one if needed, or -1 if the table is full
+	private int claim(Table<V> t, long key)
+	{
+		int mask = t.mask;
+		for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++)
+		{
+			long k = t.keys.get(i);
+			if (k == FREE)
+			{
+				if (t.keys.compareAndSet(i, FREE, key))
+				{
+					t.claimed.incrementAndGet();
+					return i;
+				}
+				k = t.keys.get(i); //another thread claimed the slot
+			}
+			if (k == key)
+				return i;
+		}
+		return -1;
+	}
+
+	//returns the slot of key, or -1 if the key has no slot
+	private int find(Table<V> t, long key)
+	{
+		int mask = t.mask;
+		for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++)
+		{
+			long k = t.keys.get(i);
+			if (k == key)
+				return i;
+			if (k == FREE)
+				return -1;
+		}
+		return -1;
+	}
+
+	//moves the live entries to a new table sized on their number
+	private void rebuild()
+	{
+		rebuildLock.writeLock().lock();
+		try
+		{
+			Table<V> old = table;
+			if (old.claimed.get() <= (old.mask + 1) / 2)
+				return; //already rebuilt by another thread
+			int live = 0;
+			for (int i = 0; i <= old.mask; i++)
+			{
+				if (old.values.get(i) != null)
+					live++;
+			}
+			Table<V> t = new Table<V>(capacityFor(live));
+			for (int i = 0; i <= old.mask; i++)
+			{
+				V v = old.values.get(i);
+				if (v != null)
+				{
+					int slot = claim(t, old.keys.get(i));
+					t.values.set(slot, v);
+				}
+			}
+			table = t;
+		}
+		finally
+		{
+			rebuildLock.writeLock().unlock();
+		}
+	}
+
+	//a power of two keeping the live entries under a quarter of the slots
+	private static int capacityFor(int entries)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < entries * 4 && capacity < (1 << 30))
+			capacity <<= 1;
+		return capacity;
+	}
+
+	//the finalizer of MurmurHash3: spreads the bits of the key over the table index
+	private static int hash(long key)
+	{
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	private static class Table<V>
+	{
+		final AtomicLongArray keys;
+		final AtomicReferenceArray<V> values;
+		final AtomicInteger claimed; //number of slots holding a key
+		final int mask;
+
+		Table(int capacity)
+		{
+			this.keys = new AtomicLongArray(capacity);
+			this.values = new AtomicReferenceArray<V>(capacity);
+			this.claimed = new AtomicInteger(0);
+			this.mask = capacity - 1;
+		}
+	}
+
+	public String toString()
+	{
+		return "SessionTable - size=" + size.get() + ", capacity=" + capacity();
+	}
+}
@@ -0,0 +1,126 @@
+package unito.likir.io;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The kind of threads run by the thread pools of a Node.
+ * Virtual threads need a Java 21 runtime: they are created by reflection, so the
+ * code still compiles for older releases, and PLATFORM threads are used when they
+ * are not available.
+ */
+public enum ThreadMode
+{
+	PLATFORM,
+	VIRTUAL;
+
+	/**
+	 * Returns the mode named by a setting value (case insensitive)
+	 * @param value the setting value, null means PLATFORM
+	 * @return the thread mode
+	 */
+	public static ThreadMode parse(String value)
+	{
+		if (value == null)
+			return PLATFORM;
+		return valueOf(value.trim().toUpperCase());
+	}
+
+	/**
+	 * Returns whether the running JVM supports virtual threads
+	 * @return true if VIRTUAL threads can be created
+	 */
+	public static boolean isVirtualSupported()
+	{
+		return VirtualFactory.OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Returns the mode actually used when this mode is requested
+	 * @return VIRTUAL if this mode is VIRTUAL and the JVM supports it, otherwise PLATFORM
+	 */
+	public ThreadMode effective()
+	{
+		if (this == VIRTUAL && isVirtualSupported())
+			return VIRTUAL;
+		return PLATFORM;
+	}
+
+	/**
+	 * Create a factory of threads of this mode
+	 * @param name the prefix of the thread names
+	 * @return the thread factory
+	 */
+	public ThreadFactory newThreadFactory(String name)
+	{
+		if (effective() == VIRTUAL)
+		{
+			ThreadFactory factory = VirtualFactory.create(name);
+			if (factory != null)
+				return factory;
+		}
+		return new NamedThreadFactory(name);
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count;
+
+		NamedThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+			this.count = new AtomicInteger(0);
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, prefix + "-" + count.incrementAndGet());
+		}
+	}
+
+	//Thread.ofVirtual().name(prefix, 1).factory(), looked up once
+	private static class VirtualFactory
+	{
+		static final Method OF_VIRTUAL;
+		static final Method NAME;
+		static final Method FACTORY;
+
+		static
+		{
+			Method ofVirtual = null;
+			Method name = null;
+			Method factory = null;
+			try
+			{
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class, long.class);
+				factory = builder.getMethod("factory");
+			}
+			catch (Exception e)
+			{
+				ofVirtual = null; //not a Java 21 runtime
+			}
+			OF_VIRTUAL = ofVirtual;
+			NAME = name;
+			FACTORY = factory;
+		}
+
+		static ThreadFactory create(String prefix)
+		{
+			try
+			{
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = NAME.invoke(builder, prefix + "-", 1L);
+				return (ThreadFactory)FACTORY.invoke(builder);
+			}
+			catch (Exception e)
+			{
+				System.err.println("ThreadMode: can't create virtual threads, using platform threads - " + e);
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package unito.likir.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timer wheel expiring the sessions of a node with a single thread.
+ * Time is divided in ticks; a timeout is put in the bucket of the tick in which
+ * it expires (modulo the wheel size) together with the number of whole rotations
+ * it still has to wait. At each tick the worker thread visits one bucket and runs
+ * the tasks that are due. Scheduling and cancelling cost O(1) and no thread is
+ * held by a pending timeout, at the price of a precision of one tick.
+ * Expired tasks run in the worker thread, so they must be short and must not block.
+ */
+public class TimerWheel implements Runnable
+{
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> added; //timeouts scheduled since the last tick
+	private final AtomicInteger pending; //timeouts scheduled and not yet expired or cancelled
+	private final AtomicLong expired;
+	private final String name;
+	private volatile Thread worker;
+	private volatile boolean stopped;
+	private long startTime; //nanoTime of tick 0
+	private long tick; //only used by the worker
+
+	/**
+	 * Create a new TimerWheel
+	 * @param name the name of the worker thread
+	 * @param tickDuration the duration of a tick
+	 * @param unit the time unit of tickDuration
+	 * @param wheelSize the number of buckets (rounded up to a power of two)
+	 */
+	public TimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize)
+	{
+		if (tickDuration <= 0 || wheelSize <= 0 || wheelSize > (1 << 30))
+			throw new IllegalArgumentException("Invalid timer wheel parameters");
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		this.mask = size - 1;
+		this.added = new ConcurrentLinkedQueue<Timeout>();
+		this.pending = new AtomicInteger(0);
+		this.expired = new AtomicLong(0);
+		this.name = name;
+	}
+
+	/**
+	 * Schedule a task. The worker thread is started by the first call
+	 * @param task the task to run when the delay expires
+	 * @param delay the delay
+	 * @param unit the time unit of delay
+	 * @return the handle of the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		if (task == null)
+			throw new NullPointerException("The task is null!");
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+		if (stopped)
+		{
+			timeout.state.set(Timeout.CANCELLED); //the node is shutting down: the task will never run
+			return timeout;
+		}
+		pending.incrementAndGet();
+		added.offer(timeout);
+		return timeout;
+	}
+
+	private void start()
+	{
+		if (worker != null)
+			return;
+		synchronized(this)
+		{
+			if (worker == null && !stopped)
+			{
+				startTime = System.nanoTime();
+				Thread t = new Thread(this, name);
+				t.setDaemon(true);
+				worker = t;
+				t.start();
+			}
+		}
+	}
+
+	/**
+	 * Stop the worker thread. Pending tasks are discarded
+	 */
+	public void stop()
+	{
+		stopped = true;
+		Thread t = worker;
+		if (t != null)
+			t.interrupt();
+	}
+
+	/**
+	 * Returns the number of scheduled timeouts not yet expired nor cancelled
+	 * @return the pending timeouts
+	 */
+	public int getPendingCount()
+	{
+		return pending.get();
+	}
+
+	/**
+	 * Returns the number of tasks run since the creation of the wheel
+	 * @return the expired timeouts
+	 */
+	public long getExpiredCount()
+	{
+		return expired.get();
+	}
+
+	public void run()
+	{
+		while (!stopped)
+		{
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+				catch (InterruptedException ie)
+				{
+					if (stopped)
+						return;
+				}
+				continue;
+			}
+			transferAdded();
+			expireBucket(wheel[(int)(tick & mask)], deadline);
+			tick++;
+		}
+	}
+
+	//moves the new timeouts to their buckets
+	private void transferAdded()
+	{
+		Timeout timeout;
+		while ((timeout = added.poll()) != null)
+		{
+			if (timeout.state.get() == Timeout.CANCELLED)
+				continue;
+			//ticks elapsed from the start when the timeout expires (never in the past)
+			long expireTick = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1, tick);
+			timeout.rounds = (expireTick - tick) / wheel.length;
+			wheel[(int)(expireTick & mask)].add(timeout);
+		}
+	}
+
+	private void expireBucket(Bucket bucket, long deadline)
+	{
+		Timeout timeout = bucket.head;
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			if (timeout.state.get() == Timeout.CANCELLED)
+			{
+				bucket.remove(timeout);
+			}
+			else if (timeout.rounds <= 0)
+			{
+				bucket.remove(timeout);
+				if (timeout.deadline <= deadline && timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED))
+				{
+					pending.decrementAndGet();
+					expired.incrementAndGet();
+					try
+					{
+						timeout.task.run();
+					}
+					catch (Throwable t)
+					{
+						System.err.println(name + ": timeout task failed - " + t);
+					}
+				}
+				else if (timeout.state.get() == Timeout.WAITING)
+				{
+					added.offer(timeout); //due in a later tick: scheduled again
+				}
+			}
+			else
+			{
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	public String toString()
+	{
+		return name + " - ticks of " + TimeUnit.NANOSECONDS.toMillis(tickNanos) + " ms x " + wheel.length + ", pending=" + pending.get() + ", expired=" + expired.get();
+	}
+
+	/**
+	 * The handle of a scheduled task
+	 */
+	public class Timeout
+	{
+		static final int WAITING = 0;
+		static final int EXPIRED = 1;
+		static final int CANCELLED = 2;
+
+		private final Runnable task;
+		private final long deadline; //nanoTime of the expiration
+		private final AtomicInteger state;
+		private long rounds; //only used by the worker
+		private Timeout prev; //only used by the worker
+		private Timeout next; //only used by the worker
+
+		Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(WAITING);
+		}
+
+		/**
+		 * Cancel the task. The bucket entry is removed lazily by the worker thread
+		 * @return false if the task has already run or has already been cancelled
+		 */
+		public boolean cancel()
+		{
+			if (!state.compareAndSet(WAITING, CANCELLED))
+				return false;
+			pending.decrementAndGet();
+			return true;
+		}
+
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+	}
+
+	//a doubly linked list of timeouts, only used by the worker
+	private static class Bucket
+	{
+		TimerWheel.Timeout head;
+		TimerWheel.Timeout tail;
+
+		void add(TimerWheel.Timeout timeout)
+		{
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+			tail = timeout;
+		}
+
+		void remove(TimerWheel.Timeout timeout)
+		{
+			if (timeout.prev == null)
+				head = timeout.next;
+			else
+				timeout.prev.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.prev;
+			else
+				timeout.next.prev = timeout.prev;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+}
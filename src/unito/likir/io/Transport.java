@@ -0,0 +1,61 @@
+package unito.likir.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The datagram service used by a MessageDispatcher. UdpTransport sends real UDP
+ * datagrams, while InMemoryTransport routes them between the nodes of the same JVM.
+ * Datagrams may be lost, as with UDP: the sessions recover with their timeouts
+ */
+public interface Transport
+{
+	/**
+	 * Returns the address the other nodes use to reach this transport
+	 * @return the local address
+	 */
+	public InetSocketAddress getLocalAddress();
+
+	/**
+	 * Sends a datagram without waiting for it to be delivered
+	 * @param data the content of the datagram (its remaining bytes), it must not be modified afterwards
+	 * @param target the addressee
+	 * @return false if the datagram has been dropped
+	 * @throws IOException if the transport is closed
+	 */
+	public boolean send(ByteBuffer data, SocketAddress target) throws IOException;
+
+	/**
+	 * Receives the incoming datagrams in the calling thread until the transport is closed
+	 * @param receiver the receiver of the datagrams
+	 * @throws IOException if the transport fails
+	 */
+	public void receive(Receiver receiver) throws IOException;
+
+	/**
+	 * Returns whether the transport can still send and receive datagrams
+	 * @return false if the transport has been closed
+	 */
+	public boolean isOpen();
+
+	/**
+	 * Closes the transport: receive() returns and the queued datagrams are discarded
+	 */
+	public void close();
+
+	/**
+	 * The receiver of the incoming datagrams
+	 */
+	public static interface Receiver
+	{
+		/**
+		 * Called for every received datagram
+		 * @param datagram a buffer whose remaining bytes are the datagram. The receiver
+		 * gives it back with BufferPool.release() once decoded
+		 * @param sender the address of the sender
+		 */
+		public void received(ByteBuffer datagram, SocketAddress sender);
+	}
+}
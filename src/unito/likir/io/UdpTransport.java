@@ -0,0 +1,164 @@
+package unito.likir.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * The UDP transport. The datagrams are received from a non-blocking channel by the
+ * thread calling receive(), and sent by the writer thread of a SendQueue
+ */
+public class UdpTransport implements Transport
+{
+	private final InetSocketAddress address;
+	private final DatagramChannel channel;
+	private final BufferPool bufferPool;
+	private final SendQueue sendQueue;
+	private volatile Selector readSelector;
+
+	/**
+	 * Create a new UdpTransport bound to the given address
+	 * @param address the local address
+	 * @param bufferPool the pool of the receive buffers
+	 * @param sendQueueSize the maximum number of queued outgoing datagrams
+	 * @param sendBatchSize the number of datagrams written in a row by the writer thread
+	 * @throws SocketException if the address can't be bound
+	 */
+	public UdpTransport(InetSocketAddress address, BufferPool bufferPool, int sendQueueSize, int sendBatchSize) throws SocketException
+	{
+		this.address = address;
+		this.bufferPool = bufferPool;
+		this.channel = openChannel(address);
+		this.sendQueue = new SendQueue(channel, sendQueueSize, sendBatchSize);
+	}
+
+	private static DatagramChannel openChannel(InetSocketAddress address) throws SocketException
+	{
+		DatagramChannel channel = null;
+		try
+		{
+			channel = DatagramChannel.open();
+			channel.bind(address);
+			channel.configureBlocking(false);
+			return channel;
+		}
+		catch (IOException ioe)
+		{
+			if (channel != null)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+			if (ioe instanceof SocketException)
+				throw (SocketException)ioe;
+			throw new SocketException("UdpTransport: can't bind " + address + " - " + ioe.getMessage());
+		}
+	}
+
+	public InetSocketAddress getLocalAddress()
+	{
+		return address;
+	}
+
+	public boolean send(ByteBuffer data, SocketAddress target) throws IOException
+	{
+		if (!channel.isOpen())
+			throw new IOException("UdpTransport: the channel is closed");
+		return sendQueue.offer(data, target);
+	}
+
+	/**
+	 * Returns the queue of the outgoing datagrams, with its statistics
+	 * (queue depth, drops and throughput)
+	 * @return the send queue
+	 */
+	public SendQueue getSendQueue()
+	{
+		return sendQueue;
+	}
+
+	public void receive(Receiver receiver) throws IOException
+	{
+		Thread writer = new Thread(sendQueue, "likir-sender-" + address.getPort());
+		writer.start();
+		try
+		{
+			readSelector = Selector.open();
+			channel.register(readSelector, SelectionKey.OP_READ);
+			while (true)
+			{
+				//wait for a message to come
+				readSelector.select();
+				readSelector.selectedKeys().clear();
+				//read every datagram available
+				while (true)
+				{
+					//take a buffer from the pool to receive the next incoming UDP datagram
+					ByteBuffer buffer = bufferPool.acquire();
+					SocketAddress sender;
+					try
+					{
+						sender = channel.receive(buffer);
+					}
+					catch (IOException ioe)
+					{
+						bufferPool.release(buffer);
+						throw ioe;
+					}
+					if (sender == null)
+					{
+						bufferPool.release(buffer);
+						break;
+					}
+					buffer.flip();
+					receiver.received(buffer, sender);
+				}
+			}
+		}
+		catch (ClosedSelectorException cse)
+		{
+			//the transport has been closed
+		}
+		finally
+		{
+			sendQueue.close();
+		}
+	}
+
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	public void close()
+	{
+		sendQueue.close();
+		try
+		{
+			channel.close();
+			Selector s = readSelector;
+			if (s != null)
+				s.close();
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("UdpTransport: error while closing the channel");
+		}
+	}
+
+	public String toString()
+	{
+		return "UdpTransport " + address + " - " + sendQueue;
+	}
+}
@@ -172,8 +172,8 @@ public class UnsignedGetManager extends ObservableFutureTask<LinkedList<HashMap<
 			futureReply = replyCouple.second();
 			try
 			{
-				//waits the FIND_NODE responses for a short time
-				reply = (FindValueResponse)(futureReply.get(TIME_OUT, Settings.DEFAULT_TIME_UNIT).getRPC());
+				//waits the FIND_VALUE responses: the session fails if the contact doesn't answer in time
+				reply = (FindValueResponse)(futureReply.get(ClientSessionManager.TIME_OUT_STEPS * TIME_OUT, Settings.DEFAULT_TIME_UNIT).getRPC());
 				
 				if (reply.getContacts() != null)
 				{
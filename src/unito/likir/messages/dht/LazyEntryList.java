@@ -0,0 +1,139 @@
+package unito.likir.messages.dht;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+
+import unito.likir.storage.StorageEntry;
+
+/**
+ * The entries of a received FIND_VALUE response, kept in their binary encoding.
+ * MessageCodec only finds the boundaries of the entries, which are decoded the
+ * first time get() is called: entries which are never read (responses rejected by
+ * the security checks, duplicate or surplus entries) cost no allocation.
+ * The list is a read-only view over the buffer of the message. If that buffer is
+ * going to be reused (a pooled datagram buffer) the list must be detached, which
+ * copies the encoded entries once, before the buffer is released
+ */
+public class LazyEntryList extends AbstractList<StorageEntry> implements Serializable
+{
+	private static final long serialVersionUID = 3307416315826520473L;
+
+	private transient ByteBuffer data; //read-only, the encoded entries
+	private transient boolean shared; //data belongs to a buffer which will be reused
+	private final transient int[] offsets; //start of every entry in data, offsets[size()] is the end
+	private final transient int[] signatures; //start of the signature of every entry, -1 if unsigned
+	private final transient int[] signatureLengths;
+	private final transient StorageEntry[] decoded;
+
+	LazyEntryList(ByteBuffer data, boolean shared, int[] offsets, int[] signatures, int[] signatureLengths)
+	{
+		this.data = data;
+		this.shared = shared;
+		this.offsets = offsets;
+		this.signatures = signatures;
+		this.signatureLengths = signatureLengths;
+		this.decoded = new StorageEntry[signatures.length];
+	}
+
+	public int size()
+	{
+		return decoded.length;
+	}
+
+	/**
+	 * Returns an entry, decoding it if it was never read
+	 * @param index the index of the entry
+	 * @return the entry
+	 * @throws IllegalStateException if the entry is malformed
+	 */
+	public synchronized StorageEntry get(int index)
+	{
+		StorageEntry entry = decoded[index];
+		if (entry == null)
+		{
+			try
+			{
+				entry = MessageCodec.decodeEntry(getEncodedEntry(index));
+			}
+			catch (IOException ioe)
+			{
+				throw new IllegalStateException("LazyEntryList: malformed entry " + index + " - " + ioe.getMessage());
+			}
+			decoded[index] = entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns whether an entry has already been decoded
+	 * @param index the index of the entry
+	 * @return true if get(index) doesn't decode the entry
+	 */
+	public synchronized boolean isDecoded(int index)
+	{
+		return decoded[index] != null;
+	}
+
+	/**
+	 * Returns the signature of the Credentials of an entry without decoding it.
+	 * Two copies of the same entry have the same signature
+	 * @param index the index of the entry
+	 * @return a read-only view of the signature, null if the entry is not signed
+	 */
+	public synchronized ByteBuffer getSignature(int index)
+	{
+		if (signatures[index] < 0)
+			return null;
+		ByteBuffer view = data.duplicate();
+		view.limit(signatures[index] + signatureLengths[index]).position(signatures[index]);
+		return view.slice();
+	}
+
+	/**
+	 * Returns the binary encoding of an entry (see MessageCodec)
+	 * @param index the index of the entry
+	 * @return a read-only view of the encoded entry
+	 */
+	public synchronized ByteBuffer getEncodedEntry(int index)
+	{
+		ByteBuffer view = data.duplicate();
+		view.limit(offsets[index + 1]).position(offsets[index]);
+		return view.slice();
+	}
+
+	/**
+	 * Copies the encoded entries out of the buffer of the message, if that buffer
+	 * is going to be reused. The entries already decoded are kept
+	 */
+	public synchronized void detach()
+	{
+		if (!shared)
+			return;
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data.duplicate());
+		copy.flip();
+		data = copy.asReadOnlyBuffer();
+		shared = false;
+	}
+
+	/*
+	 * Java serialization writes the decoded entries
+	 */
+	private Object writeReplace() throws ObjectStreamException
+	{
+		return new ArrayList<StorageEntry>(this);
+	}
+
+	public synchronized String toString()
+	{
+		int count = 0;
+		for (StorageEntry e : decoded)
+			if (e != null)
+				count++;
+		return "LazyEntryList - entries=" + decoded.length + ", decoded=" + count + ", bytes=" + data.remaining();
+	}
+}
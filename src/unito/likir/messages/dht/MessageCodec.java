@@ -0,0 +1,1207 @@
+package unito.likir.messages.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import unito.likir.NodeId;
+import unito.likir.routing.Contact;
+import unito.likir.routing.ContactImpl;
+import unito.likir.security.AuthNodeId;
+import unito.likir.security.Authenticator;
+import unito.likir.security.Credentials;
+import unito.likir.security.CryptoSuite;
+import unito.likir.security.CryptoSuites;
+import unito.likir.security.KeyShare;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+import unito.likir.storage.Content;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.StorageEntry;
+import unito.likir.util.ByteBufferInputStream;
+
+/**
+ * Encodes and decodes the DHT messages exchanged by the nodes.
+ * The binary format is hand written: a message starts with MAGIC and the format
+ * VERSION, followed by the message opcode and its fields. NodeIds are written as
+ * their 20 raw bytes, numbers as varints, strings, byte arrays and collections are
+ * prefixed by their length (0 means null, otherwise length + 1) and public keys
+ * travel in their X.509 encoding.
+ * Messages produced by Java serialization (the legacy format, selected by the
+ * wireFormat setting) are still decoded: their first byte is 0xAC, which is never MAGIC.
+ * The RPC hash signed in the Authenticator is always computed on the binary encoding
+ * of the RPC, which doesn't depend on the wire format (see encodeRPC()). The RPC is
+ * encoded once by its sender, which hashes and sends the same bytes, and the receiver
+ * hashes the bytes it received (see RPCMessageImpl.getEncodedRPC()).
+ * The entries of a binary FIND_VALUE response are not decoded: they stay in the
+ * received buffer until they are read (see LazyEntryList).
+ * The beginning of an RPC message sent by a node (header and AuthNodeId) is always
+ * the same: RPCMessageFactoryImpl encodes it once as a frame template, which is
+ * copied at the start of every outgoing message.
+ * Since VERSION 2 a flags byte precedes the RPC. The RPCs carrying contents (STORE
+ * requests and FIND_VALUE responses) larger than the compressionThreshold setting are
+ * deflated, if that makes them smaller: the COMPRESSED flag is set and the RPC is
+ * replaced by its length and the deflated bytes. The RPC hash is computed on the
+ * inflated bytes. Version 1 messages, without the flags byte, are still decoded.
+ * In session key mode the SESSION flag is set and the KeyShare of the sender, the
+ * identifier of the KeyShare of the addressee and the MAC of the Authenticator follow
+ * the flags byte. The SESSION flag came with VERSION 3: such messages are sent as
+ * version 3, which the older nodes reject as unsupported, while the other messages
+ * are still sent as version 2 (COMPATIBLE_VERSION), so the nodes not using session
+ * keys keep talking to the older ones
+ */
+public class MessageCodec
+{
+	public static final byte MAGIC = (byte)0xB1;
+	public static final byte VERSION = 3; //the version of the messages with the SESSION flag
+	public static final byte COMPATIBLE_VERSION = 2; //the version of the other messages
+	public static final byte COMPRESSED = 1; //flag: the RPC is deflated
+	public static final byte SESSION = 2; //flag: the session key fields of the Authenticator follow
+	private static final byte JAVA_MAGIC = (byte)0xAC; //first byte of a Java serialization stream
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_COUNT = 1 << 20; //guard against corrupted lengths
+
+	private static final int MAX_CACHED_WRITER = 65536; //larger output buffers are not kept by the threads
+
+	private static volatile Boolean binary; //the wire format, read once from the settings
+	private static volatile Integer compressionThreshold; //negative if compression is disabled
+	private static volatile Integer maxInflatedSize; //max length of an inflated RPC
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+	{
+		protected Deflater initialValue()
+		{
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+	{
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+	private static final ThreadLocal<DecodedKey> decodedKeys = new ThreadLocal<DecodedKey>(); //the last key decoded by a thread
+	private static final ThreadLocal<Writer> writers = new ThreadLocal<Writer>()
+	{
+		protected Writer initialValue()
+		{
+			return new Writer(1024);
+		}
+	};
+
+	private MessageCodec()
+	{
+	}
+
+	/**
+	 * Encodes a message in the wire format selected by the wireFormat setting
+	 * (binary, or java for the legacy Java serialization)
+	 * @param message the message
+	 * @return the encoded message
+	 * @throws IOException if the message can't be encoded
+	 */
+	public static byte[] encode(DHTMessage message) throws IOException
+	{
+		if (isBinaryFormat())
+			return encodeBinary(message);
+		return encodeJava(message);
+	}
+
+	private static boolean isBinaryFormat()
+	{
+		Boolean b = binary;
+		if (b == null)
+		{
+			String format = PropFinder.get(Settings.WIRE_FORMAT);
+			b = Boolean.valueOf(format == null || !format.trim().equalsIgnoreCase("java"));
+			binary = b;
+		}
+		return b.booleanValue();
+	}
+
+	/**
+	 * Returns the minimum length of the compressed RPCs
+	 * @return the threshold in bytes, negative if compression is disabled
+	 */
+	public static int getCompressionThreshold()
+	{
+		Integer t = compressionThreshold;
+		if (t == null)
+		{
+			String enabled = PropFinder.get(Settings.COMPRESSION);
+			String threshold = PropFinder.get(Settings.COMPRESSION_THRESHOLD);
+			if (enabled != null && enabled.trim().equalsIgnoreCase("false"))
+				t = Integer.valueOf(-1);
+			else
+				t = Integer.valueOf(threshold == null ? 1024 : Integer.parseInt(threshold.trim()));
+			compressionThreshold = t;
+		}
+		return t.intValue();
+	}
+
+	/**
+	 * Overrides the compression settings of this JVM
+	 * @param threshold the minimum length of the compressed RPCs, negative to disable compression
+	 */
+	public static void setCompressionThreshold(int threshold)
+	{
+		compressionThreshold = Integer.valueOf(threshold);
+	}
+
+	private static int getMaxInflatedSize()
+	{
+		Integer max = maxInflatedSize;
+		if (max == null)
+		{
+			String size = PropFinder.get(Settings.MAX_MESSAGE_SIZE);
+			max = Integer.valueOf(size == null ? 4194304 : Integer.parseInt(size.trim()));
+			maxInflatedSize = max;
+		}
+		return max.intValue();
+	}
+
+	/**
+	 * Returns the length of a collection of entries as sent in a FIND_VALUE
+	 * response with the wire format of the settings, after compression if they
+	 * would be compressed
+	 * @param entries the entries
+	 * @return the encoded length in bytes
+	 * @throws IOException if the entries can't be encoded
+	 */
+	public static int getEncodedSize(Collection<StorageEntry> entries) throws IOException
+	{
+		if (!isBinaryFormat())
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(new ArrayList<StorageEntry>(entries));
+			oos.close();
+			return bos.size();
+		}
+		Writer out = acquireWriter();
+		try
+		{
+			out.writeCount(entries.size());
+			for (StorageEntry entry : entries)
+				writeEntry(out, entry);
+			int threshold = getCompressionThreshold();
+			if (threshold < 0 || out.count < threshold)
+				return out.count;
+			byte[] deflated = deflate(out.buf, 0, out.count);
+			return deflated == null ? out.count : deflated.length + 5;
+		}
+		finally
+		{
+			releaseWriter(out);
+		}
+	}
+
+	/**
+	 * Encodes a message in the binary format
+	 * @param message the message
+	 * @return the encoded message
+	 * @throws IOException if the message contains values which can't be encoded
+	 */
+	public static byte[] encodeBinary(DHTMessage message) throws IOException
+	{
+		Writer out = acquireWriter();
+		try
+		{
+			writeMessage(out, message);
+			return out.toByteArray();
+		}
+		finally
+		{
+			releaseWriter(out);
+		}
+	}
+
+	/**
+	 * Encodes the part of an RPC message which only depends on its sender: the header
+	 * and the AuthNodeId. encodeBinary() copies the template of an RPCMessageImpl
+	 * instead of encoding these fields again
+	 * @param opcode RPC_REQ or RPC_RES
+	 * @param authNodeId the AuthNodeId of the sender
+	 * @return the frame template
+	 * @throws IOException if the AuthNodeId can't be encoded
+	 */
+	public static byte[] encodeFrameTemplate(DHTMessage.OpCode opcode, AuthNodeId authNodeId) throws IOException
+	{
+		if (!opcode.isRPCMessage())
+			throw new IllegalArgumentException("MessageCodec: not an RPC message opcode " + opcode);
+		Writer out = new Writer(512);
+		out.writeByte(MAGIC);
+		out.writeByte(COMPATIBLE_VERSION); //raised by writeBody() if needed
+		out.writeByte(opcode.toByte());
+		writeAuthNodeId(out, authNodeId);
+		return out.toByteArray();
+	}
+
+	private static void writeMessage(Writer out, DHTMessage message) throws IOException
+	{
+		int header = out.count;
+		byte[] template = message instanceof RPCMessageImpl ? ((RPCMessageImpl)message).getFrameTemplate() : null;
+		if (template != null)
+		{
+			RPCMessageImpl rpcMessage = (RPCMessageImpl)message;
+			out.writeRaw(template);
+			writeAuthenticator(out, rpcMessage.getAuthenticator());
+			out.writeBytes(rpcMessage.getClientNonce());
+			writeBody(out, rpcMessage, header);
+			return;
+		}
+		out.writeByte(MAGIC);
+		out.writeByte(COMPATIBLE_VERSION);
+		out.writeByte(message.getMsgOpCode().toByte());
+		if (message.getMsgOpCode().isNonce())
+		{
+			Nonce nonce = (Nonce)message;
+			out.writeLong(nonce.getSid());
+			out.writeNodeId(nonce.getSender());
+			out.writeBytes(nonce.getNonce());
+			out.writeBoolean(nonce.isCookie());
+		}
+		else
+		{
+			RPCMessage rpcMessage = (RPCMessage)message;
+			writeAuthNodeId(out, rpcMessage.getAuthNodeId());
+			writeAuthenticator(out, rpcMessage.getAuthenticator());
+			out.writeBytes(rpcMessage.getClientNonce());
+			writeBody(out, rpcMessage, header);
+		}
+	}
+
+	//the RPC already encoded to be hashed is copied as it is, then compressed if worthwhile;
+	//header is the position of the message, whose version is raised if the SESSION flag is set
+	private static void writeBody(Writer out, RPCMessage message, int header) throws IOException
+	{
+		int flags = out.count;
+		out.writeByte(0);
+		Authenticator auth = message.getAuthenticator();
+		if (auth != null && auth.getKeyShare() != null)
+		{
+			out.buf[header + 1] = VERSION;
+			out.buf[flags] |= SESSION;
+			writeSession(out, auth);
+		}
+		int start = out.count;
+		ByteBuffer body = message instanceof RPCMessageImpl ? ((RPCMessageImpl)message).getEncodedRPC() : null;
+		if (body != null)
+			out.writeRaw(body);
+		else
+			writeRPC(out, message.getRPC());
+
+		RPC.OpCode code = message.getRPC().getRPCOpCode();
+		int length = out.count - start;
+		int threshold = getCompressionThreshold();
+		if (threshold < 0 || length < threshold || (code != RPC.OpCode.STORE_REQUEST && code != RPC.OpCode.FIND_VALUE_RESPONSE))
+			return;
+		byte[] deflated = deflate(out.buf, start, length);
+		if (deflated == null)
+			return;
+		out.count = start;
+		out.buf[flags] |= COMPRESSED;
+		out.writeVarLong(length);
+		out.writeRaw(deflated);
+	}
+
+	/*
+	 * Returns the deflated bytes, or null if they are not at least 5 bytes
+	 * shorter than the original ones (the length prefix takes up to 5 bytes)
+	 */
+	private static byte[] deflate(byte[] data, int offset, int length)
+	{
+		if (length <= 5)
+			return null;
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		byte[] out = new byte[length - 5];
+		int n = 0;
+		while (!deflater.finished())
+		{
+			if (n == out.length)
+				return null; //not worth it
+			n += deflater.deflate(out, n, out.length - n);
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	private static ByteBuffer inflate(Reader in) throws IOException
+	{
+		long length = in.readVarLong();
+		if (length < 0 || length > getMaxInflatedSize())
+			throw new IOException("MessageCodec: invalid inflated length " + length);
+		byte[] deflated = in.readRemaining();
+		byte[] inflated = new byte[(int)length];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(deflated);
+		try
+		{
+			int n = 0;
+			while (n < inflated.length && !inflater.finished())
+			{
+				int r = inflater.inflate(inflated, n, inflated.length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += r;
+			}
+			if (n != inflated.length || !inflater.finished())
+				throw new IOException("MessageCodec: corrupted compressed RPC");
+		}
+		catch (DataFormatException dfe)
+		{
+			throw new IOException("MessageCodec: corrupted compressed RPC - " + dfe.getMessage());
+		}
+		return ByteBuffer.wrap(inflated).asReadOnlyBuffer();
+	}
+
+	/*
+	 * Every thread encodes into its own buffer, which grows to the size of the
+	 * largest message it has encoded: only the final copy is allocated
+	 */
+	private static Writer acquireWriter()
+	{
+		Writer out = writers.get();
+		if (out.inUse)
+			return new Writer(1024);
+		out.inUse = true;
+		out.count = 0;
+		return out;
+	}
+
+	private static void releaseWriter(Writer out)
+	{
+		out.inUse = false;
+		if (out.buf.length > MAX_CACHED_WRITER)
+			writers.remove();
+	}
+
+	/**
+	 * Encodes a message with Java serialization (the legacy wire format)
+	 * @param message the message
+	 * @return the serialized message
+	 * @throws IOException if the message can't be serialized
+	 */
+	public static byte[] encodeJava(DHTMessage message) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(message);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Returns the canonical binary encoding of an RPC, used to compute its hash
+	 * @param rpc the RPC
+	 * @return the encoded RPC
+	 * @throws IOException if the RPC contains values which can't be encoded
+	 */
+	public static byte[] encodeRPC(RPC rpc) throws IOException
+	{
+		Writer out = acquireWriter();
+		try
+		{
+			writeRPC(out, rpc);
+			return out.toByteArray();
+		}
+		finally
+		{
+			releaseWriter(out);
+		}
+	}
+
+	/**
+	 * Returns the binary encoding of a StorageEntry, as it is written in the messages
+	 * (used by LogStorage to write its entries)
+	 * @param entry the entry
+	 * @return the encoded entry
+	 * @throws IOException if the entry contains values which can't be encoded
+	 */
+	public static byte[] encodeEntry(StorageEntry entry) throws IOException
+	{
+		Writer out = acquireWriter();
+		try
+		{
+			writeEntry(out, entry);
+			return out.toByteArray();
+		}
+		finally
+		{
+			releaseWriter(out);
+		}
+	}
+
+	/**
+	 * Decodes a message in any supported wire format. The entries of a FIND_VALUE
+	 * response are views over data, which must not be modified afterwards
+	 * @param data the encoded message (its remaining bytes)
+	 * @return the message
+	 * @throws IOException if the message is malformed or has an unsupported version
+	 */
+	public static DHTMessage decode(ByteBuffer data) throws IOException
+	{
+		return decode(data, false);
+	}
+
+	/**
+	 * Decodes a message in any supported wire format
+	 * @param data the encoded message (its remaining bytes)
+	 * @param shared true if data is going to be reused: the message must be detached
+	 * before, if it is kept
+	 * @return the message
+	 * @throws IOException if the message is malformed or has an unsupported version
+	 */
+	public static DHTMessage decode(ByteBuffer data, boolean shared) throws IOException
+	{
+		if (!data.hasRemaining())
+			throw new IOException("MessageCodec: empty message");
+		byte first = data.get(data.position());
+		if (first == JAVA_MAGIC)
+			return decodeJava(data);
+		if (first != MAGIC)
+			throw new IOException("MessageCodec: unknown wire format");
+		try
+		{
+			return decodeBinary(new Reader(data.asReadOnlyBuffer().slice(), shared));
+		}
+		catch (BufferUnderflowException bue)
+		{
+			throw new IOException("MessageCodec: truncated message");
+		}
+		catch (IllegalArgumentException iae)
+		{
+			throw new IOException("MessageCodec: malformed message - " + iae.getMessage());
+		}
+	}
+
+	/**
+	 * Makes a decoded message independent of the buffer it was decoded from,
+	 * copying the entries of a FIND_VALUE response still kept in that buffer.
+	 * The received bytes of the RPC, needed only to check its hash, are dropped
+	 * @param message the message
+	 */
+	public static void detach(DHTMessage message)
+	{
+		if (message instanceof RPCMessageImpl)
+			((RPCMessageImpl)message).setEncodedRPC(null);
+		if (message instanceof RPCMessage && ((RPCMessage)message).getRPC() instanceof FindValueResponse)
+		{
+			Collection<StorageEntry> values = ((FindValueResponse)((RPCMessage)message).getRPC()).getValues();
+			if (values instanceof LazyEntryList)
+				((LazyEntryList)values).detach();
+		}
+	}
+
+	/**
+	 * Decodes a StorageEntry encoded by encodeEntry() (or an entry of a LazyEntryList).
+	 * The values are copied: data may be modified afterwards
+	 * @param data the encoded entry (its remaining bytes)
+	 * @return the entry
+	 * @throws IOException if the entry is malformed
+	 */
+	public static StorageEntry decodeEntry(ByteBuffer data) throws IOException
+	{
+		try
+		{
+			return readEntry(new Reader(data, false));
+		}
+		catch (BufferUnderflowException bue)
+		{
+			throw new IOException("MessageCodec: truncated entry");
+		}
+		catch (IllegalArgumentException iae)
+		{
+			throw new IOException("MessageCodec: malformed entry - " + iae.getMessage());
+		}
+	}
+
+	private static DHTMessage decodeJava(ByteBuffer data) throws IOException
+	{
+		ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(data.slice()));
+		try
+		{
+			DHTMessage message = (DHTMessage)ois.readObject();
+			if (message == null)
+				throw new IOException("MessageCodec: message deserialization failed");
+			return message;
+		}
+		catch (ClassNotFoundException cnfe)
+		{
+			throw new IOException("MessageCodec: unknown class " + cnfe.getMessage());
+		}
+		catch (ClassCastException cce)
+		{
+			throw new IOException("MessageCodec: not a DHT message");
+		}
+		finally
+		{
+			ois.close();
+		}
+	}
+
+	private static DHTMessage decodeBinary(Reader in) throws IOException
+	{
+		in.readByte(); //MAGIC
+		byte version = in.readByte();
+		if (version < 1 || version > VERSION)
+			throw new IOException("MessageCodec: unsupported version " + version);
+		int opcode = in.readByte();
+		if (opcode == DHTMessage.OpCode.NONCE_REQ.toByte() || opcode == DHTMessage.OpCode.NONCE_RES.toByte())
+		{
+			long sid = in.readLong();
+			NodeId sender = in.readNodeId();
+			byte[] nonceBytes = in.readBytes();
+			boolean cookie = in.readBoolean();
+			Nonce nonce = new Nonce(sender, nonceBytes, sid, opcode == DHTMessage.OpCode.NONCE_REQ.toByte());
+			nonce.setCookie(cookie);
+			return nonce;
+		}
+		if (opcode == DHTMessage.OpCode.RPC_REQ.toByte() || opcode == DHTMessage.OpCode.RPC_RES.toByte())
+		{
+			AuthNodeId authNodeId = readAuthNodeId(in);
+			Authenticator authenticator = readAuthenticator(in);
+			byte[] clientNonce = in.readBytes();
+			int flags = version == 1 ? 0 : in.readByte();
+			if ((flags & ~(version < VERSION ? COMPRESSED : COMPRESSED | SESSION)) != 0)
+				throw new IOException("MessageCodec: unknown flags " + flags);
+			if ((flags & SESSION) != 0)
+				readSession(in, authenticator);
+			if ((flags & COMPRESSED) != 0)
+				in = new Reader(inflate(in), false); //the inflated RPC belongs to the message
+			int start = in.position();
+			RPC rpc = readRPC(in);
+			if (rpc.getRPCOpCode().isRequest() != (opcode == DHTMessage.OpCode.RPC_REQ.toByte()))
+				throw new IOException("MessageCodec: inconsistent opcodes");
+			RPCMessageImpl message = new RPCMessageImpl(authNodeId, authenticator, rpc);
+			message.setClientNonce(clientNonce);
+			message.setEncodedRPC(in.view(start));
+			return message;
+		}
+		throw new IOException("MessageCodec: unknown opcode " + opcode);
+	}
+
+	private static void writeAuthNodeId(Writer out, AuthNodeId id) throws IOException
+	{
+		out.writeNodeId(id.getContent().getNodeId());
+		out.writeKey(id.getContent().getKey());
+		out.writeString(id.getContent().getUser());
+		out.writeVarLong(id.getContent().getExpireTime());
+		out.writeBytes(id.getSignature());
+	}
+
+	private static AuthNodeId readAuthNodeId(Reader in) throws IOException
+	{
+		NodeId nodeId = in.readNodeId();
+		PublicKey key = in.readKey();
+		String user = in.readString();
+		long expireTime = in.readVarLong();
+		AuthNodeId id = new AuthNodeId(nodeId, key, user, expireTime);
+		id.setSignature(in.readBytes());
+		return id;
+	}
+
+	private static void writeAuthenticator(Writer out, Authenticator auth)
+	{
+		out.writeNodeId(auth.getContent().getId());
+		out.writeBytes(auth.getContent().getNonce());
+		out.writeBytes(auth.getContent().getRpcHash());
+		out.writeBytes(auth.getSignature());
+	}
+
+	private static Authenticator readAuthenticator(Reader in)
+	{
+		NodeId id = in.readNodeId();
+		byte[] nonce = in.readBytes();
+		byte[] rpcHash = in.readBytes();
+		Authenticator auth = new Authenticator(id, nonce, rpcHash);
+		auth.setSignature(in.readBytes());
+		return auth;
+	}
+
+	private static void writeSession(Writer out, Authenticator auth)
+	{
+		KeyShare share = auth.getKeyShare();
+		out.writeNodeId(share.getContent().getNodeId());
+		out.writeLong(share.getContent().getShareId());
+		out.writeBytes(share.getContent().getPublicKey());
+		out.writeVarLong(share.getContent().getExpireTime());
+		out.writeBytes(share.getSignature());
+		out.writeLong(auth.getPeerShareId());
+		out.writeBytes(auth.getMac());
+	}
+
+	private static void readSession(Reader in, Authenticator auth)
+	{
+		NodeId nodeId = in.readNodeId();
+		long shareId = in.readLong();
+		byte[] publicKey = in.readBytes();
+		long expireTime = in.readVarLong();
+		KeyShare share = new KeyShare(nodeId, shareId, publicKey, expireTime);
+		share.setSignature(in.readBytes());
+		auth.setKeyShare(share);
+		auth.setPeerShareId(in.readLong());
+		auth.setMac(in.readBytes());
+	}
+
+	private static void writeRPC(Writer out, RPC rpc) throws IOException
+	{
+		RPC.OpCode code = rpc.getRPCOpCode();
+		out.writeByte(code.toByte());
+		out.writeLong(rpc.getMessageId());
+		switch (code)
+		{
+			case PING_REQUEST:
+				break;
+			case PING_RESPONSE:
+				out.writeVarLong(((PingResponseImpl)rpc).getUpTime());
+				break;
+			case STORE_REQUEST:
+				StoreRequest store = (StoreRequest)rpc;
+				out.writeBoolean(store.isSigned());
+				StorageEntry[] values = store.getValues();
+				out.writeCount(values == null ? -1 : values.length);
+				if (values != null)
+					for (StorageEntry entry : values)
+						writeEntry(out, entry);
+				break;
+			case STORE_RESPONSE:
+				out.writeBoolean(((StoreResponse)rpc).getStoreResult());
+				break;
+			case FIND_NODE_REQUEST:
+				out.writeNodeId(((FindRequest)rpc).getLookupId());
+				break;
+			case FIND_NODE_RESPONSE:
+				writeContacts(out, ((FindNodeResponse)rpc).getContacts());
+				break;
+			case FIND_VALUE_REQUEST:
+				FindValueRequest request = (FindValueRequest)rpc;
+				out.writeNodeId(request.getLookupId());
+				out.writeString(request.getType());
+				out.writeString(request.getOwner());
+				out.writeBoolean(request.getRecent());
+				out.writeBoolean(request.getCountersOnly());
+				break;
+			case FIND_VALUE_RESPONSE:
+				FindValueResponse response = (FindValueResponse)rpc;
+				writeContacts(out, response.getContacts());
+				Collection<StorageEntry> entries = response.getValues();
+				out.writeCount(entries == null ? -1 : entries.size());
+				if (entries instanceof LazyEntryList)
+				{
+					//received entries are copied as they are, without decoding them
+					LazyEntryList list = (LazyEntryList)entries;
+					for (int i = 0; i < list.size(); i++)
+						out.writeRaw(list.getEncodedEntry(i));
+				}
+				else if (entries != null)
+				{
+					for (StorageEntry entry : entries)
+						writeEntry(out, entry);
+				}
+				HashMap<String,Integer> counters = response.getCounters();
+				out.writeCount(counters == null ? -1 : counters.size());
+				if (counters != null)
+				{
+					for (Map.Entry<String,Integer> e : counters.entrySet())
+					{
+						out.writeString(e.getKey());
+						out.writeVarLong(e.getValue());
+					}
+				}
+				break;
+			default:
+				throw new IOException("MessageCodec: unknown RPC " + code);
+		}
+	}
+
+	private static RPC readRPC(Reader in) throws IOException
+	{
+		int code = in.readByte();
+		long messageId = in.readLong();
+		if (code == RPC.OpCode.PING_REQUEST.toByte())
+		{
+			return new PingRequestImpl(messageId);
+		}
+		else if (code == RPC.OpCode.PING_RESPONSE.toByte())
+		{
+			return new PingResponseImpl(messageId, in.readVarLong());
+		}
+		else if (code == RPC.OpCode.STORE_REQUEST.toByte())
+		{
+			boolean signed = in.readBoolean();
+			int count = in.readCount();
+			StorageEntry[] values = null;
+			if (count >= 0)
+			{
+				values = new StorageEntry[count];
+				for (int i = 0; i < count; i++)
+					values[i] = readEntry(in);
+			}
+			return new StoreRequestImpl(messageId, values, signed);
+		}
+		else if (code == RPC.OpCode.STORE_RESPONSE.toByte())
+		{
+			return new StoreResponseImpl(messageId, in.readBoolean());
+		}
+		else if (code == RPC.OpCode.FIND_NODE_REQUEST.toByte())
+		{
+			return new FindNodeRequestImpl(messageId, in.readNodeId());
+		}
+		else if (code == RPC.OpCode.FIND_NODE_RESPONSE.toByte())
+		{
+			return new FindNodeResponseImpl(messageId, readContacts(in));
+		}
+		else if (code == RPC.OpCode.FIND_VALUE_REQUEST.toByte())
+		{
+			NodeId key = in.readNodeId();
+			String type = in.readString();
+			String owner = in.readString();
+			boolean recent = in.readBoolean();
+			boolean countersOnly = in.readBoolean();
+			return new FindValueRequestImpl(messageId, key, type, owner, recent, countersOnly);
+		}
+		else if (code == RPC.OpCode.FIND_VALUE_RESPONSE.toByte())
+		{
+			Collection<Contact> contacts = readContacts(in);
+			int count = in.readCount();
+			List<StorageEntry> values = null;
+			if (count >= 0)
+				values = in.readEntryList(count);
+			count = in.readCount();
+			HashMap<String,Integer> counters = null;
+			if (count >= 0)
+			{
+				counters = new HashMap<String,Integer>();
+				for (int i = 0; i < count; i++)
+				{
+					String key = in.readString();
+					counters.put(key, Integer.valueOf((int)in.readVarLong()));
+				}
+			}
+			return new FindValueResponseImpl(messageId, contacts, values, counters);
+		}
+		throw new IOException("MessageCodec: unknown RPC opcode " + code);
+	}
+
+	private static void writeContacts(Writer out, Collection<Contact> contacts) throws IOException
+	{
+		out.writeCount(contacts == null ? -1 : contacts.size());
+		if (contacts == null)
+			return;
+		for (Contact c : contacts)
+		{
+			out.writeNodeId(c.getNodeId());
+			out.writeAddress(c.getAddress());
+			out.writeBoolean(c.isAlive());
+		}
+	}
+
+	private static Collection<Contact> readContacts(Reader in) throws IOException
+	{
+		int count = in.readCount();
+		if (count < 0)
+			return null;
+		List<Contact> contacts = new ArrayList<Contact>(count);
+		for (int i = 0; i < count; i++)
+		{
+			NodeId nodeId = in.readNodeId();
+			SocketAddress address = in.readAddress();
+			Contact.State state = in.readBoolean() ? Contact.State.ALIVE : Contact.State.DEAD;
+			contacts.add(new ContactImpl(nodeId, address, state, 0));
+		}
+		return contacts;
+	}
+
+	private static void writeEntry(Writer out, StorageEntry entry) throws IOException
+	{
+		out.writeNodeId(entry.getKey());
+		Content content = entry.getContent();
+		out.writeString(content.getType());
+		out.writeBytes(content.getValueBuffer());
+		Credentials credentials = entry.getCredentials();
+		out.writeString(credentials.getOwnerId());
+		out.writeKey(credentials.getPublicKey());
+		out.writeVarLong(credentials.getTimeStamp());
+		out.writeVarLong(credentials.getTTL());
+		out.writeBytes(credentials.getObjectHash());
+		out.writeBytes(credentials.getSignature());
+	}
+
+	private static StorageEntry readEntry(Reader in) throws IOException
+	{
+		NodeId key = in.readNodeId();
+		String type = in.readString();
+		byte[] value = in.readBytes();
+		String owner = in.readString();
+		PublicKey publicKey = in.readKey();
+		long timeStamp = in.readVarLong();
+		long ttl = in.readVarLong();
+		Credentials credentials = new Credentials(owner, publicKey, timeStamp, ttl, in.readBytes());
+		credentials.setSignature(in.readBytes());
+		return new StorageEntry(key, new ContentImpl(value, type), credentials);
+	}
+
+	/*
+	 * Decodes the X.509 encoding of a public key. Keys are rebuilt by the provider
+	 * which generated them (BouncyCastle, see CryptoSuites), so that their serialized
+	 * form, which is signed in AuthNodeIds and Credentials, doesn't change
+	 */
+	private static PublicKey decodeKey(String algorithm, byte[] encoded) throws IOException
+	{
+		try
+		{
+			CryptoSuite suite = CryptoSuites.forAlgorithm(algorithm);
+			if (suite != null)
+				return suite.decodePublicKey(encoded);
+			KeyFactory factory;
+			try
+			{
+				factory = KeyFactory.getInstance(algorithm, "BC");
+			}
+			catch (Exception e)
+			{
+				factory = KeyFactory.getInstance(algorithm);
+			}
+			return factory.generatePublic(new X509EncodedKeySpec(encoded));
+		}
+		catch (Exception e)
+		{
+			throw new IOException("MessageCodec: invalid public key - " + e.getMessage());
+		}
+	}
+
+	//a growable output buffer
+	private static class Writer
+	{
+		private byte[] buf;
+		private int count;
+		private boolean inUse; //taken by acquireWriter()
+		private PublicKey lastKey; //the last key written, with its encoding
+		private byte[] lastKeyAlgorithm;
+		private byte[] lastKeyEncoded;
+
+		Writer(int size)
+		{
+			buf = new byte[size];
+		}
+
+		private void ensure(int n)
+		{
+			if (count + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + n));
+		}
+
+		void writeByte(int b)
+		{
+			ensure(1);
+			buf[count++] = (byte)b;
+		}
+
+		void writeBoolean(boolean b)
+		{
+			writeByte(b ? 1 : 0);
+		}
+
+		void writeLong(long v)
+		{
+			ensure(8);
+			for (int i = 56; i >= 0; i -= 8)
+				buf[count++] = (byte)(v >>> i);
+		}
+
+		void writeVarLong(long v)
+		{
+			long zigzag = (v << 1) ^ (v >> 63);
+			ensure(10);
+			while ((zigzag & ~0x7FL) != 0)
+			{
+				buf[count++] = (byte)((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			buf[count++] = (byte)zigzag;
+		}
+
+		//-1 for null
+		void writeCount(int n)
+		{
+			writeVarLong(n + 1);
+		}
+
+		void writeRaw(ByteBuffer b)
+		{
+			ensure(b.remaining());
+			b.duplicate().get(buf, count, b.remaining());
+			count += b.remaining();
+		}
+
+		void writeRaw(byte[] b)
+		{
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, count, b.length);
+			count += b.length;
+		}
+
+		void writeBytes(byte[] b)
+		{
+			writeCount(b == null ? -1 : b.length);
+			if (b != null)
+				writeRaw(b);
+		}
+
+		void writeBytes(ByteBuffer b)
+		{
+			writeCount(b == null ? -1 : b.remaining());
+			if (b != null)
+				writeRaw(b);
+		}
+
+		void writeString(String s)
+		{
+			writeBytes(s == null ? null : s.getBytes(UTF8));
+		}
+
+		void writeNodeId(NodeId id)
+		{
+			writeRaw(id.getBytes());
+		}
+
+		void writeKey(PublicKey key) throws IOException
+		{
+			if (key == null)
+				throw new IOException("MessageCodec: null public key");
+			if (key != lastKey)
+			{
+				//the entries of a message are often signed with the same key
+				lastKeyAlgorithm = key.getAlgorithm().getBytes(UTF8);
+				lastKeyEncoded = key.getEncoded();
+				lastKey = key;
+			}
+			writeBytes(lastKeyAlgorithm);
+			writeBytes(lastKeyEncoded);
+		}
+
+		void writeAddress(SocketAddress address) throws IOException
+		{
+			if (!(address instanceof InetSocketAddress))
+				throw new IOException("MessageCodec: unsupported address " + address);
+			InetSocketAddress inet = (InetSocketAddress)address;
+			if (inet.isUnresolved())
+			{
+				writeByte(0);
+				writeString(inet.getHostName());
+			}
+			else
+			{
+				byte[] ip = inet.getAddress().getAddress();
+				writeByte(ip.length);
+				writeRaw(ip);
+			}
+			writeVarLong(inet.getPort());
+		}
+
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf(buf, count);
+		}
+	}
+
+	//a public key and its encoding
+	private static class DecodedKey
+	{
+		final String algorithm;
+		final byte[] encoded;
+		final PublicKey key;
+
+		DecodedKey(String algorithm, byte[] encoded, PublicKey key)
+		{
+			this.algorithm = algorithm;
+			this.encoded = encoded;
+			this.key = key;
+		}
+	}
+
+	//reads a binary message, a BufferUnderflowException means that it is truncated
+	private static class Reader
+	{
+		private final ByteBuffer in;
+		private final boolean shared; //in belongs to a buffer which will be reused
+
+		Reader(ByteBuffer in, boolean shared)
+		{
+			this.in = in;
+			this.shared = shared;
+		}
+
+		byte readByte()
+		{
+			return in.get();
+		}
+
+		int position()
+		{
+			return in.position();
+		}
+
+		byte[] readRemaining()
+		{
+			byte[] b = new byte[in.remaining()];
+			in.get(b);
+			return b;
+		}
+
+		//the bytes read since start
+		ByteBuffer view(int start)
+		{
+			ByteBuffer view = in.duplicate();
+			view.limit(in.position()).position(start);
+			return view.slice();
+		}
+
+		boolean readBoolean()
+		{
+			return in.get() != 0;
+		}
+
+		long readLong()
+		{
+			return in.getLong();
+		}
+
+		long readVarLong()
+		{
+			long zigzag = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				byte b = in.get();
+				zigzag |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+			throw new IllegalArgumentException("varint too long");
+		}
+
+		//-1 for null
+		int readCount()
+		{
+			long n = readVarLong() - 1;
+			if (n < -1 || n > MAX_COUNT || n > in.remaining())
+				throw new IllegalArgumentException("invalid length " + n);
+			return (int)n;
+		}
+
+		byte[] readBytes()
+		{
+			int n = readCount();
+			if (n < 0)
+				return null;
+			byte[] b = new byte[n];
+			in.get(b);
+			return b;
+		}
+
+		void skipBytes()
+		{
+			int n = readCount();
+			if (n > 0)
+				in.position(in.position() + n);
+		}
+
+		/*
+		 * Finds the boundaries of count entries, without decoding them
+		 */
+		LazyEntryList readEntryList(int count)
+		{
+			int start = in.position();
+			int[] offsets = new int[count + 1];
+			int[] signatures = new int[count];
+			int[] signatureLengths = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				offsets[i] = in.position() - start;
+				in.position(in.position() + NodeId.LENGTH); //key
+				skipBytes(); //type
+				skipBytes(); //value
+				skipBytes(); //owner
+				skipBytes(); //key algorithm
+				skipBytes(); //encoded key
+				readVarLong(); //timestamp
+				readVarLong(); //ttl
+				skipBytes(); //object hash
+				int length = readCount();
+				signatures[i] = length < 0 ? -1 : in.position() - start;
+				signatureLengths[i] = Math.max(length, 0);
+				if (length > 0)
+					in.position(in.position() + length);
+			}
+			offsets[count] = in.position() - start;
+			return new LazyEntryList(view(start), shared, offsets, signatures, signatureLengths);
+		}
+
+		String readString()
+		{
+			byte[] b = readBytes();
+			return b == null ? null : new String(b, UTF8);
+		}
+
+		NodeId readNodeId()
+		{
+			byte[] id = new byte[NodeId.LENGTH];
+			in.get(id);
+			return new NodeId(id);
+		}
+
+		PublicKey readKey() throws IOException
+		{
+			String algorithm = readString();
+			byte[] encoded = readBytes();
+			if (algorithm == null || encoded == null)
+				throw new IOException("MessageCodec: missing public key");
+			//the entries read by a thread are often signed with the same key
+			DecodedKey last = decodedKeys.get();
+			if (last == null || !algorithm.equals(last.algorithm) || !Arrays.equals(encoded, last.encoded))
+			{
+				last = new DecodedKey(algorithm, encoded, decodeKey(algorithm, encoded));
+				decodedKeys.set(last);
+			}
+			return last.key;
+		}
+
+		SocketAddress readAddress() throws IOException
+		{
+			int length = in.get();
+			if (length == 0)
+			{
+				String host = readString();
+				return InetSocketAddress.createUnresolved(host, (int)readVarLong());
+			}
+			if (length != 4 && length != 16)
+				throw new IOException("MessageCodec: invalid address length " + length);
+			byte[] ip = new byte[length];
+			in.get(ip);
+			return new InetSocketAddress(InetAddress.getByAddress(ip), (int)readVarLong());
+		}
+	}
+}
@@ -15,6 +15,7 @@ public class Nonce implements DHTMessage
 	private long sid;
 	private NodeId sender;
 	private byte[] nonce;
+	private boolean cookie; //the nonce is a cookie that can be reused in later sessions
 
 	public Nonce(NodeId sender, byte[] nonce, long sid, boolean request)
 	{
@@ -94,6 +95,21 @@ public class Nonce implements DHTMessage
 		this.nonce = nonce;
 	}
 	
+	/**
+	 * Returns whether this nonce is a cookie issued by a node in stateless RPC mode.
+	 * A cookie can be cached by the receiver and reused in later RPC requests to the sender
+	 * @return true if the nonce is a cookie
+	 */
+	public boolean isCookie()
+	{
+		return cookie;
+	}
+
+	public void setCookie(boolean cookie)
+	{
+		this.cookie = cookie;
+	}
+	
 	public long getSid()
 	{
 		return sid;
@@ -12,4 +12,13 @@ public interface RPCMessage extends DHTMessage
 	public RPC getRPC();
 	
 	public RPC.OpCode getRPCOpcode();
+	
+	/**
+	 * Returns the nonce of the client sending an RPC request with a cookie instead
+	 * of a nonce obtained in the same session. The server signs its response with this nonce
+	 * @return the client nonce, or null if the request followed a nonce exchange
+	 */
+	public byte[] getClientNonce();
+	
+	public void setClientNonce(byte[] clientNonce);
 }
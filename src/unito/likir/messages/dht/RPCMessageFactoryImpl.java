@@ -1,5 +1,7 @@
 package unito.likir.messages.dht;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.security.SignatureException;
 import java.util.Collection;
@@ -20,6 +22,10 @@ public class RPCMessageFactoryImpl implements RPCMessageFactory
 	private Node node;
 	private Random randomGenerator;
 	private long startTime; // time stamp of node startup
+	//frame templates of the outgoing requests and responses, built for templateId
+	private AuthNodeId templateId;
+	private byte[] requestTemplate;
+	private byte[] responseTemplate;
 	
 	public RPCMessageFactoryImpl(Node node)
 	{
@@ -93,16 +99,48 @@ public class RPCMessageFactoryImpl implements RPCMessageFactory
     	AuthNodeId myId = node.getSecurityAgent().getAuthNodeId();
     	try
     	{
-    		Authenticator auth = node.getSecurityAgent().buildAuthenticator(addressee, nonce, rpc);
-    		return new RPCMessageImpl(myId, auth, rpc);
+    		//the RPC is encoded once: the hashed bytes are the sent ones
+    		byte[] encodedRPC = MessageCodec.encodeRPC(rpc);
+    		Authenticator auth = node.getSecurityAgent().buildAuthenticator(addressee, nonce, encodedRPC);
+    		RPCMessageImpl message = new RPCMessageImpl(myId, auth, rpc);
+    		message.setFrameTemplate(getFrameTemplate(myId, rpc.getRPCOpCode().isRequest()));
+    		message.setEncodedRPC(ByteBuffer.wrap(encodedRPC));
+    		return message;
     	}
     	catch (SignatureException se)
     	{
     		se.printStackTrace();
     	}
+    	catch (IOException ioe)
+    	{
+    		ioe.printStackTrace();
+    	}
     	return null;
     }
     
+    /*
+     * The local AuthNodeId is encoded once, and again only when it is replaced
+     */
+    private synchronized byte[] getFrameTemplate(AuthNodeId myId, boolean request)
+    {
+    	if (myId != templateId)
+    	{
+    		try
+    		{
+    			requestTemplate = MessageCodec.encodeFrameTemplate(DHTMessage.OpCode.RPC_REQ, myId);
+    			responseTemplate = MessageCodec.encodeFrameTemplate(DHTMessage.OpCode.RPC_RES, myId);
+    		}
+    		catch (IOException ioe)
+    		{
+    			//the messages are encoded entirely
+    			requestTemplate = null;
+    			responseTemplate = null;
+    		}
+    		templateId = myId;
+    	}
+    	return request ? requestTemplate : responseTemplate;
+    }
+    
     public InitRequest createInitRequest(PublicKey publicKey, NodeId nodeId)
     {
     	return new InitRequestImpl(node.getUserId(), createMessageId(), node.getMessageDispatcher().getLocalAddress(), publicKey, nodeId);
@@ -1,5 +1,7 @@
 package unito.likir.messages.dht;
 
+import java.nio.ByteBuffer;
+
 import unito.likir.security.AuthNodeId;
 import unito.likir.security.Authenticator;
 
@@ -11,6 +13,9 @@ public class RPCMessageImpl implements RPCMessage
 	private Authenticator authenticator;
 	private RPC rpc;
 	private OpCode opcode;
+	private byte[] clientNonce; //set only by requests sent with a cookie
+	private transient byte[] frameTemplate; //encoded header and AuthNodeId, set by the factory
+	private transient ByteBuffer encodedRPC; //the bytes of the RPC which are hashed in the authenticator
 	
 	public RPCMessageImpl(AuthNodeId authNodeId, Authenticator authenticator, RPC rpc)
 	{
@@ -62,6 +67,55 @@ public class RPCMessageImpl implements RPCMessage
 		return rpc.getRPCOpCode();
 	}
 	
+	public byte[] getClientNonce()
+	{
+		return clientNonce;
+	}
+	
+	public void setClientNonce(byte[] clientNonce)
+	{
+		this.clientNonce = clientNonce;
+	}
+	
+	/**
+	 * Returns the pre-encoded header and AuthNodeId of this message (see MessageCodec)
+	 * @return the frame template, null if the message must be encoded entirely
+	 */
+	public byte[] getFrameTemplate()
+	{
+		return frameTemplate;
+	}
+	
+	/**
+	 * Sets the pre-encoded header and AuthNodeId of this message: they must be
+	 * the encoding of getMsgOpCode() and getAuthNodeId()
+	 * @param frameTemplate the template returned by MessageCodec.encodeFrameTemplate()
+	 */
+	public void setFrameTemplate(byte[] frameTemplate)
+	{
+		this.frameTemplate = frameTemplate;
+	}
+	
+	/**
+	 * Returns the binary encoding of the RPC (see MessageCodec.encodeRPC()): for an
+	 * outgoing message the bytes hashed in its Authenticator, which are sent as they are,
+	 * for a received message the bytes as they arrived, until the message is detached
+	 * @return a read-only view of the encoded RPC, null if it is not known
+	 */
+	public ByteBuffer getEncodedRPC()
+	{
+		return encodedRPC == null ? null : encodedRPC.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Sets the binary encoding of the RPC of this message
+	 * @param encodedRPC the encoded RPC (its remaining bytes), it must not be modified afterwards
+	 */
+	public void setEncodedRPC(ByteBuffer encodedRPC)
+	{
+		this.encodedRPC = encodedRPC;
+	}
+	
 	public String toString()
 	{
 		StringBuilder buffer = new StringBuilder();
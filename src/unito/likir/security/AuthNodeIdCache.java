@@ -0,0 +1,155 @@
+package unito.likir.security;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the AuthNodeIds whose CA signature has already been verified, so that
+ * the RPCs of a known peer cost a single signature verification (the Authenticator).
+ * An AuthNodeId is found by its signature and accepted only if its content is the
+ * same as the verified one. An entry is kept until the AuthNodeId expires; when the
+ * cache is full the expired entries are purged first, then an arbitrary entry is
+ * evicted.
+ */
+public class AuthNodeIdCache
+{
+	private final ConcurrentMap<ByteBuffer,AuthNodeIdContent> verified; //signature -> verified content
+	private final int capacity;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	/**
+	 * Create a new AuthNodeIdCache
+	 * @param capacity the maximum number of AuthNodeIds kept, 0 disables the cache
+	 */
+	public AuthNodeIdCache(int capacity)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("Invalid cache capacity");
+		this.verified = new ConcurrentHashMap<ByteBuffer,AuthNodeIdContent>();
+		this.capacity = capacity;
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.evictions = new AtomicLong(0);
+	}
+
+	/**
+	 * Returns whether an AuthNodeId has already been verified and has not expired
+	 * @param authNodeId the AuthNodeId
+	 * @return true if the CA signature of the AuthNodeId doesn't need to be verified
+	 */
+	public boolean contains(AuthNodeId authNodeId)
+	{
+		byte[] signature = authNodeId.getSignature();
+		AuthNodeIdContent cached = signature == null ? null : verified.get(ByteBuffer.wrap(signature));
+		if (cached == null)
+		{
+			misses.incrementAndGet();
+			return false;
+		}
+		if (cached.getExpireTime() <= System.currentTimeMillis())
+		{
+			if (verified.remove(ByteBuffer.wrap(signature), cached))
+				evictions.incrementAndGet();
+			misses.incrementAndGet();
+			return false;
+		}
+		if (!sameContent(cached, authNodeId.getContent()))
+		{
+			misses.incrementAndGet(); //a valid signature attached to another content
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Remembers an AuthNodeId whose CA signature has been verified
+	 * @param authNodeId the verified AuthNodeId
+	 */
+	public void put(AuthNodeId authNodeId)
+	{
+		byte[] signature = authNodeId.getSignature();
+		AuthNodeIdContent content = authNodeId.getContent();
+		if (capacity == 0 || signature == null || content.getExpireTime() <= System.currentTimeMillis())
+			return;
+		ByteBuffer key = ByteBuffer.wrap(signature.clone());
+		if (!verified.containsKey(key) && verified.size() >= capacity)
+		{
+			purge();
+			Iterator<ByteBuffer> it = verified.keySet().iterator();
+			while (verified.size() >= capacity && it.hasNext())
+			{
+				it.next();
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		verified.put(key, content);
+	}
+
+	/**
+	 * Forgets every verified AuthNodeId, e.g. when the CA public key changes
+	 */
+	public void clear()
+	{
+		verified.clear();
+	}
+
+	public int size()
+	{
+		return verified.size();
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	private void purge()
+	{
+		long now = System.currentTimeMillis();
+		Iterator<AuthNodeIdContent> it = verified.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().getExpireTime() <= now)
+			{
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static boolean sameContent(AuthNodeIdContent a, AuthNodeIdContent b)
+	{
+		if (a == b)
+			return true;
+		return a.getExpireTime() == b.getExpireTime() && equal(a.getNodeId(), b.getNodeId())
+				&& equal(a.getUser(), b.getUser()) && equal(a.getKey(), b.getKey());
+	}
+
+	private static boolean equal(Object a, Object b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public String toString()
+	{
+		return "AuthNodeIdCache - size=" + verified.size() + "/" + capacity + ", hits=" + hits.get()
+				+ ", misses=" + misses.get() + ", evictions=" + evictions.get();
+	}
+}
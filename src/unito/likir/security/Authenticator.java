@@ -11,6 +11,9 @@ import unito.likir.util.ArrayUtils;
  * It contains the addressee NodeId, the nonce previously received during the same session
  * and the SHA-1 hash of the RPCMessage; this data must be signed with the local Node private key.
  * To create appropriate Authenticator for a specific node, use the NodeSecurityAgent class.
+ * In session key mode the Authenticator carries the KeyShare of the sender and, when
+ * the sender knows the KeyShare of the addressee, a MAC computed with their session
+ * key replaces the signature (see SessionKeyManager).
  * @author Luca Maria Aiello
  * @version 0.1
  */
@@ -21,6 +24,9 @@ public class Authenticator implements Serializable
 	
 	private AuthenticatorContent content;
 	private byte[] signature;
+	private KeyShare keyShare; //the KeyShare of the sender, null if session keys are disabled
+	private long peerShareId; //the KeyShare of the addressee used to compute the MAC
+	private byte[] mac; //null if the Authenticator is signed
 	
 	/**
 	 * Create a new Authenticator instance, with a null signature
@@ -61,6 +67,60 @@ public class Authenticator implements Serializable
 		this.signature = signature;
 	}
 	
+	/**
+	 * Return the KeyShare of the sender
+	 * @return the KeyShare, null if the sender doesn't use session keys
+	 */
+	public KeyShare getKeyShare()
+	{
+		return keyShare;
+	}
+	
+	/**
+	 * Set the KeyShare of the sender
+	 * @param keyShare the KeyShare
+	 */
+	public void setKeyShare(KeyShare keyShare)
+	{
+		this.keyShare = keyShare;
+	}
+	
+	/**
+	 * Return the identifier of the KeyShare of the addressee used to compute the MAC
+	 * @return the share identifier
+	 */
+	public long getPeerShareId()
+	{
+		return peerShareId;
+	}
+	
+	/**
+	 * Set the identifier of the KeyShare of the addressee used to compute the MAC
+	 * @param peerShareId the share identifier
+	 */
+	public void setPeerShareId(long peerShareId)
+	{
+		this.peerShareId = peerShareId;
+	}
+	
+	/**
+	 * Return the MAC of this Authenticator
+	 * @return the MAC, null if the Authenticator is signed
+	 */
+	public byte[] getMac()
+	{
+		return mac;
+	}
+	
+	/**
+	 * Set the MAC of this Authenticator
+	 * @param mac the MAC
+	 */
+	public void setMac(byte[] mac)
+	{
+		this.mac = mac;
+	}
+	
 	/**
 	 * Return whether or not this Authenticator is signed
 	 * @return whether or not this Authenticator is signed
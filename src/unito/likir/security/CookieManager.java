@@ -0,0 +1,174 @@
+package unito.likir.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import unito.likir.NodeId;
+
+/**
+ * Mints and checks the nonce cookies handed out by a node in stateless RPC mode.
+ * A cookie is a 128 bit nonce made of a 4 byte expire time (in seconds) followed by
+ * a 96 bit HMAC of the expire time and of the NodeId of the client it was issued to,
+ * so the server can check it without keeping any per-client state.
+ * The secret key lives only in memory: restarting the node invalidates every cookie.
+ * Since a cookie can be reused until it expires, replays are prevented by remembering
+ * the session IDs already served with a cookie until the cookie expires.
+ */
+public class CookieManager
+{
+	public static final int COOKIE_LENGTH = 16; //the length of a Nonce
+	private static final int TIME_LENGTH = 4;
+	private static final String MAC_ALGORITHM = "HmacSHA1";
+
+	private final SecretKey secret;
+	private final ThreadLocal<Mac> macs; //Mac instances are not thread safe
+	private final long lifetime; //cookie validity (in milliseconds)
+	private final Map<Long,Long> servedSessions; //sid -> expire time of the cookie used
+	private final AtomicLong nextPurge;
+
+	/**
+	 * Create a new CookieManager with a fresh random secret
+	 * @param lifetime the validity of the cookies (in milliseconds)
+	 */
+	public CookieManager(long lifetime)
+	{
+		if (lifetime <= 0)
+			throw new IllegalArgumentException("Invalid cookie lifetime");
+		try
+		{
+			this.secret = KeyGenerator.getInstance(MAC_ALGORITHM).generateKey();
+			Mac.getInstance(MAC_ALGORITHM).init(secret); //fail now if the algorithm is unavailable
+		}
+		catch (GeneralSecurityException gse)
+		{
+			throw new IllegalStateException("CookieManager: " + MAC_ALGORITHM + " is not available", gse);
+		}
+		this.macs = new ThreadLocal<Mac>()
+		{
+			protected Mac initialValue()
+			{
+				try
+				{
+					Mac mac = Mac.getInstance(MAC_ALGORITHM);
+					mac.init(secret);
+					return mac;
+				}
+				catch (GeneralSecurityException gse)
+				{
+					throw new IllegalStateException(gse);
+				}
+			}
+		};
+		this.lifetime = lifetime;
+		this.servedSessions = new ConcurrentHashMap<Long,Long>();
+		this.nextPurge = new AtomicLong(System.currentTimeMillis() + lifetime);
+	}
+
+	/**
+	 * Build a new cookie for a client
+	 * @param client the NodeId of the client
+	 * @return the cookie, to be sent as a Nonce
+	 */
+	public byte[] create(NodeId client)
+	{
+		long expire = (System.currentTimeMillis() + lifetime) / 1000;
+		byte[] cookie = new byte[COOKIE_LENGTH];
+		cookie[0] = (byte)(expire >>> 24);
+		cookie[1] = (byte)(expire >>> 16);
+		cookie[2] = (byte)(expire >>> 8);
+		cookie[3] = (byte)expire;
+		byte[] mac = mac(cookie, client);
+		System.arraycopy(mac, 0, cookie, TIME_LENGTH, COOKIE_LENGTH - TIME_LENGTH);
+		return cookie;
+	}
+
+	/**
+	 * Check that a cookie was issued by this node to a client and is not expired
+	 * @param cookie the cookie
+	 * @param client the NodeId of the client presenting the cookie
+	 * @return true if the cookie is valid
+	 */
+	public boolean check(byte[] cookie, NodeId client)
+	{
+		if (cookie == null || cookie.length != COOKIE_LENGTH || client == null)
+			return false;
+		long now = System.currentTimeMillis();
+		long expire = getExpireTime(cookie);
+		if (expire <= now || expire > now + lifetime + 1000)
+			return false;
+		byte[] mac = mac(cookie, client);
+		byte[] expected = new byte[COOKIE_LENGTH - TIME_LENGTH];
+		byte[] received = new byte[COOKIE_LENGTH - TIME_LENGTH];
+		System.arraycopy(mac, 0, expected, 0, expected.length);
+		System.arraycopy(cookie, TIME_LENGTH, received, 0, received.length);
+		return MessageDigest.isEqual(expected, received);
+	}
+
+	/**
+	 * Record that a session has been served using a cookie.
+	 * Must be called only after the request has passed the security checks
+	 * @param sid the session ID of the request
+	 * @param cookie the cookie used by the request
+	 * @return false if the session has already been served (the request is a replay)
+	 */
+	public boolean markServed(long sid, byte[] cookie)
+	{
+		long now = System.currentTimeMillis();
+		long next = nextPurge.get();
+		if (now > next && nextPurge.compareAndSet(next, now + lifetime))
+			purge(now);
+		return servedSessions.put(sid, getExpireTime(cookie)) == null;
+	}
+
+	/**
+	 * Returns the number of sessions currently remembered by the replay filter
+	 * @return the number of served sessions
+	 */
+	public int getServedCount()
+	{
+		return servedSessions.size();
+	}
+
+	public long getLifetime()
+	{
+		return lifetime;
+	}
+
+	/**
+	 * Returns the expire time written in a cookie
+	 * @param cookie the cookie
+	 * @return the expire time (in milliseconds)
+	 */
+	public static long getExpireTime(byte[] cookie)
+	{
+		long seconds = ((cookie[0] & 0xFFL) << 24) | ((cookie[1] & 0xFFL) << 16) | ((cookie[2] & 0xFFL) << 8) | (cookie[3] & 0xFFL);
+		return seconds * 1000;
+	}
+
+	private byte[] mac(byte[] cookie, NodeId client)
+	{
+		Mac mac = macs.get();
+		mac.update(cookie, 0, TIME_LENGTH);
+		mac.update(client.getId());
+		return mac.doFinal();
+	}
+
+	//forgets the sessions whose cookie is expired: they can't be replayed anymore
+	private void purge(long now)
+	{
+		Iterator<Long> it = servedSessions.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next() <= now)
+				it.remove();
+		}
+	}
+}
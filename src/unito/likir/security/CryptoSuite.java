@@ -0,0 +1,73 @@
+package unito.likir.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+/**
+ * A signature scheme: the generation of the key pairs, signing, verification and
+ * encoding of the public keys. The suite used by a node for its own keys is chosen
+ * in the settings (see CryptoSuites), while the signatures of the other nodes and of
+ * the CA are verified with the suite of their public key, so that nodes using
+ * different suites can work in the same overlay.
+ * Implementations must be thread safe.
+ */
+public interface CryptoSuite
+{
+	/**
+	 * Returns the name of the suite, as written in the signatureSuite setting
+	 * @return the name of the suite
+	 */
+	public String getName();
+
+	/**
+	 * Returns whether a public key belongs to this suite
+	 * @param key the public key
+	 * @return true if the signatures made with the key can be verified by this suite
+	 */
+	public boolean accepts(PublicKey key);
+
+	/**
+	 * Generates a new key pair
+	 * @param random the source of randomness
+	 * @return the key pair
+	 * @throws GeneralSecurityException if the key pair can't be generated
+	 */
+	public KeyPair generateKeyPair(SecureRandom random) throws GeneralSecurityException;
+
+	/**
+	 * Signs some data
+	 * @param data the data to be signed
+	 * @param key the private key
+	 * @return the signature
+	 * @throws GeneralSecurityException if the key is invalid
+	 */
+	public byte[] sign(byte[] data, PrivateKey key) throws GeneralSecurityException;
+
+	/**
+	 * Verifies the signature of some data
+	 * @param data the signed data
+	 * @param signature the signature
+	 * @param key the public key of the signer
+	 * @return true if the signature is valid
+	 * @throws GeneralSecurityException if the key is invalid
+	 */
+	public boolean verify(byte[] data, byte[] signature, PublicKey key) throws GeneralSecurityException;
+
+	/**
+	 * Returns the standard (X.509) encoding of a public key
+	 * @param key the public key
+	 * @return the encoded key
+	 */
+	public byte[] encodePublicKey(PublicKey key);
+
+	/**
+	 * Rebuilds a public key from its X.509 encoding
+	 * @param encoded the encoded key
+	 * @return the public key
+	 * @throws GeneralSecurityException if the encoding is invalid
+	 */
+	public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException;
+}
@@ -0,0 +1,91 @@
+package unito.likir.security;
+
+import java.security.PublicKey;
+
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+
+/**
+ * The available signature suites. RSA (1024 bit keys, SHA1withRSA) is the original
+ * Likir scheme; Ed25519 has much faster signing and 64 byte signatures. Both come
+ * from the BouncyCastle provider, so that the keys have the same class, hence the
+ * same serialized form, on every JVM
+ */
+public class CryptoSuites
+{
+	public static final CryptoSuite RSA = new JcaCryptoSuite("rsa", "SHA1withRSA", "RSA", 1024, "BC", "RSA");
+	public static final CryptoSuite ED25519 = new JcaCryptoSuite("ed25519", "Ed25519", "Ed25519", 255, "BC", "Ed25519", "EdDSA");
+
+	private static final CryptoSuite[] SUITES = {RSA, ED25519};
+	private static volatile CryptoSuite configured; //read once from the settings
+
+	private CryptoSuites()
+	{
+	}
+
+	/**
+	 * Returns a suite by name
+	 * @param name the name of the suite (rsa or ed25519)
+	 * @return the suite
+	 * @throws IllegalArgumentException if there is no suite with the given name
+	 */
+	public static CryptoSuite get(String name)
+	{
+		for (CryptoSuite suite : SUITES)
+			if (suite.getName().equalsIgnoreCase(name.trim()))
+				return suite;
+		throw new IllegalArgumentException("Unknown signature suite " + name);
+	}
+
+	/**
+	 * Returns the suite of a public key
+	 * @param key the public key
+	 * @return the suite, null if the key belongs to no known suite
+	 */
+	public static CryptoSuite forKey(PublicKey key)
+	{
+		for (CryptoSuite suite : SUITES)
+			if (suite.accepts(key))
+				return suite;
+		return null;
+	}
+
+	/**
+	 * Returns the suite of a key algorithm
+	 * @param algorithm the algorithm, as returned by PublicKey.getAlgorithm()
+	 * @return the suite, null if the algorithm belongs to no known suite
+	 */
+	public static CryptoSuite forAlgorithm(String algorithm)
+	{
+		if (algorithm.equalsIgnoreCase("RSA"))
+			return RSA;
+		if (algorithm.equalsIgnoreCase("Ed25519") || algorithm.equalsIgnoreCase("EdDSA"))
+			return ED25519;
+		return null;
+	}
+
+	/**
+	 * Returns the suite used to generate the keys of this JVM (signatureSuite setting)
+	 * @return the configured suite, RSA if the setting is missing
+	 */
+	public static CryptoSuite getConfigured()
+	{
+		CryptoSuite suite = configured;
+		if (suite == null)
+		{
+			String name = PropFinder.get(Settings.SIGNATURE_SUITE);
+			suite = name == null ? RSA : get(name);
+			configured = suite;
+		}
+		return suite;
+	}
+
+	/**
+	 * Overrides the signatureSuite setting of this JVM
+	 * @param suite the suite used to generate the keys
+	 */
+	public static void setConfigured(CryptoSuite suite)
+	{
+		configured = suite;
+	}
+}
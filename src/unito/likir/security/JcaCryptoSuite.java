@@ -0,0 +1,115 @@
+package unito.likir.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * A CryptoSuite built on the algorithms of a JCA provider. Every thread signs and
+ * verifies with its own Signature instance, since they are not thread safe.
+ * The keys are generated and decoded by the same provider: the serialized form of a
+ * key depends on its class, and it is part of the signed AuthNodeIds and Credentials
+ */
+public class JcaCryptoSuite implements CryptoSuite
+{
+	private final String name;
+	private final String signatureAlgorithm;
+	private final String keyAlgorithm;
+	private final int keySize;
+	private final String provider;
+	private final String[] keyAlgorithms; //the names of the algorithm of the accepted keys
+	private final ThreadLocal<Signature> signatures;
+
+	/**
+	 * Create a new JcaCryptoSuite
+	 * @param name the name of the suite
+	 * @param signatureAlgorithm the JCA name of the signature algorithm
+	 * @param keyAlgorithm the JCA name of the key algorithm
+	 * @param keySize the size of the generated keys, 0 for the default of the provider
+	 * @param provider the name of the provider
+	 * @param keyAlgorithms the names returned by getAlgorithm() for the keys of this suite
+	 */
+	public JcaCryptoSuite(String name, String signatureAlgorithm, String keyAlgorithm, int keySize, String provider, String... keyAlgorithms)
+	{
+		this.name = name;
+		this.signatureAlgorithm = signatureAlgorithm;
+		this.keyAlgorithm = keyAlgorithm;
+		this.keySize = keySize;
+		this.provider = provider;
+		this.keyAlgorithms = keyAlgorithms;
+		this.signatures = new ThreadLocal<Signature>()
+		{
+			protected Signature initialValue()
+			{
+				try
+				{
+					return Signature.getInstance(JcaCryptoSuite.this.signatureAlgorithm, JcaCryptoSuite.this.provider);
+				}
+				catch (GeneralSecurityException gse)
+				{
+					throw new IllegalStateException("JcaCryptoSuite: " + JcaCryptoSuite.this.signatureAlgorithm + " is not available", gse);
+				}
+			}
+		};
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public boolean accepts(PublicKey key)
+	{
+		if (key == null)
+			return false;
+		for (String algorithm : keyAlgorithms)
+			if (algorithm.equalsIgnoreCase(key.getAlgorithm()))
+				return true;
+		return false;
+	}
+
+	public KeyPair generateKeyPair(SecureRandom random) throws GeneralSecurityException
+	{
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm, provider);
+		if (keySize > 0)
+			generator.initialize(keySize, random);
+		return generator.generateKeyPair();
+	}
+
+	public byte[] sign(byte[] data, PrivateKey key) throws GeneralSecurityException
+	{
+		Signature signature = signatures.get();
+		signature.initSign(key);
+		signature.update(data);
+		return signature.sign();
+	}
+
+	public boolean verify(byte[] data, byte[] signature, PublicKey key) throws GeneralSecurityException
+	{
+		Signature verifier = signatures.get();
+		verifier.initVerify(key);
+		verifier.update(data);
+		return verifier.verify(signature);
+	}
+
+	public byte[] encodePublicKey(PublicKey key)
+	{
+		return key.getEncoded();
+	}
+
+	public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException
+	{
+		return KeyFactory.getInstance(keyAlgorithm, provider).generatePublic(new X509EncodedKeySpec(encoded));
+	}
+
+	public String toString()
+	{
+		return "CryptoSuite " + name + " (" + signatureAlgorithm + ", " + provider + ")";
+	}
+}
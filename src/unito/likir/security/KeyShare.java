@@ -0,0 +1,82 @@
+package unito.likir.security;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import unito.likir.NodeId;
+
+/**
+ * The public half of the key agreement key pair of a node, signed with the node's
+ * private key (the key of its AuthNodeId). Two nodes knowing each other's KeyShare
+ * derive the same session key, used to authenticate their RPCs with a MAC instead
+ * of a signature (see SessionKeyManager). A node replaces its KeyShare periodically
+ */
+public class KeyShare implements Serializable
+{
+	private static final long serialVersionUID = -4129518650340921473L;
+
+	private final KeyShareContent content;
+	private byte[] signature;
+
+	/**
+	 * Create a new KeyShare, with a null signature
+	 * @param nodeId the NodeId of the owner of the share
+	 * @param shareId the random identifier of the share
+	 * @param publicKey the X.509 encoding of the key agreement public key
+	 * @param expireTime the share expire time
+	 */
+	public KeyShare(NodeId nodeId, long shareId, byte[] publicKey, long expireTime)
+	{
+		this.content = new KeyShareContent(nodeId, shareId, publicKey, expireTime);
+		this.signature = null;
+	}
+
+	/**
+	 * Return the content of this KeyShare (data without signature)
+	 * @return the content
+	 */
+	public KeyShareContent getContent()
+	{
+		return content;
+	}
+
+	/**
+	 * Return the signature of this KeyShare
+	 * @return the signature
+	 */
+	public byte[] getSignature()
+	{
+		return signature;
+	}
+
+	/**
+	 * Set the signature
+	 * @param signature the signature
+	 */
+	public void setSignature(byte[] signature)
+	{
+		this.signature = signature;
+	}
+
+	/**
+	 * Returns whether two KeyShares have the same content and signature
+	 * @param other the other KeyShare
+	 * @return true if the KeyShares are the same
+	 */
+	public boolean sameAs(KeyShare other)
+	{
+		if (other == this)
+			return true;
+		if (other == null)
+			return false;
+		KeyShareContent c = other.getContent();
+		return content.getShareId() == c.getShareId() && content.getExpireTime() == c.getExpireTime()
+				&& content.getNodeId().equals(c.getNodeId()) && Arrays.equals(content.getPublicKey(), c.getPublicKey())
+				&& Arrays.equals(signature, other.getSignature());
+	}
+
+	public String toString()
+	{
+		return "KeyShare: nodeId=" + content.getNodeId() + " - id=" + Long.toHexString(content.getShareId());
+	}
+}
@@ -0,0 +1,69 @@
+package unito.likir.security;
+
+import java.io.Serializable;
+
+import unito.likir.NodeId;
+
+/**
+ * The content of a KeyShare
+ */
+public class KeyShareContent implements Serializable
+{
+	private static final long serialVersionUID = 2786452109318817730L;
+
+	private final NodeId nodeId;
+	private final long shareId;
+	private final byte[] publicKey;
+	private final long expireTime;
+
+	/**
+	 * Create a new KeyShareContent
+	 * @param nodeId the NodeId of the owner of the share
+	 * @param shareId the random identifier of the share
+	 * @param publicKey the X.509 encoding of the key agreement public key
+	 * @param expireTime the share expire time
+	 */
+	public KeyShareContent(NodeId nodeId, long shareId, byte[] publicKey, long expireTime)
+	{
+		this.nodeId = nodeId;
+		this.shareId = shareId;
+		this.publicKey = publicKey;
+		this.expireTime = expireTime;
+	}
+
+	/**
+	 * Return the NodeId of the owner of the share
+	 * @return the NodeId
+	 */
+	public NodeId getNodeId()
+	{
+		return nodeId;
+	}
+
+	/**
+	 * Return the identifier of the share
+	 * @return the share identifier
+	 */
+	public long getShareId()
+	{
+		return shareId;
+	}
+
+	/**
+	 * Return the encoded key agreement public key
+	 * @return the X.509 encoding of the public key
+	 */
+	public byte[] getPublicKey()
+	{
+		return publicKey;
+	}
+
+	/**
+	 * Return the expire time
+	 * @return the expire time
+	 */
+	public long getExpireTime()
+	{
+		return expireTime;
+	}
+}
@@ -1,6 +1,7 @@
 package unito.likir.security;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.security.SignatureException;
 import java.util.Arrays;
@@ -10,13 +11,18 @@ import java.util.Random;
 
 import unito.likir.Node;
 import unito.likir.NodeId;
+import unito.likir.messages.dht.MessageCodec;
 import unito.likir.messages.dht.Nonce;
 import unito.likir.messages.dht.RPC;
 import unito.likir.messages.dht.RPCMessage;
+import unito.likir.messages.dht.RPCMessageImpl;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
 import unito.likir.storage.StorageEntry;
 
 /**
- * SecurityAgent class
+ * SecurityAgent class. An agent is used by many threads at the same time: its methods
+ * hold no lock and every thread signs, verifies and hashes with its own primitives
  * @author Luca Maria Aiello
  * @version 0.1
  */
@@ -27,8 +33,11 @@ public class NodeSecurityAgent extends SecurityAgent
 	
 	private Node localNode;
 	private Random randomGenerator;
-	private AuthNodeId localAuthNodeId;
-	private PublicKey CAPublicKey;
+	private volatile AuthNodeId localAuthNodeId;
+	private volatile PublicKey CAPublicKey;
+	private transient volatile CookieManager cookieManager; //created on first use, its secret is never saved
+	private transient volatile AuthNodeIdCache authNodeIdCache; //created on first use, never saved
+	private transient volatile SessionKeyManager sessionKeyManager; //created on first use, its keys are never saved
 	
 	public NodeSecurityAgent(Node localNode)
 	{
@@ -58,6 +67,82 @@ public class NodeSecurityAgent extends SecurityAgent
 		return CAPublicKey;
 	}
 	
+	/**
+	 * Returns the manager of the nonce cookies issued by this node in stateless RPC mode
+	 * @return the cookie manager
+	 */
+	public CookieManager getCookieManager()
+	{
+		CookieManager manager = cookieManager;
+		if (manager == null)
+		{
+			synchronized(this)
+			{
+				if (cookieManager == null)
+					cookieManager = new CookieManager(Long.parseLong(PropFinder.get(Settings.COOKIE_LIFETIME)));
+				manager = cookieManager;
+			}
+		}
+		return manager;
+	}
+	
+	/**
+	 * Returns the cache of the AuthNodeIds of other nodes already verified, with its statistics
+	 * @return the AuthNodeId cache
+	 */
+	public AuthNodeIdCache getAuthNodeIdCache()
+	{
+		AuthNodeIdCache cache = authNodeIdCache;
+		if (cache == null)
+		{
+			synchronized(this)
+			{
+				if (authNodeIdCache == null)
+				{
+					String size = PropFinder.get(Settings.AUTH_NODE_ID_CACHE_SIZE);
+					authNodeIdCache = new AuthNodeIdCache(size == null ? 4096 : Integer.parseInt(size.trim()));
+				}
+				cache = authNodeIdCache;
+			}
+		}
+		return cache;
+	}
+	
+	/**
+	 * Returns the manager of the session keys shared with the other nodes
+	 * @return the session key manager, null if the session keys are disabled
+	 */
+	public SessionKeyManager getSessionKeyManager()
+	{
+		SessionKeyManager manager = sessionKeyManager;
+		if (manager == null)
+		{
+			if (!Boolean.parseBoolean(PropFinder.get(Settings.SESSION_KEYS)))
+				return null;
+			synchronized(this)
+			{
+				if (sessionKeyManager == null)
+					sessionKeyManager = new SessionKeyManager(this, Long.parseLong(PropFinder.get(Settings.SESSION_KEY_LIFETIME)),
+							Integer.parseInt(PropFinder.get(Settings.SESSION_KEY_CACHE_SIZE)));
+				manager = sessionKeyManager;
+			}
+		}
+		return manager;
+	}
+	
+	/**
+	 * Forgets the KeyShare of a node used to authenticate a message with a MAC: the
+	 * next messages to the node are signed. Called when the node doesn't answer, since
+	 * it may no longer know its KeyShare (e.g. it restarted)
+	 * @param auth the Authenticator of the unanswered message
+	 */
+	public void invalidateSession(Authenticator auth)
+	{
+		SessionKeyManager manager = sessionKeyManager;
+		if (manager != null && auth != null && auth.getMac() != null)
+			manager.invalidate(auth.getContent().getId(), auth.getPeerShareId());
+	}
+	
 	public void setAuthNodeId(AuthNodeId authNodeId)
 	{
 		this.localAuthNodeId = authNodeId;
@@ -66,27 +151,48 @@ public class NodeSecurityAgent extends SecurityAgent
 	public void setCAPublicKey(PublicKey key)
 	{
 		this.CAPublicKey = key;
+		AuthNodeIdCache cache = authNodeIdCache;
+		if (cache != null)
+			cache.clear(); //verified with another key
 	}
 	
-	public synchronized Authenticator buildAuthenticator(NodeId id, byte[] nonce, RPC rpc) throws SignatureException
+	public Authenticator buildAuthenticator(NodeId id, byte[] nonce, RPC rpc) throws SignatureException
 	{
-		byte[] rpcHash = null;
+		byte[] encodedRPC = null;
 		try
 		{
-			rpcHash = hash(toBytes(rpc));
+			encodedRPC = MessageCodec.encodeRPC(rpc);
 		}
 		catch (IOException e) //it should never happen
 		{
 			System.err.println("Error in authenticator construction");
 			e.printStackTrace();
+			Authenticator auth = new Authenticator(id,nonce,null);
+			auth.setSignature(sign(auth.getContent()));
+			return auth;
 		}
-		Authenticator auth = new Authenticator(id,nonce,rpcHash);
-		byte[] signature = sign(auth.getContent());
-		auth.setSignature(signature);
+		return buildAuthenticator(id, nonce, encodedRPC);
+	}
+	
+	/**
+	 * Builds the Authenticator of an RPC already encoded with MessageCodec.encodeRPC():
+	 * the same bytes must be sent in the message
+	 * @param id the NodeId of the addressee
+	 * @param nonce the nonce of the session
+	 * @param encodedRPC the encoded RPC
+	 * @return the signed Authenticator, or authenticated with a MAC if session keys are enabled and the addressee's KeyShare is known
+	 * @throws SignatureException if the Authenticator can't be signed
+	 */
+	public Authenticator buildAuthenticator(NodeId id, byte[] nonce, byte[] encodedRPC) throws SignatureException
+	{
+		Authenticator auth = new Authenticator(id,nonce,hash(encodedRPC));
+		SessionKeyManager manager = getSessionKeyManager();
+		if (manager == null || !manager.authenticate(auth))
+			auth.setSignature(sign(auth.getContent()));
 		return auth;
 	}
 	
-	public synchronized Credentials buildCredentials(byte[] object, long ttl) throws SignatureException
+	public Credentials buildCredentials(byte[] object, long ttl) throws SignatureException
 	{
 		byte[] objectHash = hash(object);
 		Credentials credentials = new Credentials(localNode.getUserId(), localNode.getSecurityAgent().getPublicKey(), System.currentTimeMillis(), ttl, objectHash);
@@ -95,7 +201,7 @@ public class NodeSecurityAgent extends SecurityAgent
 		return credentials;
 	}
 	
-	public synchronized boolean check(RPCMessage message, Nonce receivedNonce, Nonce sentNonce)
+	public boolean check(RPCMessage message, Nonce receivedNonce, Nonce sentNonce)
 	{
 		AuthNodeId authNodeId = message.getAuthNodeId();
 		Authenticator auth = message.getAuthenticator();
@@ -108,21 +214,21 @@ public class NodeSecurityAgent extends SecurityAgent
 				{
 					if (authNodeId.getContent().getExpireTime() > System.currentTimeMillis())
 					{
-						if (verifyHash(message.getRPC(), auth.getContent().getRpcHash()))
+						if (verifyRPCHash(message, auth.getContent().getRpcHash()))
 						{
 							try
 							{
-								if (verifySignature(auth.getContent(), auth.getSignature(), authNodeId.getContent().getKey()))
+								if (verifyAuthNodeId(authNodeId))
 								{
-									if (verifySignature(authNodeId.getContent(), authNodeId.getSignature(), CAPublicKey))
+									if (verifyAuthenticator(auth, authNodeId))
 									{
 										return true;
 									}
 									else
-										System.err.println("Msg check failed: Invalid AuthNodeId signature");
+										System.err.println("Msg check failed: Invalid authenticator signature");
 								}
 								else
-									System.err.println("Msg check failed: Invalid authenticator signature");
+									System.err.println("Msg check failed: Invalid AuthNodeId signature");
 							}
 							catch(SignatureException se)
 							{
@@ -146,12 +252,63 @@ public class NodeSecurityAgent extends SecurityAgent
 		return false;
 	}
 	
-	public synchronized boolean check(StorageEntry se) throws SignatureException
+	public boolean check(StorageEntry se) throws SignatureException
 	{
 		return verifySignature(se.getCredentials().getContent(), se.getCredentials().getSignature(), se.getCredentials().getContent().getPublicKey());
 	}
 	
-	public synchronized Collection<StorageEntry> clean(Collection<StorageEntry> entries)
+	/*
+	 * The CA signature of an AuthNodeId is verified only the first time the AuthNodeId
+	 * is received, then until it expires it is found in the cache
+	 */
+	private boolean verifyAuthNodeId(AuthNodeId authNodeId) throws SignatureException
+	{
+		AuthNodeIdCache cache = getAuthNodeIdCache();
+		if (cache.contains(authNodeId))
+			return true;
+		if (!verifySignature(authNodeId.getContent(), authNodeId.getSignature(), CAPublicKey))
+			return false;
+		cache.put(authNodeId);
+		return true;
+	}
+	
+	/*
+	 * An Authenticator with a MAC is verified with the session key shared with the
+	 * sender, which must be checked first: a signed Authenticator is verified with the
+	 * sender's key, and teaches its KeyShare, if any, to the session key manager
+	 */
+	private boolean verifyAuthenticator(Authenticator auth, AuthNodeId authNodeId) throws SignatureException
+	{
+		SessionKeyManager manager = getSessionKeyManager();
+		if (auth.getMac() != null)
+			return manager != null && manager.verify(auth, authNodeId);
+		if (!verifySignature(auth.getContent(), auth.getSignature(), authNodeId.getContent().getKey()))
+			return false;
+		if (manager != null && auth.getKeyShare() != null)
+			manager.learn(auth.getKeyShare(), authNodeId);
+		return true;
+	}
+	
+	/*
+	 * The hash of an RPC is computed on its binary encoding: the received bytes if the
+	 * message travelled in the binary format, otherwise the RPC is encoded again
+	 */
+	private boolean verifyRPCHash(RPCMessage message, byte[] rpcHash)
+	{
+		try
+		{
+			ByteBuffer received = message instanceof RPCMessageImpl ? ((RPCMessageImpl)message).getEncodedRPC() : null;
+			if (received != null)
+				return Arrays.equals(hash(received), rpcHash);
+			return Arrays.equals(hash(MessageCodec.encodeRPC(message.getRPC())), rpcHash);
+		}
+		catch(IOException ioe)
+		{
+			return false;
+		}
+	}
+	
+	public Collection<StorageEntry> clean(Collection<StorageEntry> entries)
 	{
 		Collection<StorageEntry> cleaned = new HashSet<StorageEntry>();
 		for (StorageEntry se : entries)
@@ -1,18 +1,17 @@
 package unito.likir.security;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
-import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Arrays;
 
@@ -28,37 +27,56 @@ public class SecurityAgent implements Serializable
 {
 	private static final long serialVersionUID = 3372196637413971724L;
 
-	//the RSA key pair of this instance
-	private KeyPair keyPair;
+	static
+	{
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	//the key pair of this instance, of the signature suite chosen in the settings (see CryptoSuites)
+	private volatile KeyPair keyPair;
 	
 	//a secure random function
 	private transient SecureRandom random;
 	
-	//RSA
-	private final int KEYSIZE = 1024;
-	private transient KeyPairGenerator keyPairGen;
-	private transient Cipher RSAcipher;
-	private transient Signature RSAsign;
-	
 	//DES
-	private transient Cipher DEScipher;
 	private transient KeyGenerator keyGen;
 	
-	//Hashing
-	private transient MessageDigest sha1md;
+	//Cipher and MessageDigest instances are not thread safe: every thread has its own
+	//ones, shared by all the agents, so that many messages are signed, verified and hashed
+	//at the same time without locking the agent (the CryptoSuites do the same)
+	private static final ThreadLocal<Cipher> RSAciphers = new PerThread<Cipher>()
+	{
+		protected Cipher create() throws GeneralSecurityException
+		{
+			return Cipher.getInstance("RSA/NONE/PKCS1Padding", "BC");
+		}
+	};
+	private static final ThreadLocal<Cipher> DESciphers = new PerThread<Cipher>()
+	{
+		protected Cipher create() throws GeneralSecurityException
+		{
+			return Cipher.getInstance("DES");
+		}
+	};
+	private static final ThreadLocal<MessageDigest> sha1mds = new PerThread<MessageDigest>()
+	{
+		protected MessageDigest create() throws GeneralSecurityException
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+	};
 	
 	public SecurityAgent()
 	{
 		try
 		{
-			Security.addProvider(new BouncyCastleProvider());
-			keyPairGen = KeyPairGenerator.getInstance("RSA", "BC");
 			random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-			DEScipher = Cipher.getInstance("DES");
-			RSAcipher = Cipher.getInstance("RSA/NONE/PKCS1Padding", "BC");
-			sha1md = MessageDigest.getInstance("SHA-1");
-			RSAsign = Signature.getInstance("SHA1withRSA", "BC");
 			keyGen = KeyGenerator.getInstance("DES");
+			//fail now if an algorithm is unavailable
+			RSAciphers.get();
+			CryptoSuites.getConfigured();
+			DESciphers.get();
+			sha1mds.get();
 		}
 		catch(Exception e)
 		{
@@ -105,8 +123,7 @@ public class SecurityAgent implements Serializable
 	{
 		try
 		{
-			keyPairGen.initialize(KEYSIZE, random);
-			return keyPairGen.generateKeyPair();
+			return CryptoSuites.getConfigured().generateKeyPair(random);
 		}
 		catch (Exception e)
 		{
@@ -122,12 +139,20 @@ public class SecurityAgent implements Serializable
 	
 	public byte[] hash(byte[] object)
 	{
+		MessageDigest sha1md = sha1mds.get();
 		byte[] hash;
 		sha1md.update(object, 0, object.length);
 		hash = sha1md.digest();
 		return hash;
 	}
 	
+	public byte[] hash(ByteBuffer object)
+	{
+		MessageDigest sha1md = sha1mds.get();
+		sha1md.update(object.duplicate());
+		return sha1md.digest();
+	}
+	
 	public boolean verifyHash(Serializable obj, byte[] hash)
 	{
 		try
@@ -146,6 +171,7 @@ public class SecurityAgent implements Serializable
 		try
 		{
 			byte[] bytes = toBytes(obj);
+			Cipher DEScipher = DESciphers.get();
 			DEScipher.init(Cipher.ENCRYPT_MODE, key);
 			return DEScipher.doFinal( bytes );
 		}
@@ -170,6 +196,7 @@ public class SecurityAgent implements Serializable
 	{
 		try
 		{
+			Cipher DEScipher = DESciphers.get();
 			DEScipher.init(Cipher.DECRYPT_MODE, key);
 			return DEScipher.doFinal( encData );
 		}
@@ -195,17 +222,9 @@ public class SecurityAgent implements Serializable
 		try
 		{
 			byte[] bytes = toBytes(obj);
+			Cipher RSAcipher = RSAciphers.get();
 			RSAcipher.init(Cipher.ENCRYPT_MODE, publicKey);
-			
-			ByteArrayInputStream bufin = new ByteArrayInputStream(bytes);
-			byte[] buffer = new byte[16];
-			int len;
-			while (bufin.available() != 0)
-			{
-				len = bufin.read(buffer);
-				RSAcipher.update( buffer, 0, len );
-			}
-			return RSAcipher.doFinal();
+			return RSAcipher.doFinal(bytes);
 		}
 		catch (InvalidKeyException e)
 		{
@@ -228,6 +247,7 @@ public class SecurityAgent implements Serializable
 	{
 		try
 		{
+			Cipher RSAcipher = RSAciphers.get();
 			RSAcipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
 			return RSAcipher.doFinal( encData );
 		}
@@ -252,23 +272,15 @@ public class SecurityAgent implements Serializable
 	{
 		try
 		{
-			//Signature algorithm initialization
-			RSAsign.initSign(keyPair.getPrivate());
-
 			//Transform the object to be signed to a byte[]
 			byte[] bytes = toBytes(obj);
 			
-			//Signature
-			ByteArrayInputStream bufin = new ByteArrayInputStream(bytes);
-			byte[] buffer = new byte[1024];
-			int len;
-			while (bufin.available() != 0)
-			{
-			    len = bufin.read(buffer);
-			    RSAsign.update(buffer, 0, len);
-			}
-			bufin.close();
-			byte[] signature = RSAsign.sign();
+			//Signature, with the suite of the key pair
+			KeyPair pair = keyPair;
+			CryptoSuite suite = CryptoSuites.forKey(pair.getPublic());
+			if (suite == null)
+				throw new InvalidKeyException("Unsupported key " + pair.getPublic().getAlgorithm());
+			byte[] signature = suite.sign(bytes, pair.getPrivate());
 			return signature;
 		}
 		catch (InvalidKeyException ike)
@@ -286,32 +298,24 @@ public class SecurityAgent implements Serializable
 			//se.printStackTrace();
 			throw new SignatureException("Signature error");
 		}
+		catch (GeneralSecurityException gse)
+		{
+			throw new SignatureException("Signature error");
+		}
 	}
 	
 	public boolean verifySignature(Serializable obj, byte[] signature, PublicKey pubKey) throws SignatureException
 	{
 		try
 		{
-			//Signature algorithm initialization
-			RSAsign.initVerify(pubKey);
-		
 			//Transform the object to be signed to a byte[]
 			byte[] bytes = toBytes(obj);
 		
-			//Verify
-			ByteArrayInputStream bufin = new ByteArrayInputStream(bytes);
-			
-			byte[] buffer = new byte[1024];
-			int len;
-			while (bufin.available() != 0)
-			{
-			    len = bufin.read(buffer);
-			    RSAsign.update(buffer, 0, len);
-			}
-	
-			bufin.close();
-			
-			return RSAsign.verify(signature);
+			//Verify, with the suite of the signer's key
+			CryptoSuite suite = CryptoSuites.forKey(pubKey);
+			if (suite == null)
+				throw new InvalidKeyException("Unsupported key");
+			return suite.verify(bytes, signature, pubKey);
 		}
 		catch (InvalidKeyException ike)
 		{
@@ -328,6 +332,10 @@ public class SecurityAgent implements Serializable
 			//se.printStackTrace();
 			throw new SignatureException("Signature error");
 		}
+		catch (GeneralSecurityException gse)
+		{
+			throw new SignatureException("Signature error");
+		}
 
 	}
 	
@@ -340,4 +348,24 @@ public class SecurityAgent implements Serializable
 		byte[] bytes = baos.toByteArray();
 		return bytes;
 	}
+	
+	/*
+	 * A crypto primitive for every thread
+	 */
+	private static abstract class PerThread<T> extends ThreadLocal<T>
+	{
+		protected abstract T create() throws GeneralSecurityException;
+		
+		protected T initialValue()
+		{
+			try
+			{
+				return create();
+			}
+			catch (GeneralSecurityException gse)
+			{
+				throw new IllegalStateException("SecurityAgent: crypto algorithm not available", gse);
+			}
+		}
+	}
 }
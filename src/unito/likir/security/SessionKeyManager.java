@@ -0,0 +1,481 @@
+package unito.likir.security;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import unito.likir.NodeId;
+
+/**
+ * Manages the session keys of a node in session key mode. The node owns an X25519
+ * key agreement key pair, whose public half is published in a KeyShare signed with
+ * the node's private key and attached to every Authenticator it sends. Once a node
+ * knows the KeyShare of a peer, both derive the same session key (X25519 followed by
+ * HMAC-SHA256 over the NodeIds and the share identifiers of the two nodes) and the
+ * Authenticators they exchange carry an HMAC-SHA256 instead of a signature.
+ * The KeyShare of a node is replaced after half its lifetime; the previous one is
+ * accepted until it expires, so the peers which still use it are not rejected.
+ * The session keys and the KeyShares of the peers are kept in LRU caches.
+ * A KeyShare is verified once, when it is first received: the same share is then
+ * found in the caches.
+ */
+public class SessionKeyManager
+{
+	private static final String AGREEMENT_ALGORITHM = "X25519";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final byte[] LABEL = "likir-session-key".getBytes(Charset.forName("UTF-8"));
+	private static final long EXPIRE_MARGIN = 10000; //a peer share is not used if it expires within this time (in milliseconds)
+
+	private final NodeSecurityAgent agent;
+	private final long lifetime; //validity of the local KeyShares (in milliseconds)
+	private final SecureRandom random;
+	private final Map<NodeId,KeyShare> peerShares; //the latest verified share of every peer, LRU
+	private final Map<PairKey,SessionKey> sessionKeys; //LRU
+	private final ThreadLocal<Mac> macs; //Mac instances are not thread safe
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+	private volatile LocalShare current;
+	private volatile LocalShare previous;
+
+	/**
+	 * Create a new SessionKeyManager
+	 * @param agent the security agent of the node, which signs its KeyShares
+	 * @param lifetime the validity of the KeyShares of the node (in milliseconds)
+	 * @param capacity the maximum number of session keys and of peer KeyShares kept
+	 */
+	public SessionKeyManager(NodeSecurityAgent agent, long lifetime, final int capacity)
+	{
+		if (lifetime <= 2 * EXPIRE_MARGIN || capacity <= 0)
+			throw new IllegalArgumentException("Invalid session key parameters");
+		try
+		{
+			KeyAgreement.getInstance(AGREEMENT_ALGORITHM, "BC"); //fail now if the algorithms are unavailable
+			Mac.getInstance(MAC_ALGORITHM);
+		}
+		catch (GeneralSecurityException gse)
+		{
+			throw new IllegalStateException("SessionKeyManager: " + gse.getMessage(), gse);
+		}
+		this.agent = agent;
+		this.lifetime = lifetime;
+		this.random = new SecureRandom();
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.evictions = new AtomicLong(0);
+		this.peerShares = new LinkedHashMap<NodeId,KeyShare>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<NodeId,KeyShare> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+		this.sessionKeys = new LinkedHashMap<PairKey,SessionKey>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<PairKey,SessionKey> eldest)
+			{
+				if (size() <= capacity)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+		this.macs = new ThreadLocal<Mac>()
+		{
+			protected Mac initialValue()
+			{
+				try
+				{
+					return Mac.getInstance(MAC_ALGORITHM);
+				}
+				catch (GeneralSecurityException gse)
+				{
+					throw new IllegalStateException(gse);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the current KeyShare of the node, replacing it if it is too old
+	 * @return the KeyShare to be attached to the Authenticators
+	 * @throws SignatureException if a new KeyShare can't be built
+	 */
+	public KeyShare getLocalShare() throws SignatureException
+	{
+		return getCurrent().share;
+	}
+
+	/**
+	 * Returns the KeyShare of a peer, if it is known and still valid
+	 * @param peer the NodeId of the peer
+	 * @return the KeyShare, null if the messages to the peer must be signed
+	 */
+	public KeyShare getPeerShare(NodeId peer)
+	{
+		synchronized (peerShares)
+		{
+			KeyShare share = peerShares.get(peer);
+			if (share == null)
+				return null;
+			if (share.getContent().getExpireTime() <= System.currentTimeMillis() + EXPIRE_MARGIN)
+			{
+				peerShares.remove(peer);
+				return null;
+			}
+			return share;
+		}
+	}
+
+	/**
+	 * Forgets the KeyShare of a peer, e.g. after a session authenticated with it
+	 * failed (the peer may have restarted), unless it has already been replaced
+	 * @param peer the NodeId of the peer
+	 * @param shareId the identifier of the share
+	 */
+	public void invalidate(NodeId peer, long shareId)
+	{
+		synchronized (peerShares)
+		{
+			KeyShare share = peerShares.get(peer);
+			if (share != null && share.getContent().getShareId() == shareId)
+				peerShares.remove(peer);
+		}
+	}
+
+	/**
+	 * Records the KeyShare attached to a message, verifying its signature if it has
+	 * not been seen before
+	 * @param share the KeyShare
+	 * @param sender the verified AuthNodeId of the sender of the message
+	 * @return false if the KeyShare is not valid
+	 */
+	public boolean learn(KeyShare share, AuthNodeId sender)
+	{
+		KeyShareContent content = share.getContent();
+		NodeId peer = sender.getContent().getNodeId();
+		if (!peer.equals(content.getNodeId()) || content.getExpireTime() <= System.currentTimeMillis()
+				|| content.getPublicKey() == null || share.getSignature() == null)
+			return false;
+		synchronized (peerShares)
+		{
+			if (share.sameAs(peerShares.get(peer)))
+				return true;
+		}
+		try
+		{
+			if (!agent.verifySignature(content, share.getSignature(), sender.getContent().getKey()))
+				return false;
+		}
+		catch (SignatureException se)
+		{
+			return false;
+		}
+		synchronized (peerShares)
+		{
+			KeyShare known = peerShares.get(peer);
+			if (known == null || known.getContent().getExpireTime() <= content.getExpireTime())
+				peerShares.put(peer, share);
+		}
+		return true;
+	}
+
+	/**
+	 * Attaches the KeyShare of the node to an Authenticator and, if the KeyShare of
+	 * the addressee is known, authenticates it with a MAC
+	 * @param auth the Authenticator
+	 * @return true if the Authenticator has a MAC, false if it must be signed
+	 * @throws SignatureException if the KeyShare of the node can't be built
+	 */
+	public boolean authenticate(Authenticator auth) throws SignatureException
+	{
+		LocalShare local = getCurrent();
+		auth.setKeyShare(local.share);
+		KeyShare peer = getPeerShare(auth.getContent().getId());
+		if (peer == null)
+			return false;
+		SecretKeySpec key = getSessionKey(peer, local);
+		if (key == null)
+		{
+			invalidate(auth.getContent().getId(), peer.getContent().getShareId());
+			return false;
+		}
+		auth.setPeerShareId(peer.getContent().getShareId());
+		auth.setMac(computeMac(key, auth, local.share.getContent().getShareId()));
+		return true;
+	}
+
+	/**
+	 * Verifies the MAC of a received Authenticator
+	 * @param auth the Authenticator
+	 * @param sender the verified AuthNodeId of the sender
+	 * @return true if the MAC is valid
+	 */
+	public boolean verify(Authenticator auth, AuthNodeId sender)
+	{
+		KeyShare peer = auth.getKeyShare();
+		if (peer == null || auth.getMac() == null)
+			return false;
+		LocalShare local = findLocal(auth.getPeerShareId());
+		if (local == null)
+			return false; //unknown or expired share, the sender will sign its next message
+		if (!peer.getContent().getNodeId().equals(sender.getContent().getNodeId()))
+			return false;
+		SecretKeySpec key = getCachedKey(peer, local);
+		if (key == null)
+		{
+			if (!learn(peer, sender))
+				return false;
+			key = getSessionKey(peer, local);
+			if (key == null)
+				return false;
+		}
+		byte[] expected = computeMac(key, auth, peer.getContent().getShareId());
+		return MessageDigest.isEqual(expected, auth.getMac());
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	private LocalShare getCurrent() throws SignatureException
+	{
+		LocalShare share = current;
+		if (share == null || System.currentTimeMillis() >= share.share.getContent().getExpireTime() - lifetime / 2)
+			share = rotate();
+		return share;
+	}
+
+	private synchronized LocalShare rotate() throws SignatureException
+	{
+		long now = System.currentTimeMillis();
+		LocalShare share = current;
+		if (share != null && now < share.share.getContent().getExpireTime() - lifetime / 2)
+			return share; //replaced by another thread
+		try
+		{
+			KeyPairGenerator generator = KeyPairGenerator.getInstance(AGREEMENT_ALGORITHM, "BC");
+			generator.initialize(255, random);
+			KeyPair pair = generator.generateKeyPair();
+			long shareId;
+			do
+			{
+				shareId = random.nextLong();
+			}
+			while (shareId == 0);
+			KeyShare keyShare = new KeyShare(agent.getAuthNodeId().getContent().getNodeId(), shareId, pair.getPublic().getEncoded(), now + lifetime);
+			keyShare.setSignature(agent.sign(keyShare.getContent()));
+			previous = share;
+			current = new LocalShare(pair, keyShare);
+			return current;
+		}
+		catch (GeneralSecurityException gse)
+		{
+			throw new SignatureException("Can't build the KeyShare - " + gse.getMessage());
+		}
+	}
+
+	//the local share with the given identifier, if it has not expired
+	private LocalShare findLocal(long shareId)
+	{
+		long now = System.currentTimeMillis();
+		LocalShare share = current;
+		if (share != null && share.share.getContent().getShareId() == shareId && share.share.getContent().getExpireTime() > now)
+			return share;
+		share = previous;
+		if (share != null && share.share.getContent().getShareId() == shareId && share.share.getContent().getExpireTime() > now)
+			return share;
+		return null;
+	}
+
+	private SecretKeySpec getCachedKey(KeyShare peer, LocalShare local)
+	{
+		PairKey pair = new PairKey(peer.getContent().getNodeId(), peer.getContent().getShareId(), local.share.getContent().getShareId());
+		synchronized (sessionKeys)
+		{
+			SessionKey cached = sessionKeys.get(pair);
+			if (cached != null && cached.peer.sameAs(peer))
+			{
+				hits.incrementAndGet();
+				return cached.key;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Returns the session key of a verified peer share and a local share, deriving it
+	 * if it is not cached, or null if the peer share is not a valid X25519 key
+	 */
+	private SecretKeySpec getSessionKey(KeyShare peer, LocalShare local)
+	{
+		SecretKeySpec key = getCachedKey(peer, local);
+		if (key != null)
+			return key;
+		misses.incrementAndGet();
+		try
+		{
+			KeyAgreement agreement = KeyAgreement.getInstance(AGREEMENT_ALGORITHM, "BC");
+			agreement.init(local.pair.getPrivate());
+			agreement.doPhase(KeyFactory.getInstance(AGREEMENT_ALGORITHM, "BC").generatePublic(
+					new X509EncodedKeySpec(peer.getContent().getPublicKey())), true);
+			byte[] secret = agreement.generateSecret();
+
+			//the same key for both nodes: their NodeIds and share identifiers in NodeId order
+			KeyShareContent first = local.share.getContent();
+			KeyShareContent second = peer.getContent();
+			if (ByteBuffer.wrap(first.getNodeId().getBytes()).compareTo(ByteBuffer.wrap(second.getNodeId().getBytes())) > 0)
+			{
+				first = peer.getContent();
+				second = local.share.getContent();
+			}
+			Mac kdf = Mac.getInstance(MAC_ALGORITHM);
+			kdf.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			kdf.update(LABEL);
+			kdf.update(first.getNodeId().getBytes());
+			kdf.update(toBytes(first.getShareId()));
+			kdf.update(second.getNodeId().getBytes());
+			kdf.update(toBytes(second.getShareId()));
+			key = new SecretKeySpec(kdf.doFinal(), MAC_ALGORITHM);
+		}
+		catch (GeneralSecurityException gse)
+		{
+			return null;
+		}
+		PairKey pair = new PairKey(peer.getContent().getNodeId(), peer.getContent().getShareId(), local.share.getContent().getShareId());
+		synchronized (sessionKeys)
+		{
+			sessionKeys.put(pair, new SessionKey(peer, key));
+		}
+		return key;
+	}
+
+	//the MAC covers the content of the Authenticator and the shares the key was derived from
+	private byte[] computeMac(SecretKeySpec key, Authenticator auth, long senderShareId)
+	{
+		Mac mac = macs.get();
+		try
+		{
+			mac.init(key);
+		}
+		catch (GeneralSecurityException gse)
+		{
+			throw new IllegalStateException(gse);
+		}
+		AuthenticatorContent content = auth.getContent();
+		mac.update(content.getId().getBytes());
+		update(mac, content.getNonce());
+		update(mac, content.getRpcHash());
+		mac.update(toBytes(auth.getPeerShareId()));
+		mac.update(toBytes(senderShareId));
+		return mac.doFinal();
+	}
+
+	private static void update(Mac mac, byte[] b)
+	{
+		if (b == null)
+		{
+			mac.update(toBytes(-1L));
+			return;
+		}
+		mac.update(toBytes(b.length));
+		mac.update(b);
+	}
+
+	private static byte[] toBytes(long v)
+	{
+		return ByteBuffer.allocate(8).putLong(v).array();
+	}
+
+	public String toString()
+	{
+		int keys;
+		synchronized (sessionKeys)
+		{
+			keys = sessionKeys.size();
+		}
+		return "SessionKeyManager - keys=" + keys + ", hits=" + hits.get() + ", misses=" + misses.get()
+				+ ", evictions=" + evictions.get();
+	}
+
+	//a key agreement key pair of the node with its signed KeyShare
+	private static class LocalShare
+	{
+		final KeyPair pair;
+		final KeyShare share;
+
+		LocalShare(KeyPair pair, KeyShare share)
+		{
+			this.pair = pair;
+			this.share = share;
+		}
+	}
+
+	private static class SessionKey
+	{
+		final KeyShare peer;
+		final SecretKeySpec key;
+
+		SessionKey(KeyShare peer, SecretKeySpec key)
+		{
+			this.peer = peer;
+			this.key = key;
+		}
+	}
+
+	private static class PairKey
+	{
+		final NodeId peer;
+		final long peerShareId;
+		final long localShareId;
+
+		PairKey(NodeId peer, long peerShareId, long localShareId)
+		{
+			this.peer = peer;
+			this.peerShareId = peerShareId;
+			this.localShareId = localShareId;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof PairKey))
+				return false;
+			PairKey k = (PairKey)o;
+			return peerShareId == k.peerShareId && localShareId == k.localShareId && peer.equals(k.peer);
+		}
+
+		public int hashCode()
+		{
+			return peer.hashCode() * 31 + (int)(peerShareId ^ (peerShareId >>> 32) ^ localShareId ^ (localShareId >>> 32));
+		}
+	}
+}
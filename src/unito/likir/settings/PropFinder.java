@@ -16,6 +16,7 @@ import java.util.Properties;
 public class PropFinder
 {	
 	private static Properties prop = null;
+	private static final Properties overrides = new Properties(); //values set at runtime, they win over the file
 	
 	//State persistence
 	public static final String NODE_PERSISTENCE_PATH = "nodePersistencePath"; //directory in which node states are saved
@@ -31,6 +32,9 @@ public class PropFinder
 	 */
 	public static String get(String propertyName)
 	{
+		String override = overrides.getProperty(propertyName);
+		if (override != null)
+			return override;
 		if (prop == null || prop.getProperty(propertyName) == null)
 		{
 			try
@@ -61,6 +65,20 @@ public class PropFinder
 		return prop.getProperty(propertyName);
 	}
 	
+	/**
+	 * Overrides the value of a property for the rest of the execution (e.g. to run
+	 * a test with different settings). Objects already built keep the old value
+	 * @param propertyName the name of the property
+	 * @param value the new value, null restores the value of the file
+	 */
+	public static void set(String propertyName, String value)
+	{
+		if (value == null)
+			overrides.remove(propertyName);
+		else
+			overrides.setProperty(propertyName, value);
+	}
+	
 	private static void loadProperties(String path) throws FileNotFoundException, IOException
 	{
 		prop = new Properties();
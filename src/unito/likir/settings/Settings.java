@@ -16,6 +16,7 @@ public class Settings
 	public static final String DEFAULT_CA_PORT = "caPort"; // default CA TCP port
 	public static final String CA_PERSISTENCE_PATH = "acPersistencePath"; // directory in which CA state is saved
 	public static final String AUTH_NODE_ID_DURATION = "authNodeIdDuration"; //time validity of authNodeId
+	public static final String SIGNATURE_SUITE = "signatureSuite"; //algorithm of the generated keys: rsa or ed25519
 	public static final String PROBING_PERIOD = "probingPeriod"; //delay between two CA probes
 	public static final String CONTACT_LIST_MIN_SIZE = "contactListMinSize";
 	public static final String BOOT_LIST_SIZE = "bootListSize";
@@ -29,6 +30,42 @@ public class Settings
 	public static final String MAX_CONTENT_SIZE = "maxContentSize"; //the max payload length in byte
 	public static final TimeUnit DEFAULT_TIME_UNIT = TimeUnit.MILLISECONDS; 
 	public static final String TIME_OUT = "timeOut"; //the default message timeout
+	public static final String RECEIVE_BUFFER_SIZE = "receiveBufferSize"; //size of the buffers receiving UDP datagrams
+	public static final String RECEIVE_BUFFER_POOL_SIZE = "receiveBufferPoolSize"; //max number of idle receive buffers kept in the pool
+	public static final String THREAD_MODE = "threadMode"; //threads of the client and server pools: platform or virtual (Java 21)
+	public static final String VIRTUAL_THREADS = "virtualThreads"; //max number of virtual threads of the client and server pools
+	public static final String DISPATCH_THREADS = "dispatchThreads"; //max number of threads decoding the received datagrams
+	public static final String DISPATCH_QUEUE_SIZE = "dispatchQueueSize"; //max number of received datagrams waiting to be decoded
+	public static final String SERVER_THREADS = "serverThreads"; //max number of threads serving sessions opened by other nodes
+	public static final String SERVER_QUEUE_SIZE = "serverQueueSize"; //max number of server sessions waiting for a thread
+	public static final String SERVER_SHED_THRESHOLD = "serverShedThreshold"; //server queue depth above which nonce requests are dropped
+	public static final String CLIENT_THREADS = "clientThreads"; //max number of threads running the local managers
+	public static final String CLIENT_QUEUE_SIZE = "clientQueueSize"; //max number of local managers waiting for a thread
+	public static final String TRANSPORT = "transport"; //the datagram transport: udp or memory
+	public static final String MEMORY_LATENCY = "memoryLatency"; //latency of the in-memory network
+	public static final String MEMORY_LOSS = "memoryLoss"; //probability that the in-memory network loses a datagram
+	public static final String MEMORY_BANDWIDTH = "memoryBandwidth"; //bytes per second sent by a node on the in-memory network
+	public static final String SEND_QUEUE_SIZE = "sendQueueSize"; //max number of outgoing datagrams waiting to be written
+	public static final String SEND_BATCH_SIZE = "sendBatchSize"; //number of datagrams written in a row by the writer thread
+	public static final String SESSION_TABLE_SIZE = "sessionTableSize"; //expected number of concurrent sessions
+	public static final String TIMER_TICK = "timerTick"; //precision of the timer wheel expiring the sessions
+	public static final String TIMER_WHEEL_SIZE = "timerWheelSize"; //number of buckets of the timer wheel
+	public static final String FRAGMENT_SIZE = "fragmentSize"; //max payload of a datagram, larger messages are fragmented
+	public static final String MAX_MESSAGE_SIZE = "maxMessageSize"; //max length of a fragmented message
+	public static final String REASSEMBLY_MEMORY = "reassemblyMemory"; //max memory used to rebuild the incoming fragmented messages
+	public static final String SENDER_REASSEMBLY_MEMORY = "senderReassemblyMemory"; //max memory used to rebuild the messages of one sender
+	public static final String RETRANSMIT_DELAY = "retransmitDelay"; //time without new fragments before the missing ones are requested
+	public static final String RETRANSMIT_CACHE_SIZE = "retransmitCacheSize"; //max memory used to keep the sent messages for retransmission
+	public static final String WIRE_FORMAT = "wireFormat"; //encoding of the sent messages: binary or java (legacy serialization)
+	public static final String COMPRESSION = "compression"; //deflates the RPCs carrying contents: true or false
+	public static final String COMPRESSION_THRESHOLD = "compressionThreshold"; //min length of the compressed RPCs
+	public static final String STATELESS_RPC = "statelessRpc"; //enables the two-datagram RPC mode based on nonce cookies
+	public static final String COOKIE_LIFETIME = "cookieLifetime"; //validity of the nonce cookies issued by the node
+	public static final String COOKIE_CACHE_SIZE = "cookieCacheSize"; //max number of cookies of other nodes kept
+	public static final String AUTH_NODE_ID_CACHE_SIZE = "authNodeIdCacheSize"; //max number of verified AuthNodeIds of other nodes kept
+	public static final String SESSION_KEYS = "sessionKeys"; //authenticates the RPCs to known peers with a MAC instead of a signature
+	public static final String SESSION_KEY_LIFETIME = "sessionKeyLifetime"; //validity of the key shares of the node
+	public static final String SESSION_KEY_CACHE_SIZE = "sessionKeyCacheSize"; //max number of session keys and key shares of other nodes kept
 	
 	//Routing
 	public static final String CACHE_SIZE = "cacheSize"; //the route table cache size
@@ -40,8 +77,18 @@ public class Settings
 	public static final String CONTENT_REPUBLISH_PERIOD = "contentRepublishPeriod";
 	public static final String DEFAULT_TTL = "defaultTTL"; //content TTL
 	public static final String MAX_TTL = "maxTTL"; //max content TTL value
+	public static final String STORAGE_ENGINE = "storageEngine"; //the storage implementation: concurrent, synchronized or log
+	public static final String VALUE_ARENA_SIZE = "valueArenaSize"; //max off-heap memory for the stored values (in bytes, 0: on the heap)
+	public static final String VALUE_ARENA_SLAB_SIZE = "valueArenaSlabSize"; //size of a slab of the value arena (in bytes)
+	public static final String VALUE_ARENA_RECLAIM_DELAY = "valueArenaReclaimDelay"; //time before the memory of a removed value is reused (in ms)
+	public static final String LOG_STORAGE_PATH = "logStoragePath"; //directory in which the log storages of the nodes are saved
+	public static final String LOG_SEGMENT_SIZE = "logSegmentSize"; //max length of a segment of the storage log (in bytes)
+	public static final String LOG_SYNC_PERIOD = "logSyncPeriod"; //interval between two syncs of the storage log (0: every write)
+	public static final String LOG_COMPACTION_RATIO = "logCompactionRatio"; //the storage log is compacted when it is this times the live entries
 	public static final String STORE_INITIAL_SIZE = "storeInitialSize"; //initial storage hash table size
 	public static final String STORE_CLEANER_PERIOD = "databaseCleanerPeriod"; //the storage cleaner period
+	public static final String EXPIRY_SWEEP_PERIOD = "expirySweepPeriod"; //interval between two sweeps of the expired entries
+	public static final String EXPIRY_SWEEP_SLICE = "expirySweepSlice"; //max duration of a sweep of the expired entries (in ms)
 	public static final String DEFAULT_CONTENT_TYPE = "defaultContentType"; //the default content type
 	
 	//State persistence
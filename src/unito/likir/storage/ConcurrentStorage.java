@@ -0,0 +1,607 @@
+package unito.likir.storage;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import unito.likir.NodeId;
+
+/**
+ * A Storage for concurrent access: the inbound STOREs and FIND_VALUEs of a node
+ * don't wait for each other. The entries are indexed by the composite key (key, type,
+ * owner, submission time): the lookup key is hashed, and the entries of a key are
+ * kept in an array sorted by (type, owner, submission time), the most recent entry of
+ * a user-bucket first, and in a secondary array sorted by (owner, type, submission
+ * time). A third index gives the keys holding entries of every type. Every filter of
+ * a FIND_VALUE request is answered by a binary searched range: (key), (key, type) and
+ * (key, type, owner) on the primary index, (key, owner) on the owner index.
+ * The arrays of a key are immutable and replaced by every write, so reads hold no
+ * lock; writes lock one of a fixed set of stripes chosen by the key, so writes to
+ * different keys proceed in parallel.
+ * The collections returned by get(), getLimited() and values() are snapshots owned by
+ * the caller: the entries of a key are read atomically, while values() may or may
+ * not see the writes completed during the read. The same holds for the counters and
+ * keySet(), which is a read-only live view.
+ * The values of the stored contents are copied in a ValueArena, out of the heap,
+ * unless the valueArenaSize setting is 0: the storage keeps its own copy of such an
+ * entry, holding an OffHeapContent. get() and the removals return entries whose values
+ * are back on the heap, while getLimited() and values() return the stored entries,
+ * whose values must be read (e.g. encoded) right away
+ */
+public class ConcurrentStorage implements Storage
+{
+	private static final long serialVersionUID = -3381027624159082377L;
+
+	private static final int STRIPES = 64; //number of write locks
+	private static final String NULL = "\u0000"; //stands for a null type or owner in the indexes
+
+	private final int MAX_RESPONSE_SIZE; //max encoded (and compressed) length of the entries of a FIND_VALUE response
+
+	private final ConcurrentHashMap<NodeId,KeyIndex> store;
+	private final ConcurrentMap<String,Set<NodeId>> byType; //the keys holding entries of every type
+	private final ExpiryIndex expiry;
+	private final AtomicInteger typeBuckets;
+	private final AtomicInteger userBuckets;
+	private final AtomicInteger entryCount;
+	private transient Object[] locks;
+	private transient ValueArena arena; //null if the values stay on the heap
+
+	/**
+	 * Create a new ConcurrentStorage instance
+	 */
+	public ConcurrentStorage()
+	{
+		this.MAX_RESPONSE_SIZE = StorageImpl.getMaxResponseSize();
+		this.store = new ConcurrentHashMap<NodeId,KeyIndex>();
+		this.byType = new ConcurrentHashMap<String,Set<NodeId>>();
+		this.expiry = new ExpiryIndex();
+		this.typeBuckets = new AtomicInteger(0);
+		this.userBuckets = new AtomicInteger(0);
+		this.entryCount = new AtomicInteger(0);
+		this.arena = ValueArena.fromSettings();
+		initLocks();
+	}
+
+	public boolean isEmpty()
+	{
+		return store.isEmpty();
+	}
+
+	public boolean store(StorageEntry entry)
+	{
+		NodeId key = entry.getKey();
+		String type = type(entry);
+		String ownerId = owner(entry);
+		synchronized (lock(key))
+		{
+			KeyIndex index = store.get(key);
+			StorageEntry[] primary = index == null ? new StorageEntry[0] : index.primary;
+			StorageEntry[] byOwner = index == null ? new StorageEntry[0] : index.byOwner;
+			int at = lower(primary, false, type, ownerId, entry.getSubmissionTime(), 3);
+			if (at < primary.length && compare(primary[at], false, type, ownerId, entry.getSubmissionTime(), 3) == 0)
+			{
+				primary[at].refreshRepublishTime();
+				return true;
+			}
+			if (upper(primary, false, type, null, 0, 1) == lower(primary, false, type, null, 0, 1))
+			{
+				typeBuckets.incrementAndGet();
+				userBuckets.incrementAndGet();
+				keys(type).add(key);
+			}
+			else if (upper(primary, false, type, ownerId, 0, 2) == lower(primary, false, type, ownerId, 0, 2))
+				userBuckets.incrementAndGet();
+			Content content = arena == null ? entry.getContent() : arena.copy(entry.getContent());
+			if (content != entry.getContent())
+				entry = new StorageEntry(key, content, entry.getCredentials()); //the entry of the caller is left untouched
+			store.put(key, new KeyIndex(insert(primary, at, entry),
+					insert(byOwner, lower(byOwner, true, ownerId, type, entry.getSubmissionTime(), 3), entry)));
+			expiry.add(entry);
+			entryCount.incrementAndGet();
+			return true;
+		}
+	}
+
+	public HashMap<String,Integer> getCount(NodeId key, String type, String ownerId, boolean recent)
+	{
+		KeyIndex index = store.get(key);
+		if (index == null)
+			return null;
+		HashMap<String,Integer> result = new HashMap<String,Integer>();
+		if (type != null)
+		{
+			int depth = ownerId == null ? 1 : 2;
+			StorageEntry[] primary = index.primary;
+			count(primary, false, lower(primary, false, mask(type), mask(ownerId), 0, depth),
+					upper(primary, false, mask(type), mask(ownerId), 0, depth), recent, result);
+			return result.isEmpty() ? null : result;
+		}
+		if (ownerId != null)
+		{
+			StorageEntry[] byOwner = index.byOwner;
+			count(byOwner, true, lower(byOwner, true, mask(ownerId), null, 0, 1), upper(byOwner, true, mask(ownerId), null, 0, 1),
+					recent, result);
+		}
+		else
+			count(index.primary, true, 0, index.primary.length, recent, result);
+		return result;
+	}
+
+	public List<StorageEntry> get(NodeId key, String type, String ownerId, boolean recent)
+	{
+		return detach(lookup(key, type, ownerId, recent));
+	}
+
+	public List<StorageEntry> getLimited(NodeId key, String type, String ownerId, boolean recent)
+	{
+		List<StorageEntry> result = lookup(key, type, ownerId, recent);
+		if (result != null)
+			StorageImpl.reduce(result, MAX_RESPONSE_SIZE);
+		return result;
+	}
+
+	/*
+	 * The stored entries matching a FIND_VALUE request
+	 */
+	private List<StorageEntry> lookup(NodeId key, String type, String ownerId, boolean recent)
+	{
+		KeyIndex index = store.get(key);
+		if (index == null)
+			return null;
+		if (type != null)
+		{
+			int depth = ownerId == null ? 1 : 2;
+			StorageEntry[] primary = index.primary;
+			List<StorageEntry> result = collect(primary, false, lower(primary, false, mask(type), mask(ownerId), 0, depth),
+					upper(primary, false, mask(type), mask(ownerId), 0, depth), recent);
+			return result.isEmpty() ? null : result;
+		}
+		if (ownerId != null)
+		{
+			StorageEntry[] byOwner = index.byOwner;
+			return collect(byOwner, true, lower(byOwner, true, mask(ownerId), null, 0, 1),
+					upper(byOwner, true, mask(ownerId), null, 0, 1), recent);
+		}
+		return collect(index.primary, false, 0, index.primary.length, recent);
+	}
+
+	/**
+	 * Returns the entries of a type stored under any key
+	 * @param type the content type
+	 * @return a snapshot of the entries
+	 */
+	public List<StorageEntry> getByType(String type)
+	{
+		List<StorageEntry> result = new ArrayList<StorageEntry>();
+		Set<NodeId> keys = byType.get(mask(type));
+		if (keys == null)
+			return result;
+		for (NodeId key : keys)
+		{
+			List<StorageEntry> entries = get(key, type == null ? NULL : type, null, false);
+			if (entries != null)
+				result.addAll(entries);
+		}
+		return result;
+	}
+
+	public HashMap<String,HashMap<String,List<StorageEntry>>> remove(NodeId key)
+	{
+		synchronized (lock(key))
+		{
+			KeyIndex index = store.get(key);
+			if (index == null)
+				return null;
+			HashMap<String,HashMap<String,List<StorageEntry>>> result = new HashMap<String,HashMap<String,List<StorageEntry>>>();
+			for (StorageEntry e : detach(removeRange(key, index, 0, index.primary.length)))
+			{
+				HashMap<String,List<StorageEntry>> typeBucket = result.get(e.getContent().getType());
+				if (typeBucket == null)
+				{
+					typeBucket = new HashMap<String,List<StorageEntry>>();
+					result.put(e.getContent().getType(), typeBucket);
+				}
+				add(typeBucket, e);
+			}
+			return result;
+		}
+	}
+
+	public Map<String,List<StorageEntry>> remove(NodeId key, String type)
+	{
+		synchronized (lock(key))
+		{
+			KeyIndex index = store.get(key);
+			if (index == null)
+				return null;
+			List<StorageEntry> removed = detach(removeRange(key, index, lower(index.primary, false, mask(type), null, 0, 1),
+					upper(index.primary, false, mask(type), null, 0, 1)));
+			if (removed.isEmpty())
+				return null;
+			HashMap<String,List<StorageEntry>> result = new HashMap<String,List<StorageEntry>>();
+			for (StorageEntry e : removed)
+				add(result, e);
+			return result;
+		}
+	}
+
+	public List<StorageEntry> remove(NodeId key, String type, String ownerId)
+	{
+		synchronized (lock(key))
+		{
+			KeyIndex index = store.get(key);
+			if (index == null)
+				return null;
+			List<StorageEntry> removed = detach(removeRange(key, index, lower(index.primary, false, mask(type), mask(ownerId), 0, 2),
+					upper(index.primary, false, mask(type), mask(ownerId), 0, 2)));
+			return removed.isEmpty() ? null : removed;
+		}
+	}
+
+	public boolean remove(StorageEntry e)
+	{
+		synchronized (lock(e.getKey()))
+		{
+			KeyIndex index = store.get(e.getKey());
+			if (index == null)
+				return false;
+			int at = lower(index.primary, false, type(e), owner(e), e.getSubmissionTime(), 3);
+			if (at == index.primary.length || compare(index.primary[at], false, type(e), owner(e), e.getSubmissionTime(), 3) != 0)
+				return false; //the stored copy of e, if any, has the same composite key
+			removeRange(e.getKey(), index, at, at + 1);
+			return true;
+		}
+	}
+
+	/*
+	 * Returns the stored entry with the given composite key, null if there is none
+	 */
+	StorageEntry find(NodeId key, String type, String ownerId, long submissionTime)
+	{
+		KeyIndex index = store.get(key);
+		if (index == null)
+			return null;
+		int at = lower(index.primary, false, mask(type), mask(ownerId), submissionTime, 3);
+		if (at < index.primary.length && compare(index.primary[at], false, mask(type), mask(ownerId), submissionTime, 3) == 0)
+			return index.primary[at];
+		return null;
+	}
+
+	public int removeExpired(long now, int max)
+	{
+		List<StorageEntry> expired = expiry.expired(now, max);
+		for (StorageEntry e : expired)
+		{
+			if (!remove(e))
+			{
+				synchronized (lock(e.getKey()))
+				{
+					expiry.remove(e); //no longer stored
+				}
+			}
+		}
+		return expired.size();
+	}
+
+	public boolean contains(NodeId key)
+	{
+		return store.containsKey(key);
+	}
+
+	public boolean contains(NodeId key, String type)
+	{
+		KeyIndex index = store.get(key);
+		return index != null && upper(index.primary, false, mask(type), null, 0, 1) > lower(index.primary, false, mask(type), null, 0, 1);
+	}
+
+	public boolean contains(NodeId key, String type, String ownerId)
+	{
+		KeyIndex index = store.get(key);
+		return index != null && upper(index.primary, false, mask(type), mask(ownerId), 0, 2)
+				> lower(index.primary, false, mask(type), mask(ownerId), 0, 2);
+	}
+
+	public Set<NodeId> keySet()
+	{
+		return Collections.unmodifiableSet(store.keySet());
+	}
+
+	public List<StorageEntry> values()
+	{
+		List<StorageEntry> entries = new ArrayList<StorageEntry>(Math.max(entryCount.get(), 0));
+		for (KeyIndex index : store.values())
+			entries.addAll(Arrays.asList(index.primary));
+		return entries;
+	}
+
+	public int getKeyBucketCount()
+	{
+		return store.size();
+	}
+
+	public int getTypeBucketCount()
+	{
+		return typeBuckets.get();
+	}
+
+	public int getUserBucketCount()
+	{
+		return userBuckets.get();
+	}
+
+	public int getEntryCount()
+	{
+		return entryCount.get();
+	}
+
+	public void clear()
+	{
+		for (NodeId key : store.keySet())
+			remove(key);
+	}
+
+	/**
+	 * Returns the arena holding the values of the stored contents
+	 * @return the arena, null if the values are on the heap
+	 */
+	public ValueArena getArena()
+	{
+		return arena;
+	}
+
+	public String toString()
+	{
+		return "ConcurrentStorage - keys=" + getKeyBucketCount() + ", types=" + getTypeBucketCount() + ", users="
+				+ getUserBucketCount() + ", entries=" + getEntryCount() + (arena == null ? "" : " - " + arena);
+	}
+
+	//the keys holding entries of a type, created on first use
+	private Set<NodeId> keys(String type)
+	{
+		Set<NodeId> keys = byType.get(type);
+		if (keys == null)
+		{
+			keys = Collections.newSetFromMap(new ConcurrentHashMap<NodeId,Boolean>());
+			Set<NodeId> existing = byType.putIfAbsent(type, keys);
+			if (existing != null)
+				keys = existing;
+		}
+		return keys;
+	}
+
+	/*
+	 * Replaces the entries holding an OffHeapContent with entries holding a copy of the
+	 * value on the heap, which stays readable after the entry is removed
+	 */
+	private List<StorageEntry> detach(List<StorageEntry> entries)
+	{
+		if (arena == null || entries == null)
+			return entries;
+		for (ListIterator<StorageEntry> it = entries.listIterator(); it.hasNext();)
+		{
+			StorageEntry e = it.next();
+			if (e.getContent() instanceof OffHeapContent)
+				it.set(new StorageEntry(e.getKey(), new ContentImpl(e.getContent().getValue(), e.getContent().getType()), e.getCredentials()));
+		}
+		return entries;
+	}
+
+	/*
+	 * Removes a range of the primary index of a key, updating the secondary indexes and
+	 * the counters; called holding the lock of the key
+	 */
+	private List<StorageEntry> removeRange(NodeId key, KeyIndex index, int from, int to)
+	{
+		if (from >= to)
+			return new ArrayList<StorageEntry>();
+		List<StorageEntry> removed = new ArrayList<StorageEntry>(Arrays.asList(index.primary).subList(from, to));
+		StorageEntry[] primary = new StorageEntry[index.primary.length - removed.size()];
+		System.arraycopy(index.primary, 0, primary, 0, from);
+		System.arraycopy(index.primary, to, primary, from, index.primary.length - to);
+		Set<StorageEntry> gone = Collections.newSetFromMap(new IdentityHashMap<StorageEntry,Boolean>());
+		gone.addAll(removed);
+		StorageEntry[] byOwner = new StorageEntry[primary.length];
+		int n = 0;
+		for (StorageEntry e : index.byOwner)
+			if (!gone.contains(e))
+				byOwner[n++] = e;
+
+		for (StorageEntry e : removed)
+		{
+			expiry.remove(e);
+			if (arena != null)
+				arena.release(e.getContent());
+		}
+		entryCount.addAndGet(-removed.size());
+		StorageEntry previous = null;
+		for (StorageEntry e : removed) //the removed user-buckets and type-buckets
+		{
+			boolean newType = previous == null || !type(e).equals(type(previous));
+			if (newType || !owner(e).equals(owner(previous)))
+			{
+				if (upper(primary, false, type(e), owner(e), 0, 2) == lower(primary, false, type(e), owner(e), 0, 2))
+					userBuckets.decrementAndGet();
+				if (newType && upper(primary, false, type(e), null, 0, 1) == lower(primary, false, type(e), null, 0, 1))
+				{
+					typeBuckets.decrementAndGet();
+					Set<NodeId> keys = byType.get(type(e));
+					if (keys != null)
+						keys.remove(key);
+				}
+			}
+			previous = e;
+		}
+		if (primary.length == 0)
+			store.remove(key);
+		else
+			store.put(key, new KeyIndex(primary, byOwner));
+		return removed;
+	}
+
+	private static StorageEntry[] insert(StorageEntry[] entries, int at, StorageEntry entry)
+	{
+		StorageEntry[] updated = new StorageEntry[entries.length + 1];
+		System.arraycopy(entries, 0, updated, 0, at);
+		updated[at] = entry;
+		System.arraycopy(entries, at, updated, at + 1, entries.length - at);
+		return updated;
+	}
+
+	/*
+	 * Compares an entry with the first depth components of an index key: (type, owner,
+	 * time) in the primary index, (owner, type, time) in the owner index. The most
+	 * recent entries come first
+	 */
+	private static int compare(StorageEntry e, boolean ownerIndex, String first, String second, long time, int depth)
+	{
+		int c = (ownerIndex ? owner(e) : type(e)).compareTo(first);
+		if (c != 0 || depth == 1)
+			return c;
+		c = (ownerIndex ? type(e) : owner(e)).compareTo(second);
+		if (c != 0 || depth == 2)
+			return c;
+		long t = e.getSubmissionTime();
+		return t > time ? -1 : t < time ? 1 : 0;
+	}
+
+	//the first entry not before the index key
+	private static int lower(StorageEntry[] entries, boolean ownerIndex, String first, String second, long time, int depth)
+	{
+		int low = 0;
+		int high = entries.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (compare(entries[mid], ownerIndex, first, second, time, depth) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	//the first entry after the index key
+	private static int upper(StorageEntry[] entries, boolean ownerIndex, String first, String second, long time, int depth)
+	{
+		int low = 0;
+		int high = entries.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (compare(entries[mid], ownerIndex, first, second, time, depth) <= 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/*
+	 * Copies a range of entries; if recent is set only the first, most recent, entry of
+	 * every user-bucket is taken
+	 */
+	private static List<StorageEntry> collect(StorageEntry[] entries, boolean ownerIndex, int from, int to, boolean recent)
+	{
+		if (!recent)
+			return new ArrayList<StorageEntry>(Arrays.asList(entries).subList(from, to));
+		List<StorageEntry> result = new ArrayList<StorageEntry>();
+		for (int i = from; i < to; i++)
+			if (i == from || !sameBucket(entries[i], entries[i - 1]))
+				result.add(entries[i]);
+		return result;
+	}
+
+	/*
+	 * Counts a range of entries by type or by owner; if recent is set every
+	 * user-bucket counts as one entry
+	 */
+	private static void count(StorageEntry[] entries, boolean byType, int from, int to, boolean recent,
+			HashMap<String,Integer> result)
+	{
+		for (int i = from; i < to; i++)
+		{
+			if (recent && i > from && sameBucket(entries[i], entries[i - 1]))
+				continue;
+			String name = byType ? entries[i].getContent().getType() : entries[i].getOwnerId();
+			Integer c = result.get(name);
+			result.put(name, c == null ? 1 : c + 1);
+		}
+	}
+
+	private static boolean sameBucket(StorageEntry a, StorageEntry b)
+	{
+		return type(a).equals(type(b)) && owner(a).equals(owner(b));
+	}
+
+	private static void add(HashMap<String,List<StorageEntry>> typeBucket, StorageEntry e)
+	{
+		List<StorageEntry> userBucket = typeBucket.get(e.getOwnerId());
+		if (userBucket == null)
+		{
+			userBucket = new ArrayList<StorageEntry>();
+			typeBucket.put(e.getOwnerId(), userBucket);
+		}
+		userBucket.add(e);
+	}
+
+	private Object lock(NodeId key)
+	{
+		return locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+	}
+
+	private void initLocks()
+	{
+		locks = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		this.arena = ValueArena.fromSettings();
+		initLocks();
+	}
+
+	private static String type(StorageEntry e)
+	{
+		return mask(e.getContent().getType());
+	}
+
+	private static String owner(StorageEntry e)
+	{
+		return mask(e.getOwnerId());
+	}
+
+	private static String mask(String s)
+	{
+		return s == null ? NULL : s;
+	}
+
+	//the immutable indexes of the entries of a key
+	private static final class KeyIndex implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final StorageEntry[] primary; //sorted by (type, owner, time)
+		final StorageEntry[] byOwner; //sorted by (owner, type, time)
+
+		KeyIndex(StorageEntry[] primary, StorageEntry[] byOwner)
+		{
+			this.primary = primary;
+			this.byOwner = byOwner;
+		}
+	}
+}
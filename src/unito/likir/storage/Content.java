@@ -1,6 +1,7 @@
 package unito.likir.storage;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /** 
  * A DHT content interface
@@ -15,6 +16,12 @@ public interface Content extends Serializable
      */
     public byte[] getValue();
     
+    /**
+     * Returns a read-only view of the data of the content, which is not copied
+     * (see OffHeapContent)
+     */
+    public ByteBuffer getValueBuffer();
+    
     /**
      * Returns the type of the content data.
      */
@@ -1,5 +1,7 @@
 package unito.likir.storage;
 
+import java.nio.ByteBuffer;
+
 /**
  * A DHT content implementation
  * @author Luca Maria Aiello
@@ -35,6 +37,15 @@ public class ContentImpl implements Content
 		return value;
 	}
 	
+	/**
+	 * Returns a read-only view of the content payload
+	 * @return the content payload, null if there is none
+	 */
+	public ByteBuffer getValueBuffer()
+	{
+		return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+	}
+	
 	/**
 	 * Returns the content type
 	 * @return the content type
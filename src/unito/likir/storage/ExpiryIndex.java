@@ -0,0 +1,118 @@
+package unito.likir.storage;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The entries of a Storage ordered by expire time, so that the expired ones are found
+ * without walking the whole storage: the cost of an expiry sweep is proportional to
+ * the number of expired entries. Entries with the same expire time are ordered by
+ * key, type, owner and submission time, which identify an entry in a Storage, so an
+ * entry is removed from the index as soon as it is removed from the storage.
+ * Thread safe; the storage keeps it consistent with its content
+ */
+public class ExpiryIndex implements Serializable
+{
+	private static final long serialVersionUID = 4457817011939462260L;
+
+	private final ConcurrentSkipListSet<StorageEntry> entries;
+
+	/**
+	 * Create a new empty ExpiryIndex
+	 */
+	public ExpiryIndex()
+	{
+		this.entries = new ConcurrentSkipListSet<StorageEntry>(new ExpiryOrder());
+	}
+
+	/**
+	 * Adds an entry to the index
+	 * @param entry the stored entry
+	 */
+	public void add(StorageEntry entry)
+	{
+		entries.add(entry);
+	}
+
+	/**
+	 * Removes an entry from the index
+	 * @param entry the removed entry
+	 */
+	public void remove(StorageEntry entry)
+	{
+		entries.remove(entry);
+	}
+
+	/**
+	 * Returns the entries expired before the given time, the first expired first
+	 * @param now the current time
+	 * @param max the max number of returned entries
+	 * @return the expired entries, which are left in the index
+	 */
+	public List<StorageEntry> expired(long now, int max)
+	{
+		List<StorageEntry> result = new ArrayList<StorageEntry>();
+		for (StorageEntry e : entries)
+		{
+			if (result.size() >= max || e.getExpireTime() >= now)
+				break;
+			result.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the expire time of the first entry to expire
+	 * @return the expire time, Long.MAX_VALUE if the index is empty
+	 */
+	public long getNextExpireTime()
+	{
+		Iterator<StorageEntry> it = entries.iterator();
+		return it.hasNext() ? it.next().getExpireTime() : Long.MAX_VALUE;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	private static class ExpiryOrder implements Comparator<StorageEntry>, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		public int compare(StorageEntry a, StorageEntry b)
+		{
+			int c = compare(a.getExpireTime(), b.getExpireTime());
+			if (c == 0)
+				c = a.getKey().compareTo(b.getKey());
+			if (c == 0)
+				c = compare(a.getContent().getType(), b.getContent().getType());
+			if (c == 0)
+				c = compare(a.getOwnerId(), b.getOwnerId());
+			if (c == 0)
+				c = compare(a.getSubmissionTime(), b.getSubmissionTime());
+			return c;
+		}
+
+		private static int compare(long a, long b)
+		{
+			return a < b ? -1 : a > b ? 1 : 0;
+		}
+
+		private static int compare(String a, String b)
+		{
+			if (a == null)
+				return b == null ? 0 : -1;
+			return b == null ? 1 : a.compareTo(b);
+		}
+	}
+}
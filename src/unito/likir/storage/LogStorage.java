@@ -0,0 +1,842 @@
+package unito.likir.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import unito.likir.NodeId;
+import unito.likir.messages.dht.MessageCodec;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+
+/**
+ * A durable Storage: every change is appended to a log on disk, from which the
+ * entries are recovered when the node restarts. The entries are kept and queried in
+ * memory by a ConcurrentStorage, the log is only written.
+ * The log is a sequence of segment files (segment-00000001.log, ...) of at most
+ * logSegmentSize bytes. A record is its length, the CRC32 of its payload and the
+ * payload: an operation code followed by the stored entry (in the binary format of
+ * MessageCodec) or by the identifier of the removed entries. Expired entries are not
+ * logged when they are swept: they are skipped at recovery.
+ * At startup the segments are memory mapped and replayed in order; the replay of a
+ * segment stops at the first truncated or corrupted record (the tail of an
+ * interrupted write) and a new segment is opened for the writes.
+ * The log is written by the calling thread and synced to disk every logSyncPeriod
+ * ms (at every write if 0): a crash of the process loses nothing, a crash of the
+ * system at most the last period. Files are written through RandomAccessFile, which,
+ * unlike a FileChannel, is not closed by the interruption of a writer thread.
+ * Compaction runs in background when the log grows beyond logCompactionRatio times
+ * the size of the live entries: the active segment is sealed, the entries stored at
+ * that moment are written to a new file which replaces the sealed segments. Such a
+ * file starts with a CLEAR record, so sealed segments which could not be deleted
+ * are harmless.
+ * Writes to different keys proceed in parallel, as in ConcurrentStorage; the log
+ * records of a key are in the same order as its changes. A directory is used by one
+ * LogStorage at a time (it is locked). A serialized LogStorage (in the saved state of
+ * its Node) is replaced by an empty ConcurrentStorage: the entries are in the log
+ */
+public class LogStorage implements Storage, Closeable
+{
+	private static final long serialVersionUID = 1739516027245316781L;
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".log";
+	private static final String COMPACT_SUFFIX = ".compact"; //a compaction which is not completed
+	private static final int HEADER = 8; //record length and CRC
+	private static final int MAX_RECORD = 1 << 26; //guard against corrupted lengths
+	private static final int STRIPES = 64; //number of write locks
+
+	//record operation codes
+	private static final byte STORE = 1;
+	private static final byte REMOVE_KEY = 2;
+	private static final byte REMOVE_TYPE = 3;
+	private static final byte REMOVE_OWNER = 4;
+	private static final byte REMOVE_ENTRY = 5;
+	private static final byte CLEAR = 6;
+
+	private final long SEGMENT_SIZE;
+	private final long SYNC_PERIOD;
+	private final double COMPACTION_RATIO;
+
+	private final File directory;
+	private final ConcurrentStorage entries;
+	private final ReadWriteLock snapshotLock; //writes share it, compaction and clear() take it exclusively
+	private final Object[] locks;
+	private final ScheduledExecutorService maintenance;
+	private final AtomicBoolean compacting;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	//guarded by this
+	private RandomAccessFile active;
+	private int activeId;
+	private long activeSize;
+	private long logSize; //length of all the segments
+	private boolean dirty; //written since the last sync
+	private boolean closed;
+
+	//statistics
+	private final AtomicLong storeRecords; //STORE records written or recovered
+	private final AtomicLong storeBytes;
+	private final AtomicLong appended;
+	private final AtomicLong writeErrors;
+	private final AtomicLong compactions;
+	private final AtomicLong reclaimed; //bytes freed by the compactions
+	private int recovered; //entries recovered at startup
+	private int corrupted; //segments whose replay stopped before their end
+	private long recoveryTime; //ms
+
+	/**
+	 * Opens the log in the given directory (created if missing) and recovers its entries
+	 * @param directory the directory of the segments
+	 * @throws IOException if the log can't be read, or it is used by another LogStorage
+	 */
+	public LogStorage(File directory) throws IOException
+	{
+		this.SEGMENT_SIZE = Long.parseLong(PropFinder.get(Settings.LOG_SEGMENT_SIZE));
+		this.SYNC_PERIOD = Long.parseLong(PropFinder.get(Settings.LOG_SYNC_PERIOD));
+		this.COMPACTION_RATIO = Double.parseDouble(PropFinder.get(Settings.LOG_COMPACTION_RATIO));
+		this.directory = directory;
+		this.entries = new ConcurrentStorage();
+		this.snapshotLock = new ReentrantReadWriteLock();
+		this.locks = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+		this.compacting = new AtomicBoolean(false);
+		this.storeRecords = new AtomicLong(0);
+		this.storeBytes = new AtomicLong(0);
+		this.appended = new AtomicLong(0);
+		this.writeErrors = new AtomicLong(0);
+		this.compactions = new AtomicLong(0);
+		this.reclaimed = new AtomicLong(0);
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("LogStorage: can't create " + directory);
+		this.lockFile = new RandomAccessFile(new File(directory, "LOCK"), "rw");
+		this.lock = lockFile.getChannel().tryLock();
+		if (lock == null)
+		{
+			lockFile.close();
+			throw new IOException("LogStorage: " + directory + " is used by another storage");
+		}
+		recover();
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "LogStorage-" + LogStorage.this.directory.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (SYNC_PERIOD > 0)
+		{
+			maintenance.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					sync();
+				}
+			}, SYNC_PERIOD, SYNC_PERIOD, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return entries.isEmpty();
+	}
+
+	public boolean store(StorageEntry entry)
+	{
+		byte[] record = isStored(entry) ? null : encode(entry); //encoded outside the lock
+		snapshotLock.readLock().lock();
+		try
+		{
+			synchronized (lock(entry.getKey()))
+			{
+				if (isStored(entry))
+					return entries.store(entry); //already logged, only its republish time changes
+				if (record == null)
+					record = encode(entry);
+				if (record == null || !entries.store(entry))
+					return false;
+				append(record);
+				storeRecords.incrementAndGet();
+				storeBytes.addAndGet(record.length);
+				return true;
+			}
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	public Collection<StorageEntry> get(NodeId key, String type, String ownerId, boolean recent)
+	{
+		return entries.get(key, type, ownerId, recent);
+	}
+
+	public HashMap<String,Integer> getCount(NodeId key, String type, String ownerId, boolean recent)
+	{
+		return entries.getCount(key, type, ownerId, recent);
+	}
+
+	public Collection<StorageEntry> getLimited(NodeId key, String type, String ownerId, boolean recent)
+	{
+		return entries.getLimited(key, type, ownerId, recent);
+	}
+
+	public HashMap<String,HashMap<String,List<StorageEntry>>> remove(NodeId key)
+	{
+		snapshotLock.readLock().lock();
+		try
+		{
+			synchronized (lock(key))
+			{
+				HashMap<String,HashMap<String,List<StorageEntry>>> removed = entries.remove(key);
+				if (removed != null)
+					append(record(REMOVE_KEY, removal(key, null, null, 0)));
+				return removed;
+			}
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	public Map<String,List<StorageEntry>> remove(NodeId key, String type)
+	{
+		snapshotLock.readLock().lock();
+		try
+		{
+			synchronized (lock(key))
+			{
+				Map<String,List<StorageEntry>> removed = entries.remove(key, type);
+				if (removed != null)
+					append(record(REMOVE_TYPE, removal(key, type, null, 0)));
+				return removed;
+			}
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	public List<StorageEntry> remove(NodeId key, String type, String ownerId)
+	{
+		snapshotLock.readLock().lock();
+		try
+		{
+			synchronized (lock(key))
+			{
+				List<StorageEntry> removed = entries.remove(key, type, ownerId);
+				if (removed != null)
+					append(record(REMOVE_OWNER, removal(key, type, ownerId, 0)));
+				return removed;
+			}
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	public boolean remove(StorageEntry e)
+	{
+		snapshotLock.readLock().lock();
+		try
+		{
+			synchronized (lock(e.getKey()))
+			{
+				if (!entries.remove(e))
+					return false;
+				append(record(REMOVE_ENTRY, removal(e.getKey(), e.getContent().getType(), e.getOwnerId(), e.getSubmissionTime())));
+				return true;
+			}
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	public int removeExpired(long now, int max)
+	{
+		return entries.removeExpired(now, max); //not logged: the recovery skips expired entries
+	}
+
+	public boolean contains(NodeId key)
+	{
+		return entries.contains(key);
+	}
+
+	public boolean contains(NodeId key, String type)
+	{
+		return entries.contains(key, type);
+	}
+
+	public boolean contains(NodeId key, String type, String ownerId)
+	{
+		return entries.contains(key, type, ownerId);
+	}
+
+	public Set<NodeId> keySet()
+	{
+		return entries.keySet();
+	}
+
+	public Collection<StorageEntry> values()
+	{
+		return entries.values();
+	}
+
+	public int getKeyBucketCount()
+	{
+		return entries.getKeyBucketCount();
+	}
+
+	public int getTypeBucketCount()
+	{
+		return entries.getTypeBucketCount();
+	}
+
+	public int getUserBucketCount()
+	{
+		return entries.getUserBucketCount();
+	}
+
+	public int getEntryCount()
+	{
+		return entries.getEntryCount();
+	}
+
+	public void clear()
+	{
+		snapshotLock.writeLock().lock();
+		try
+		{
+			entries.clear();
+			append(record(CLEAR, new byte[0]));
+		}
+		finally
+		{
+			snapshotLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the log keeping only the stored entries. Runs in background when the
+	 * log grows beyond logCompactionRatio times the size of the live entries
+	 * @return false if a compaction was already running
+	 * @throws IOException if the compacted segment can't be written
+	 */
+	public boolean compact() throws IOException
+	{
+		if (!compacting.compareAndSet(false, true))
+			return false;
+		try
+		{
+			Collection<StorageEntry> snapshot;
+			int target;
+			snapshotLock.writeLock().lock();
+			try
+			{
+				synchronized (this)
+				{
+					checkOpen();
+					target = activeId;
+					roll();
+				}
+				snapshot = entries.values();
+			}
+			finally
+			{
+				snapshotLock.writeLock().unlock();
+			}
+
+			//the snapshot replaces the segments up to target
+			File compacted = new File(directory, PREFIX + String.format("%08d", target) + COMPACT_SUFFIX);
+			FileOutputStream file = new FileOutputStream(compacted);
+			long written = 0;
+			try
+			{
+				BufferedOutputStream out = new BufferedOutputStream(file, 1 << 20);
+				byte[] record = record(CLEAR, new byte[0]);
+				out.write(record);
+				written += record.length;
+				long now = System.currentTimeMillis();
+				for (StorageEntry entry : snapshot)
+				{
+					if (entry.getExpireTime() < now)
+						continue;
+					record = record(STORE, MessageCodec.encodeEntry(entry));
+					out.write(record);
+					written += record.length;
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			finally
+			{
+				file.close();
+			}
+			File replaced = segment(target);
+			long freed = replaced.length();
+			Files.move(compacted.toPath(), replaced.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			for (int id : segmentIds())
+			{
+				if (id >= target)
+					break;
+				File old = segment(id);
+				long length = old.length();
+				if (old.delete())
+					freed += length;
+			}
+			synchronized (this)
+			{
+				logSize += written - freed;
+			}
+			compactions.incrementAndGet();
+			reclaimed.addAndGet(freed - written);
+			return true;
+		}
+		finally
+		{
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Syncs the log to disk, stops the background tasks and closes the files. The
+	 * entries stay readable, further changes fail
+	 */
+	public void close() throws IOException
+	{
+		maintenance.shutdown();
+		try
+		{
+			maintenance.awaitTermination(1, TimeUnit.MINUTES); //a running compaction
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+			active.getFD().sync();
+			active.close();
+			lock.release();
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Returns the directory of the log
+	 * @return the directory
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Returns the length of the log
+	 * @return the length of all the segments, in bytes
+	 */
+	public synchronized long getLogSize()
+	{
+		return logSize;
+	}
+
+	/**
+	 * Returns the number of entries recovered from the log at startup
+	 * @return the recovered entries
+	 */
+	public int getRecoveredCount()
+	{
+		return recovered;
+	}
+
+	/**
+	 * Returns the duration of the recovery
+	 * @return the recovery time (in ms)
+	 */
+	public long getRecoveryTime()
+	{
+		return recoveryTime;
+	}
+
+	public synchronized String toString()
+	{
+		return "LogStorage - keys=" + getKeyBucketCount() + ", types=" + getTypeBucketCount() + ", users="
+				+ getUserBucketCount() + ", entries=" + getEntryCount() + ", segments=" + segmentIds().length
+				+ ", log=" + logSize + " bytes, appended=" + appended.get() + ", write errors=" + writeErrors.get()
+				+ ", compactions=" + compactions.get() + ", reclaimed=" + reclaimed.get() + " bytes, recovered="
+				+ recovered + " in " + recoveryTime + " ms, corrupted segments=" + corrupted
+				+ (entries.getArena() == null ? "" : " - " + entries.getArena());
+	}
+
+	/*
+	 * Replays the segments, then opens a new one for the writes
+	 */
+	private void recover() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		for (File f : directory.listFiles(new FilenameFilter()
+		{
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(PREFIX) && name.endsWith(COMPACT_SUFFIX);
+			}
+		}))
+			f.delete(); //an interrupted compaction
+		int[] ids = segmentIds();
+		long now = System.currentTimeMillis();
+		for (int id : ids)
+		{
+			File segment = segment(id);
+			if (segment.length() == 0 && id != ids[ids.length - 1] && segment.delete())
+				continue; //nothing was written before a restart
+			logSize += segment.length();
+			if (!replay(segment, now))
+			{
+				corrupted++;
+				System.err.println("LogStorage: " + segment + " is truncated or corrupted, the rest of it is ignored");
+			}
+		}
+		recovered = entries.getEntryCount();
+		activeId = ids.length == 0 ? 0 : ids[ids.length - 1];
+		openSegment(activeId + 1);
+		recoveryTime = System.currentTimeMillis() - start;
+	}
+
+	//false if the replay stopped before the end of the segment
+	private boolean replay(File segment, long now) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size == 0)
+				return true;
+			MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			CRC32 crc = new CRC32();
+			byte[] payload = new byte[4096];
+			while (log.remaining() >= HEADER)
+			{
+				int length = log.getInt();
+				int checksum = log.getInt();
+				if (length <= 0 || length > MAX_RECORD || length > log.remaining())
+					return false;
+				if (payload.length < length)
+					payload = new byte[Math.max(length, payload.length * 2)];
+				log.get(payload, 0, length);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int)crc.getValue() != checksum)
+					return false;
+				try
+				{
+					apply(payload, length, now);
+				}
+				catch (IOException ioe)
+				{
+					return false;
+				}
+				if (payload[0] == STORE)
+				{
+					storeRecords.incrementAndGet();
+					storeBytes.addAndGet(HEADER + length);
+				}
+			}
+			return !log.hasRemaining();
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	private void apply(byte[] payload, int length, long now) throws IOException
+	{
+		byte op = payload[0];
+		if (op == STORE)
+		{
+			StorageEntry entry = MessageCodec.decodeEntry(ByteBuffer.wrap(payload, 1, length - 1));
+			if (entry.getExpireTime() >= now)
+				entries.store(entry);
+			return;
+		}
+		if (op == CLEAR)
+		{
+			entries.clear();
+			return;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, length - 1));
+		byte[] id = new byte[NodeId.LENGTH];
+		in.readFully(id);
+		NodeId key = new NodeId(id);
+		String type = readString(in);
+		String ownerId = readString(in);
+		switch (op)
+		{
+			case REMOVE_KEY:
+				entries.remove(key);
+				break;
+			case REMOVE_TYPE:
+				entries.remove(key, type);
+				break;
+			case REMOVE_OWNER:
+				entries.remove(key, type, ownerId);
+				break;
+			case REMOVE_ENTRY:
+				StorageEntry entry = entries.find(key, type, ownerId, in.readLong());
+				if (entry != null)
+					entries.remove(entry);
+				break;
+			default:
+				throw new IOException("LogStorage: unknown record " + op);
+		}
+	}
+
+	/*
+	 * Appends a record to the active segment, opening a new segment when it is full.
+	 * Write errors are reported and counted: the change is kept in memory
+	 */
+	private synchronized void append(byte[] record)
+	{
+		checkOpen();
+		try
+		{
+			if (activeSize > 0 && activeSize + record.length > SEGMENT_SIZE)
+			{
+				roll();
+				if (!compacting.get() && logSize > COMPACTION_RATIO * liveSize())
+				{
+					maintenance.execute(new Runnable()
+					{
+						public void run()
+						{
+							try
+							{
+								compact();
+							}
+							catch (IOException ioe)
+							{
+								System.err.println("LogStorage: compaction failed - " + ioe.getMessage());
+							}
+						}
+					});
+				}
+			}
+			active.write(record);
+			activeSize += record.length;
+			logSize += record.length;
+			appended.incrementAndGet();
+			if (SYNC_PERIOD <= 0)
+				active.getFD().sync();
+			else
+				dirty = true;
+		}
+		catch (IOException ioe)
+		{
+			writeErrors.incrementAndGet();
+			System.err.println("LogStorage: write failed - " + ioe.getMessage());
+		}
+	}
+
+	//seals the active segment and opens the next one
+	private void roll() throws IOException
+	{
+		active.getFD().sync();
+		active.close();
+		dirty = false;
+		openSegment(activeId + 1);
+	}
+
+	private void openSegment(int id) throws IOException
+	{
+		active = new RandomAccessFile(segment(id), "rw");
+		active.setLength(0);
+		activeId = id;
+		activeSize = 0;
+	}
+
+	private void sync()
+	{
+		RandomAccessFile file;
+		synchronized (this)
+		{
+			if (!dirty || closed)
+				return;
+			dirty = false;
+			file = active;
+		}
+		try
+		{
+			file.getFD().sync();
+		}
+		catch (IOException ioe)
+		{
+			//the segment has been sealed (and synced) meanwhile
+		}
+	}
+
+	private boolean isStored(StorageEntry entry)
+	{
+		return entries.find(entry.getKey(), entry.getContent().getType(), entry.getOwnerId(), entry.getSubmissionTime()) != null;
+	}
+
+	//the STORE record of an entry, null if it can't be encoded
+	private static byte[] encode(StorageEntry entry)
+	{
+		try
+		{
+			return record(STORE, MessageCodec.encodeEntry(entry));
+		}
+		catch (IOException ioe)
+		{
+			System.err.println("LogStorage: can't encode entry - " + ioe.getMessage());
+			return null;
+		}
+	}
+
+	//estimated length of the records of the stored entries
+	private double liveSize()
+	{
+		long records = storeRecords.get();
+		return records == 0 ? 0 : (double)entries.getEntryCount() * storeBytes.get() / records;
+	}
+
+	private void checkOpen()
+	{
+		if (closed)
+			throw new IllegalStateException("LogStorage: " + directory + " is closed");
+	}
+
+	private Object lock(NodeId key)
+	{
+		return locks[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+	}
+
+	private File segment(int id)
+	{
+		return new File(directory, PREFIX + String.format("%08d", id) + SUFFIX);
+	}
+
+	//the ids of the segments, in order
+	private int[] segmentIds()
+	{
+		String[] names = directory.list(new FilenameFilter()
+		{
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		List<Integer> ids = new ArrayList<Integer>();
+		for (String name : names == null ? new String[0] : names)
+		{
+			try
+			{
+				ids.add(Integer.valueOf(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			}
+			catch (NumberFormatException nfe)
+			{
+			}
+		}
+		int[] result = new int[ids.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = ids.get(i);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static byte[] record(byte op, byte[] data)
+	{
+		byte[] record = new byte[HEADER + 1 + data.length];
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(1 + data.length);
+		buffer.putInt(0);
+		buffer.put(op);
+		buffer.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(record, HEADER, 1 + data.length);
+		buffer.putInt(4, (int)crc.getValue());
+		return record;
+	}
+
+	//the identifier of removed entries: key, type, owner and submission time
+	private static byte[] removal(NodeId key, String type, String ownerId, long submissionTime)
+	{
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bos);
+			out.write(key.getBytes());
+			writeString(out, type);
+			writeString(out, ownerId);
+			out.writeLong(submissionTime);
+			return bos.toByteArray();
+		}
+		catch (IOException ioe)
+		{
+			throw new IllegalStateException(ioe); //never thrown by a ByteArrayOutputStream
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private Object writeReplace() throws ObjectStreamException
+	{
+		return new ConcurrentStorage();
+	}
+}
@@ -1,35 +1,49 @@
 package unito.likir.storage;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
+/**
+ * The contents of an unsigned multiple put, sent as the value of a single entry.
+ * toBytes() writes a length-prefixed binary batch: MAGIC, VERSION, the number of
+ * contents and, for every content, its type, its ttl and its value. Lengths are
+ * unsigned varints, a length of 0 stands for null and a length n+1 for n bytes;
+ * ttls are zigzag varints. A Cursor reads the batch in place, without building
+ * the arrays of the contents. Batches written with the Java serialization are
+ * still read
+ */
 public class MultiplePutContent implements Serializable
 {
 	private static final long serialVersionUID = -2720143568003858264L;
-	
+
+	public static final byte MAGIC = (byte)0xB2;
+	public static final byte VERSION = 1;
+	private static final byte JAVA_MAGIC = (byte)0xAC; //first byte of a Java serialization stream
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private byte[][] contents;
 	private String[] types;
 	private long[] ttls;
 	int size = 0;
-	
+
 	public MultiplePutContent(int n)
 	{
 		this.contents = new byte[n][];
 		this.types = new String[n];
 		this.ttls = new long[n];
 	}
-	
+
 	public MultiplePutContent(byte[][] content, String[] type, long[] ttl)
 	{
 		this.contents = content;
 		this.types = type;
 		this.ttls = ttl;
 	}
-	
+
 	public void putContent(byte[] content, String type, long ttl)
 	{
 		if (size < contents.length)
@@ -44,29 +58,87 @@ public class MultiplePutContent implements Serializable
 			throw new IllegalArgumentException("The structure is full");
 		}
 	}
-	
+
 	public int getSize()
 	{
 		return size;
 	}
-	
+
+	/**
+	 * Encodes the batch in the binary format
+	 * @return the encoded batch, null if the arrays have different lengths
+	 */
 	public byte[] toBytes()
 	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try
-		{
-			ObjectOutputStream oos = new ObjectOutputStream(baos);
-			oos.writeObject(this);
-		}
-		catch(IOException ioe)
+		if (contents.length != types.length || contents.length != ttls.length)
 		{
 			System.err.println("Error in MultiplePutContent serialization!");
 			return null;
 		}
-		return baos.toByteArray();
+		//the encoded types are shared by the contents of the same type
+		byte[][] encodedTypes = new byte[types.length][];
+		int length = 2 + 5;
+		for (int i = 0; i < contents.length; i++)
+		{
+			if (types[i] != null)
+				encodedTypes[i] = i > 0 && types[i].equals(types[i - 1]) ? encodedTypes[i - 1] : types[i].getBytes(UTF8);
+			length += 5 + 10 + 5 + (encodedTypes[i] == null ? 0 : encodedTypes[i].length) + (contents[i] == null ? 0 : contents[i].length);
+		}
+		byte[] buf = new byte[length];
+		buf[0] = MAGIC;
+		buf[1] = VERSION;
+		int pos = writeVarLong(buf, 2, contents.length);
+		for (int i = 0; i < contents.length; i++)
+		{
+			pos = writeBytes(buf, pos, encodedTypes[i]);
+			pos = writeVarLong(buf, pos, (ttls[i] << 1) ^ (ttls[i] >> 63));
+			pos = writeBytes(buf, pos, contents[i]);
+		}
+		return Arrays.copyOf(buf, pos);
 	}
-	
+
+	//returns the position after the written bytes
+	private static int writeBytes(byte[] buf, int pos, byte[] b)
+	{
+		if (b == null)
+		{
+			buf[pos] = 0;
+			return pos + 1;
+		}
+		pos = writeVarLong(buf, pos, b.length + 1L);
+		System.arraycopy(b, 0, buf, pos, b.length);
+		return pos + b.length;
+	}
+
+	private static int writeVarLong(byte[] buf, int pos, long v)
+	{
+		while ((v & ~0x7FL) != 0)
+		{
+			buf[pos++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte)v;
+		return pos;
+	}
+
+	/**
+	 * Decodes a batch, in the binary format or in the legacy Java serialization
+	 * @param bytes the encoded batch
+	 * @return the batch
+	 * @throws IllegalArgumentException if the batch is malformed
+	 */
 	public static MultiplePutContent createFromBytes(byte[] bytes) throws IllegalArgumentException
+	{
+		if (bytes != null && bytes.length > 0 && bytes[0] == JAVA_MAGIC)
+			return createFromJava(bytes);
+		Cursor cursor = new Cursor(bytes);
+		MultiplePutContent object = new MultiplePutContent(cursor.count());
+		while (cursor.next())
+			object.putContent(cursor.getValue(), cursor.getType(), cursor.getTtl());
+		return object;
+	}
+
+	private static MultiplePutContent createFromJava(byte[] bytes) throws IllegalArgumentException
 	{
 		MultiplePutContent object = null;
 		try
@@ -87,7 +159,20 @@ public class MultiplePutContent implements Serializable
 		}
 		return object;
 	}
-	
+
+	/**
+	 * Returns a cursor over the contents of an encoded batch
+	 * @param bytes the encoded batch
+	 * @return the cursor, positioned before the first content
+	 * @throws IllegalArgumentException if the header of the batch is malformed
+	 */
+	public static Cursor cursor(byte[] bytes) throws IllegalArgumentException
+	{
+		if (bytes != null && bytes.length > 0 && bytes[0] == JAVA_MAGIC)
+			return new Cursor(createFromJava(bytes));
+		return new Cursor(bytes);
+	}
+
 	/*GETTERS and SETTERS*/
 
 	public byte[][] getContent()
@@ -119,4 +204,161 @@ public class MultiplePutContent implements Serializable
 	{
 		this.ttls = ttl;
 	}
+
+	/**
+	 * Reads the contents of an encoded batch one at a time. The type of a content
+	 * is decoded only if it differs from the previous one, the value is copied only
+	 * when getValue() is called
+	 */
+	public static class Cursor
+	{
+		private final byte[] data;
+		private final MultiplePutContent legacy; //a batch in the Java serialization
+		private final int count;
+		private int index = -1;
+		private int pos;
+		private int typeOffset, typeLength; //typeLength is -1 for a null type
+		private int valueOffset, valueLength; //valueLength is -1 for a null value
+		private long ttl;
+		private String type;
+		private int lastTypeOffset = -1, lastTypeLength = -1; //the bytes type was decoded from
+
+		private Cursor(byte[] data) throws IllegalArgumentException
+		{
+			if (data == null || data.length < 3 || data[0] != MAGIC)
+				throw new IllegalArgumentException("Error while converting to MultiplePutObject instance");
+			if (data[1] != VERSION)
+				throw new IllegalArgumentException("Unsupported MultiplePutContent version " + data[1]);
+			this.data = data;
+			this.legacy = null;
+			this.pos = 2;
+			long n = readVarLong();
+			if (n < 0 || n > (data.length - pos) / 3) //every content takes at least three bytes
+				throw new IllegalArgumentException("Invalid MultiplePutContent size " + n);
+			this.count = (int)n;
+		}
+
+		private Cursor(MultiplePutContent legacy) throws IllegalArgumentException
+		{
+			if (legacy.contents == null || legacy.types == null || legacy.ttls == null
+					|| legacy.contents.length != legacy.types.length || legacy.contents.length != legacy.ttls.length)
+				throw new IllegalArgumentException("Inconsistent MultiplePutContent arrays");
+			this.data = null;
+			this.legacy = legacy;
+			this.count = legacy.contents.length;
+		}
+
+		/**
+		 * Returns the number of contents of the batch
+		 * @return the number of contents
+		 */
+		public int count()
+		{
+			return count;
+		}
+
+		/**
+		 * Moves to the next content
+		 * @return false if there are no more contents
+		 * @throws IllegalArgumentException if the content is malformed
+		 */
+		public boolean next() throws IllegalArgumentException
+		{
+			if (index + 1 >= count)
+				return false;
+			index++;
+			if (legacy != null)
+				return true;
+			typeLength = readLength();
+			typeOffset = pos;
+			pos += Math.max(typeLength, 0);
+			long v = readVarLong();
+			ttl = (v >>> 1) ^ -(v & 1);
+			valueLength = readLength();
+			valueOffset = pos;
+			pos += Math.max(valueLength, 0);
+			return true;
+		}
+
+		/**
+		 * Returns the type of the current content
+		 * @return the type, possibly null
+		 */
+		public String getType()
+		{
+			if (legacy != null)
+				return legacy.types[index];
+			if (typeLength < 0)
+				return null;
+			if (lastTypeLength != typeLength || (lastTypeOffset != typeOffset
+					&& !regionEquals(lastTypeOffset, typeOffset, typeLength)))
+				type = new String(data, typeOffset, typeLength, UTF8);
+			lastTypeOffset = typeOffset;
+			lastTypeLength = typeLength;
+			return type;
+		}
+
+		/**
+		 * Returns the time to live of the current content
+		 * @return the ttl
+		 */
+		public long getTtl()
+		{
+			return legacy != null ? legacy.ttls[index] : ttl;
+		}
+
+		/**
+		 * Returns the length of the value of the current content
+		 * @return the length in bytes, -1 if the value is null
+		 */
+		public int getValueLength()
+		{
+			if (legacy != null)
+				return legacy.contents[index] == null ? -1 : legacy.contents[index].length;
+			return valueLength;
+		}
+
+		/**
+		 * Returns a copy of the value of the current content
+		 * @return the value, possibly null
+		 */
+		public byte[] getValue()
+		{
+			if (legacy != null)
+				return legacy.contents[index];
+			return valueLength < 0 ? null : Arrays.copyOfRange(data, valueOffset, valueOffset + valueLength);
+		}
+
+		private boolean regionEquals(int a, int b, int length)
+		{
+			for (int i = 0; i < length; i++)
+				if (data[a + i] != data[b + i])
+					return false;
+			return true;
+		}
+
+		//a length followed by that many bytes which must be in the batch
+		private int readLength() throws IllegalArgumentException
+		{
+			long n = readVarLong() - 1;
+			if (n < -1 || n > data.length - pos)
+				throw new IllegalArgumentException("Truncated MultiplePutContent");
+			return (int)n;
+		}
+
+		private long readVarLong() throws IllegalArgumentException
+		{
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				if (pos >= data.length)
+					throw new IllegalArgumentException("Truncated MultiplePutContent");
+				byte b = data[pos++];
+				v |= (long)(b & 0x7F) << shift;
+				if (b >= 0)
+					return v;
+			}
+			throw new IllegalArgumentException("Malformed MultiplePutContent varint");
+		}
+	}
 }
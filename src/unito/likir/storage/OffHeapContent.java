@@ -0,0 +1,108 @@
+package unito.likir.storage;
+
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+
+/**
+ * A content whose value is kept in a ValueArena, out of the Java heap. Created by the
+ * storage when an entry is stored, released when the entry is removed.
+ * getValue() returns a copy of the value, getValueBuffer() a view of the arena, which
+ * must be read right away: a released value can be overwritten after the reclaim
+ * delay of the arena. A content is serialized as a ContentImpl
+ */
+public class OffHeapContent implements Content
+{
+	private static final long serialVersionUID = -5730851287733625190L;
+
+	final transient ValueArena arena;
+	final long chunk;
+	private final int length;
+	private final String type;
+	private volatile boolean released;
+	private long releaseTime; //written before released
+
+	OffHeapContent(ValueArena arena, long chunk, int length, String type)
+	{
+		this.arena = arena;
+		this.chunk = chunk;
+		this.length = length;
+		this.type = type;
+	}
+
+	/**
+	 * Returns a copy of the content payload
+	 * @return the content payload
+	 * @throws IllegalStateException if the value has been released and may be overwritten
+	 */
+	public byte[] getValue()
+	{
+		byte[] value = new byte[length];
+		arena.view(chunk, length).get(value);
+		check(); //the copy is valid if the chunk was not reused meanwhile
+		return value;
+	}
+
+	/**
+	 * Returns a read-only view of the content payload in the arena
+	 * @return the content payload
+	 * @throws IllegalStateException if the value has been released and may be overwritten
+	 */
+	public ByteBuffer getValueBuffer()
+	{
+		check();
+		return arena.view(chunk, length);
+	}
+
+	/**
+	 * Returns the content type
+	 * @return the content type
+	 */
+	public String getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Returns the content size (in bytes)
+	 * @return the content size
+	 */
+	public int size()
+	{
+		return length;
+	}
+
+	/**
+	 * Return a string representation of the content
+	 * @return a string representation of the content
+	 */
+	public String toString()
+	{
+		return "Content - type = " + type + ", size = " + size() + " (off-heap)";
+	}
+
+	//false if already released
+	synchronized boolean release(long now)
+	{
+		if (released)
+			return false;
+		releaseTime = now;
+		released = true;
+		return true;
+	}
+
+	boolean isReleased()
+	{
+		return released;
+	}
+
+	private void check()
+	{
+		if (released && System.nanoTime() - releaseTime >= arena.RECLAIM_DELAY)
+			throw new IllegalStateException("OffHeapContent: the value has been released");
+	}
+
+	private Object writeReplace() throws ObjectStreamException
+	{
+		return new ContentImpl(getValue(), type);
+	}
+}
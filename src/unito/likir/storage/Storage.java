@@ -50,7 +50,8 @@ public interface Storage extends Serializable
     public HashMap<String,Integer> getCount(NodeId key, String type, String ownerId, boolean recent);
     
     /**
-	 * TODO: Suitable for UDP packet length
+	 * Like get(), but the result is reduced to fit a FIND_VALUE response
+	 * (see the maxMessageSize setting)
      */
     public Collection<StorageEntry> getLimited(NodeId key, String type, String ownerId, boolean recent);
     
@@ -85,6 +86,16 @@ public interface Storage extends Serializable
      */
     public boolean remove(StorageEntry e);
    
+    /**
+     * Removes the entries whose TTL expired before the given time, the first expired
+     * first. The storage keeps its entries ordered by expire time (see ExpiryIndex),
+     * so the cost is proportional to the number of removed entries
+     * @param now the current time
+     * @param max the max number of entries to be removed
+     * @return the number of removed entries
+     */
+    public int removeExpired(long now, int max);
+    
     /**
      * Returns whether or not exists a key-bucket corresponding to key
      * @param key the key
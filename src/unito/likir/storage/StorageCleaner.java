@@ -2,6 +2,7 @@ package unito.likir.storage;
 
 import java.util.Collection;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.IOException;
 
 import unito.likir.Node;
@@ -13,6 +14,10 @@ import unito.likir.settings.Settings;
  * Performs the Storage maintenance erasing StorageEntries whose TTL is expired
  * and spreading in the DHT the valid StorageEntries by performing store RPCs.
  * The StorageCleaner is executed periodically for a good DHT functioning.
+ * The expired entries are also removed by a more frequent sweep, which takes them
+ * from the expiry index of the Storage in batches, for at most a time slice
+ * (expirySweepSlice setting): its cost depends on the number of expired entries, not
+ * on the size of the Storage, and the entries left are removed by the next sweep.
  * A StorageCleaner instance is always related to the local Node instance.
  * @author Luca Maria Aiello
  * @version 0.1
@@ -20,11 +25,21 @@ import unito.likir.settings.Settings;
 
 public class StorageCleaner implements Runnable
 {
+	private static final int SWEEP_BATCH = 256; //entries removed between two checks of the time slice
+	
 	private Node node;
 	private ScheduledFuture<?> future; //TODO:rivedi il <?>
+	private ScheduledFuture<?> sweeperFuture;
 	private final int K;
 	private final int STORE_CLEANER_PERIOD;
 	private final int CONTENT_REPUBLISH_PERIOD;
+	private final int EXPIRY_SWEEP_PERIOD;
+	private final long EXPIRY_SWEEP_SLICE; //in nanoseconds
+	private final AtomicLong sweeps;
+	private final AtomicLong expiredCount;
+	private volatile int lastExpired; //entries removed by the last sweep
+	private volatile long lastSweepTime; //duration of the last sweep, in nanoseconds
+	private volatile long maxSweepTime;
 	
 	/**
 	 * Create a new StorageCleaner
@@ -36,6 +51,10 @@ public class StorageCleaner implements Runnable
 		this.K = Integer.parseInt(PropFinder.get(Settings.K));
 		this.STORE_CLEANER_PERIOD = Integer.parseInt(PropFinder.get(Settings.STORE_CLEANER_PERIOD));
 		this.CONTENT_REPUBLISH_PERIOD = Integer.parseInt(PropFinder.get(Settings.CONTENT_REPUBLISH_PERIOD));
+		this.EXPIRY_SWEEP_PERIOD = Integer.parseInt(PropFinder.get(Settings.EXPIRY_SWEEP_PERIOD));
+		this.EXPIRY_SWEEP_SLICE = Long.parseLong(PropFinder.get(Settings.EXPIRY_SWEEP_SLICE)) * 1000000L;
+		this.sweeps = new AtomicLong(0);
+		this.expiredCount = new AtomicLong(0);
 	}
 	
 	/**
@@ -59,6 +78,16 @@ public class StorageCleaner implements Runnable
             
             future = node.getInnerExecutor().scheduleWithFixedDelay(this, initialDelay, delay, Settings.DEFAULT_TIME_UNIT);
         }
+        if (sweeperFuture == null)
+        {
+            sweeperFuture = node.getInnerExecutor().scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    sweep();
+                }
+            }, EXPIRY_SWEEP_PERIOD, EXPIRY_SWEEP_PERIOD, Settings.DEFAULT_TIME_UNIT);
+        }
     }
     
     /**
@@ -71,37 +100,115 @@ public class StorageCleaner implements Runnable
             future.cancel(true);
             future = null;
         }
+        if (sweeperFuture != null)
+        {
+            sweeperFuture.cancel(true);
+            sweeperFuture = null;
+        }
+    }
+    
+    /**
+     * Removes the expired entries from the Storage, until none is left or the time
+     * slice is over
+     * @return the number of removed entries
+     */
+    public int sweep()
+    {
+        Storage storage = node.getStorage();
+        long start = System.nanoTime();
+        int expired = 0;
+        int removed;
+        do
+        {
+            removed = storage.removeExpired(System.currentTimeMillis(), SWEEP_BATCH);
+            expired += removed;
+        }
+        while (removed == SWEEP_BATCH && System.nanoTime() - start < EXPIRY_SWEEP_SLICE);
+        long elapsed = System.nanoTime() - start;
+        sweeps.incrementAndGet();
+        expiredCount.addAndGet(expired);
+        lastExpired = expired;
+        lastSweepTime = elapsed;
+        if (elapsed > maxSweepTime)
+            maxSweepTime = elapsed;
+        return expired;
+    }
+    
+    /**
+     * Returns the number of sweeps performed
+     * @return the sweep counter
+     */
+    public long getSweepCount()
+    {
+        return sweeps.get();
+    }
+    
+    /**
+     * Returns the number of expired entries removed by all the sweeps
+     * @return the expired entries counter
+     */
+    public long getExpiredCount()
+    {
+        return expiredCount.get();
+    }
+    
+    /**
+     * Returns the number of expired entries removed by the last sweep
+     * @return the entries removed by the last sweep
+     */
+    public int getLastExpiredCount()
+    {
+        return lastExpired;
+    }
+    
+    /**
+     * Returns the duration of the last sweep
+     * @return the duration (in microseconds)
+     */
+    public long getLastSweepTime()
+    {
+        return lastSweepTime / 1000;
+    }
+    
+    /**
+     * Returns the duration of the longest sweep
+     * @return the duration (in microseconds)
+     */
+    public long getMaxSweepTime()
+    {
+        return maxSweepTime / 1000;
     }
     
     /*
-     * Removes all expired <code>StorageEntry</code> from the <code>Storage</code>.
+     * Removes all expired <code>StorageEntry</code> from the <code>Storage</code>
+     * and republishes the entries not republished for CONTENT_REPUBLISH_PERIOD.
+     * The values of the Storage are a copy: the Storage is not locked while the
+     * entries are sent
      */
     private void storageMaintenance()
     {
         Storage storage = node.getStorage();
+        sweep();
         long currentTime = System.currentTimeMillis();
         
-        synchronized (storage)
+        for (StorageEntry entry : storage.values())
         {
-            for (StorageEntry entry : storage.values())
+            if (entry.isExpired())
+                continue; //removed by the next sweep
+            else if (currentTime - entry.getLastRepublishTime() > CONTENT_REPUBLISH_PERIOD)
             {
-                if (entry.isExpired())
-                    storage.remove(entry);
-                else if (currentTime - entry.getLastRepublishTime() > CONTENT_REPUBLISH_PERIOD)
-                {
-                	Collection<Contact> nearestNodes =  node.getRouteTable().select(node.getNodeId(), K);
-                	for (Contact c : nearestNodes)
-                	{
-                		try
-                		{
-                			node.store(c, entry);
-                		}
-                		catch(IOException ioe)
-                		{
-                			System.err.println("StorageCleaner : REPLICA STORE FAILED!");
-                		}
-                	}
-                }
+            	Collection<Contact> nearestNodes =  node.getRouteTable().select(node.getNodeId(), K);
+            	for (Contact c : nearestNodes)
+            	{
+            		try
+            		{
+            			node.store(c, entry);
+            		}
+            		catch(IOException ioe)
+            		{
+            			System.err.println("StorageCleaner : REPLICA STORE FAILED!");
+            		}
+            	}
             }
         }
     }
@@ -113,4 +220,10 @@ public class StorageCleaner implements Runnable
     {
     	storageMaintenance();
     }
+    
+    public String toString()
+    {
+        return "StorageCleaner - sweeps: " + getSweepCount() + " - expired: " + getExpiredCount()
+                + " (last sweep: " + getLastExpiredCount() + " in " + getLastSweepTime() + " us, max " + getMaxSweepTime() + " us)";
+    }
 }
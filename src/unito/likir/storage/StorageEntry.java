@@ -93,6 +93,15 @@ public class StorageEntry implements Serializable, Comparable<StorageEntry>
 		return credentials.getTTL();
 	}
 	
+	/**
+	 * Returns the time the content expires at (getSubmissionTime() + getTtl())
+	 * @return the expire time
+	 */
+	public long getExpireTime()
+	{
+		return credentials.getTimeStamp() + credentials.getTTL();
+	}
+	
 	/**
 	 * Returns the time of last republishing. This value is significant only when the StorageEntry
 	 * is kept in a Storage
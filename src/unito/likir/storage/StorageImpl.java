@@ -1,8 +1,6 @@
 package unito.likir.storage;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -11,11 +9,13 @@ import java.util.Set;
 import java.util.LinkedList;
 
 import unito.likir.NodeId;
+import unito.likir.messages.dht.MessageCodec;
 import unito.likir.settings.PropFinder;
 import unito.likir.settings.Settings;
 
 /**
- * A simple implementation of a Storage
+ * A simple implementation of a Storage, whose methods are synchronized.
+ * Selected by the storageEngine setting; see ConcurrentStorage
  * @author Luca Maria Aiello
  * @version 0.1
  */
@@ -24,17 +24,21 @@ public class StorageImpl implements Storage
 {
 	private static final long serialVersionUID = 6810336673059288882L;
 	
-	private final int MAX_CONTENT_SIZE;
+	private static final int RESPONSE_OVERHEAD = 8192; //room left for the envelope of a FIND_VALUE response
+	
+	private transient int maxResponseSize; //max encoded (and compressed) length of the entries of a FIND_VALUE response, see maxResponseSize()
 	
 	private HashMap<NodeId,HashMap<String,HashMap<String,List<StorageEntry>>>> store;
+	private ExpiryIndex expiry; //null in the storages saved before it was introduced, see expiry()
 
 	/**
 	 * Create a new StorageImpl instance
 	 */
 	public StorageImpl()
 	{
-		this.MAX_CONTENT_SIZE = Integer.parseInt(PropFinder.get(Settings.MAX_CONTENT_SIZE));
+		this.maxResponseSize = getMaxResponseSize();
 		store = new HashMap<NodeId,HashMap<String,HashMap<String,List<StorageEntry>>>>();//(StorageSettings.STORE_INITIAL_SIZE);
+		expiry = new ExpiryIndex();
 	}
 	
 	public boolean isEmpty()
@@ -103,6 +107,7 @@ public class StorageImpl implements Storage
 			store.put(key,newKeyBucket);
     	}
     	
+    	expiry().add(entry);
     	return true; //TODO: esaminare i casi in cui restituisce false
     }
     
@@ -247,13 +252,15 @@ public class StorageImpl implements Storage
     			if (typeBucket != null)
     			{
     				List<StorageEntry> userBucket = typeBucket.get(ownerId);
+    				if (userBucket == null)
+    					return null;
     				if (recent)
     				{
         				result.add(userBucket.get(0));
     				}
     				else
     				{
-    					result = userBucket;
+    					result.addAll(userBucket); //the caller gets a copy, not the user-bucket
     				}
     			}
     			else
@@ -288,19 +295,18 @@ public class StorageImpl implements Storage
     			{
     				for (HashMap<String,List<StorageEntry>> t : keyBucket.values()) //for all the type-buckets
     				{
-    					System.out.println(">>>>> " + t.size());
-    					System.out.println(">>>>> " + t);
-    					System.out.println(">>>>> " + t.get(ownerId));
-    					System.out.println(">>>>> " + t.get(ownerId).get(0));
-    					StorageEntry e = t.get(ownerId).get(0);
-    					result.add(e);
+    					List<StorageEntry> userBucket = t.get(ownerId);
+    					if (userBucket != null) //the owner may have no content of this type
+    						result.add(userBucket.get(0));
     				}
     			}
     			else
     			{
     				for (HashMap<String,List<StorageEntry>> t : keyBucket.values()) //for all the type-buckets
     				{
-    					result.addAll(t.get(ownerId));
+    					List<StorageEntry> userBucket = t.get(ownerId);
+    					if (userBucket != null)
+    						result.addAll(userBucket);
     				}
     			}
     		}
@@ -332,77 +338,105 @@ public class StorageImpl implements Storage
     	result = get(key,type,ownerId,recent);
     	if (result != null)
     	{
-    		reduce(result);
+    		reduce(result, maxResponseSize());
     	}
     	return result;
     }
     
-    private synchronized void reduce(List<StorageEntry> list)
+    /*
+     * The max encoded length of the entries of a FIND_VALUE response, given by the
+     * maxMessageSize setting
+     */
+    static int getMaxResponseSize()
+    {
+    	return Integer.parseInt(PropFinder.get(Settings.MAX_MESSAGE_SIZE)) - RESPONSE_OVERHEAD;
+    }
+    
+    /*
+     * Removes entries from a list until its encoding fits a FIND_VALUE response
+     */
+    static void reduce(List<StorageEntry> list, int maxSize)
     {
-    	int size =  MAX_CONTENT_SIZE+1;
+    	int size =  maxSize+1;
     	
     	try
     	{
-	    	while (size > MAX_CONTENT_SIZE)
+	    	while (size > maxSize)
 	    	{
-	    		byte[] cont = serialize(list);
-	    		size = cont.length;
+	    		size = MessageCodec.getEncodedSize(list);
+	    		//a compressed response shrinks by about the compression ratio for every removed content
+	    		int rawSize = 0;
+	    		for (StorageEntry e : list)
+	    			rawSize += e.getContent().size();
+	    		double ratio = rawSize > 0 ? Math.min(1.0, (double)size / rawSize) : 1.0;
 	    		StorageEntry[] arr = list.toArray(new StorageEntry[0]);
 	    		for (StorageEntry e : arr)
 	        	{
-	    			if (size <= MAX_CONTENT_SIZE)
+	    			if (size <= maxSize)
 	        			break;
 	    			else
 	    			{
 	    				list.remove(e);
-	    				size -= e.getContent().size();
+	    				size -= Math.max(1, (int)(e.getContent().size() * ratio));
 	    			}
 	        	}
 	    	}
 	    }
     	catch(IOException ioe)
     	{
-    		list = new ArrayList<StorageEntry>();
+    		list.clear();
     	}
     }
     
-	private synchronized byte[] serialize(Object msg) throws IOException
-	{
-		//compose the UDP packet to be sent
-		byte[] data;
-		
-	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	    ObjectOutputStream oos = new ObjectOutputStream(bos);
-	    oos.writeObject(msg);
-	    oos.flush();
-	    data = bos.toByteArray();
-	    oos.close();
-	    bos.close();
-	    
-	    return data;
-	}
-    
     public synchronized HashMap<String,HashMap<String,List<StorageEntry>>> remove(NodeId key)
     {
-    	return store.remove(key);
+    	HashMap<String,HashMap<String,List<StorageEntry>>> keyBucket = store.remove(key);
+    	if (keyBucket != null)
+    		for (HashMap<String,List<StorageEntry>> typeBucket : keyBucket.values())
+    			unindex(typeBucket);
+    	return keyBucket;
     }
 
     public synchronized HashMap<String,List<StorageEntry>> remove(NodeId key, String type)
     {
     	HashMap<String,HashMap<String,List<StorageEntry>>> keyBucket = store.get(key);
     	if (keyBucket != null)
-    		return keyBucket.remove(type);
+    	{
+    		HashMap<String,List<StorageEntry>> typeBucket = keyBucket.remove(type);
+    		if (keyBucket.isEmpty())
+    			store.remove(key);
+    		if (typeBucket != null)
+    			unindex(typeBucket);
+    		return typeBucket;
+    	}
     	else
     		return null;
     }
     
+    private void unindex(HashMap<String,List<StorageEntry>> typeBucket)
+    {
+    	for (List<StorageEntry> userBucket : typeBucket.values())
+    		for (StorageEntry e : userBucket)
+    			expiry().remove(e);
+    }
+    
     public synchronized List<StorageEntry> remove(NodeId key, String type, String owner)
     {
     	HashMap<String,HashMap<String,List<StorageEntry>>> keyBucket = store.get(key);
     	if (keyBucket != null)
     	{
     		HashMap<String,List<StorageEntry>> typeBucket = keyBucket.get(type);
-    		return typeBucket.remove(owner);
+    		if (typeBucket == null)
+    			return null;
+    		List<StorageEntry> removed = typeBucket.remove(owner);
+    		if (removed != null)
+    			for (StorageEntry e : removed)
+    				expiry().remove(e);
+    		if (typeBucket.isEmpty())
+    			keyBucket.remove(type);
+    		if (keyBucket.isEmpty())
+    			store.remove(key);
+    		return removed;
     	}
     	else
     		return null;
@@ -410,8 +444,21 @@ public class StorageImpl implements Storage
     
     public synchronized boolean remove(StorageEntry e)
     {
-    	Collection<StorageEntry> list = get(e.getKey(),e.getContent().getType(),e.getOwnerId(),false);
-    	return list.remove(e);
+    	HashMap<String,HashMap<String,List<StorageEntry>>> keyBucket = store.get(e.getKey());
+    	HashMap<String,List<StorageEntry>> typeBucket = keyBucket == null ? null : keyBucket.get(e.getContent().getType());
+    	List<StorageEntry> userBucket = typeBucket == null ? null : typeBucket.get(e.getOwnerId());
+    	if (userBucket == null || !userBucket.remove(e))
+    		return false;
+    	expiry().remove(e);
+    	if (userBucket.isEmpty()) //an empty bucket has no most recent entry
+    	{
+    		typeBucket.remove(e.getOwnerId());
+    		if (typeBucket.isEmpty())
+    			keyBucket.remove(e.getContent().getType());
+    		if (keyBucket.isEmpty())
+    			store.remove(e.getKey());
+    	}
+    	return true;
     }
     
     public synchronized boolean contains(NodeId key)
@@ -503,9 +550,43 @@ public class StorageImpl implements Storage
     	return values().size();
     }
 
+    public synchronized int removeExpired(long now, int max)
+    {
+    	List<StorageEntry> expired = expiry().expired(now, max);
+    	for (StorageEntry e : expired)
+    		if (!remove(e))
+    			expiry().remove(e); //no longer stored
+    	return expired.size();
+    }
+    
+    /*
+     * The max length of a response, computed again in a deserialized storage
+     */
+    private int maxResponseSize()
+    {
+    	if (maxResponseSize == 0)
+    		maxResponseSize = getMaxResponseSize();
+    	return maxResponseSize;
+    }
+
+    /*
+     * The expiry index, rebuilt if this storage was saved without it
+     */
+    private ExpiryIndex expiry()
+    {
+    	if (expiry == null)
+    	{
+    		expiry = new ExpiryIndex();
+    		for (StorageEntry e : values())
+    			expiry.add(e);
+    	}
+    	return expiry;
+    }
+
     public synchronized void clear()
     {
     	store.clear();
+    	expiry().clear();
     }
 
     public synchronized String toString()
@@ -0,0 +1,270 @@
+package unito.likir.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+
+/**
+ * Keeps the values of the stored contents out of the Java heap, so that the heap (and
+ * the work of the garbage collector) grows with the number of entries rather than
+ * with the size of their values.
+ * The memory is a set of direct buffers (slabs) of valueArenaSlabSize bytes, allocated
+ * on demand up to valueArenaSize bytes. Every slab is cut in chunks of one size class;
+ * the classes grow by a factor of 1.25 from 64 bytes up to the slab size, so a value
+ * wastes less than a fifth of its chunk. A value is written in a chunk of the
+ * smallest class which holds it; the values which are too small, too large or which
+ * don't fit in the arena (or in the direct memory of the JVM) stay on the heap.
+ * A released chunk is reused only after valueArenaReclaimDelay ms, so that a value
+ * read while its entry was removed (e.g. while a FIND_VALUE response is encoded) is
+ * not overwritten; reading an OffHeapContent after that delay throws an
+ * IllegalStateException. Thread safe
+ */
+public class ValueArena
+{
+	private static final int MIN_CHUNK = 64; //size of the smallest class
+	private static final double GROWTH = 1.25; //ratio between the sizes of two classes
+	private static final int MIN_VALUE = 32; //smaller values cost less on the heap than in a chunk
+
+	private final int SLAB_SIZE;
+	private final long CAPACITY;
+	final long RECLAIM_DELAY; //in nanoseconds
+
+	private final int[] chunkSizes;
+	private final SizeClass[] classes;
+	private volatile ByteBuffer[] slabs;
+	private int slabCount; //guarded by this
+	private boolean exhausted; //guarded by this, true once the direct memory ran out
+	private final AtomicLong liveBytes; //length of the values in the arena
+	private final AtomicLong liveValues;
+	private final AtomicLong fallbacks; //values kept on the heap because the arena is full
+
+	/**
+	 * Create a new empty ValueArena
+	 * @param capacity the max size of the arena (in bytes)
+	 * @param slabSize the size of a slab (in bytes), which is also the size of the largest value
+	 * @param reclaimDelay the time after which a released chunk can be reused (in ms)
+	 */
+	public ValueArena(long capacity, int slabSize, long reclaimDelay)
+	{
+		if (slabSize < MIN_CHUNK)
+			throw new IllegalArgumentException("Slab size must be >= " + MIN_CHUNK);
+		this.SLAB_SIZE = slabSize;
+		this.CAPACITY = capacity;
+		this.RECLAIM_DELAY = reclaimDelay * 1000000L;
+		int[] sizes = new int[128];
+		int n = 0;
+		for (long size = MIN_CHUNK; size < slabSize; size = (long)(size * GROWTH + 7) & ~7L)
+			sizes[n++] = (int)size;
+		sizes[n++] = slabSize;
+		this.chunkSizes = Arrays.copyOf(sizes, n);
+		this.classes = new SizeClass[n];
+		for (int i = 0; i < n; i++)
+			classes[i] = new SizeClass(chunkSizes[i]);
+		this.slabs = new ByteBuffer[0];
+		this.liveBytes = new AtomicLong(0);
+		this.liveValues = new AtomicLong(0);
+		this.fallbacks = new AtomicLong(0);
+	}
+
+	/**
+	 * Creates the arena configured by the valueArena settings
+	 * @return the arena, null if valueArenaSize is 0
+	 */
+	public static ValueArena fromSettings()
+	{
+		long capacity = Long.parseLong(PropFinder.get(Settings.VALUE_ARENA_SIZE));
+		if (capacity <= 0)
+			return null;
+		return new ValueArena(capacity, Integer.parseInt(PropFinder.get(Settings.VALUE_ARENA_SLAB_SIZE)),
+				Long.parseLong(PropFinder.get(Settings.VALUE_ARENA_RECLAIM_DELAY)));
+	}
+
+	/**
+	 * Copies the value of a content in the arena
+	 * @param content the content
+	 * @return an OffHeapContent with the same type and value, or content itself if its
+	 * value stays on the heap or is already in this arena
+	 */
+	public Content copy(Content content)
+	{
+		if (content instanceof OffHeapContent && ((OffHeapContent)content).arena == this && !((OffHeapContent)content).isReleased())
+			return content;
+		byte[] value = content.getValue();
+		if (value == null || value.length < MIN_VALUE || value.length > SLAB_SIZE)
+			return content;
+		long chunk = allocate(value.length);
+		if (chunk < 0)
+		{
+			fallbacks.incrementAndGet();
+			return content;
+		}
+		ByteBuffer slab = slabs[(int)(chunk >>> 32)].duplicate();
+		slab.position((int)chunk);
+		slab.put(value);
+		liveBytes.addAndGet(value.length);
+		liveValues.incrementAndGet();
+		return new OffHeapContent(this, chunk, value.length, content.getType());
+	}
+
+	/**
+	 * Releases the chunk of a content copied in this arena; other contents are ignored
+	 * @param content the content of a removed entry
+	 */
+	public void release(Content content)
+	{
+		if (!(content instanceof OffHeapContent))
+			return;
+		OffHeapContent offHeap = (OffHeapContent)content;
+		long now = System.nanoTime();
+		if (offHeap.arena != this || !offHeap.release(now))
+			return;
+		SizeClass sizeClass = classes[classOf(offHeap.size())];
+		synchronized (sizeClass)
+		{
+			sizeClass.push(offHeap.chunk, now);
+		}
+		liveBytes.addAndGet(-offHeap.size());
+		liveValues.decrementAndGet();
+	}
+
+	/**
+	 * Returns the size of the slabs allocated so far
+	 * @return the off-heap memory used by the arena (in bytes)
+	 */
+	public synchronized long getSlabBytes()
+	{
+		return (long)slabCount * SLAB_SIZE;
+	}
+
+	/**
+	 * Returns the length of the values in the arena
+	 * @return the live bytes
+	 */
+	public long getLiveBytes()
+	{
+		return liveBytes.get();
+	}
+
+	/**
+	 * Returns the number of values kept on the heap because the arena was full
+	 * @return the fallback counter
+	 */
+	public long getFallbackCount()
+	{
+		return fallbacks.get();
+	}
+
+	public String toString()
+	{
+		return "ValueArena - values=" + liveValues.get() + ", live=" + getLiveBytes() + " bytes, slabs=" + getSlabBytes() + "/"
+				+ CAPACITY + " bytes, classes=" + chunkSizes.length + ", fallbacks=" + getFallbackCount();
+	}
+
+	//a read-only view of a chunk
+	ByteBuffer view(long chunk, int length)
+	{
+		ByteBuffer view = slabs[(int)(chunk >>> 32)].duplicate();
+		int offset = (int)chunk;
+		view.limit(offset + length).position(offset);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	//the chunk for a value, as slab index << 32 | offset; -1 if the arena is full
+	private long allocate(int length)
+	{
+		SizeClass sizeClass = classes[classOf(length)];
+		synchronized (sizeClass)
+		{
+			if (sizeClass.count > 0 && System.nanoTime() - sizeClass.times[sizeClass.head] >= RECLAIM_DELAY)
+				return sizeClass.poll();
+			if (sizeClass.slab < 0 || sizeClass.next + sizeClass.size > SLAB_SIZE)
+			{
+				int slab = newSlab();
+				if (slab < 0)
+					return -1;
+				sizeClass.slab = slab;
+				sizeClass.next = 0;
+			}
+			long chunk = (long)sizeClass.slab << 32 | sizeClass.next;
+			sizeClass.next += sizeClass.size;
+			return chunk;
+		}
+	}
+
+	//-1 if the arena is full or the JVM has no direct memory left (see -XX:MaxDirectMemorySize)
+	private synchronized int newSlab()
+	{
+		if (exhausted || (long)(slabCount + 1) * SLAB_SIZE > CAPACITY)
+			return -1;
+		ByteBuffer slab;
+		try
+		{
+			slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		}
+		catch (OutOfMemoryError e)
+		{
+			exhausted = true; //a failed allocation is slow (it waits for a GC), so it is not retried
+			return -1; //the values stay on the heap
+		}
+		ByteBuffer[] grown = Arrays.copyOf(slabs, slabCount + 1);
+		grown[slabCount] = slab;
+		slabs = grown;
+		return slabCount++;
+	}
+
+	//the smallest class holding length bytes
+	private int classOf(int length)
+	{
+		int i = Arrays.binarySearch(chunkSizes, length);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	//the chunks of a size: the slab being cut and a FIFO of released chunks
+	private static class SizeClass
+	{
+		final int size;
+		int slab = -1;
+		int next; //offset of the next chunk of slab
+		long[] chunks = new long[16];
+		long[] times = new long[16]; //release times
+		int head;
+		int count;
+
+		SizeClass(int size)
+		{
+			this.size = size;
+		}
+
+		void push(long chunk, long time)
+		{
+			if (count == chunks.length)
+			{
+				long[] c = new long[count * 2];
+				long[] t = new long[count * 2];
+				for (int i = 0; i < count; i++)
+				{
+					c[i] = chunks[(head + i) % chunks.length];
+					t[i] = times[(head + i) % chunks.length];
+				}
+				chunks = c;
+				times = t;
+				head = 0;
+			}
+			int tail = (head + count) % chunks.length;
+			chunks[tail] = chunk;
+			times[tail] = time;
+			count++;
+		}
+
+		long poll()
+		{
+			long chunk = chunks[head];
+			head = (head + 1) % chunks.length;
+			count--;
+			return chunk;
+		}
+	}
+}
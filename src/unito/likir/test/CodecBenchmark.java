@@ -0,0 +1,168 @@
+package unito.likir.test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import unito.likir.NodeId;
+import unito.likir.messages.dht.DHTMessage;
+import unito.likir.messages.dht.FindNodeRequestImpl;
+import unito.likir.messages.dht.FindNodeResponseImpl;
+import unito.likir.messages.dht.FindValueResponseImpl;
+import unito.likir.messages.dht.MessageCodec;
+import unito.likir.messages.dht.Nonce;
+import unito.likir.messages.dht.PingRequestImpl;
+import unito.likir.messages.dht.RPC;
+import unito.likir.messages.dht.RPCMessageImpl;
+import unito.likir.messages.dht.StoreRequestImpl;
+import unito.likir.routing.Contact;
+import unito.likir.routing.ContactImpl;
+import unito.likir.security.AuthNodeId;
+import unito.likir.security.Authenticator;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.StorageEntry;
+
+/**
+ * Compares the Java serialization and the binary MessageCodec on the messages of
+ * a lookup, a store and a get: for each message the encoded size and the time
+ * spent to encode and decode it are printed, as well as the binary encoding time
+ * when the header and the AuthNodeId are copied from a frame template, as the
+ * messages built by RPCMessageFactoryImpl are. The messages are built and signed
+ * with a local key, so no CA is needed.
+ *
+ * Usage: CodecBenchmark [iterations] [valueSize]
+ */
+public class CodecBenchmark
+{
+    private static final int WARMUP = 2000;
+
+    public static void main(String... args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000; //measured encodings per message
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024; //size of the stored values
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        Random random = new Random(42);
+
+        Map<String,DHTMessage> messages = new LinkedHashMap<String,DHTMessage>();
+        NodeId sender = NodeId.createRandom();
+        messages.put("Nonce", new Nonce(sender, true));
+        messages.put("PingRequest", rpcMessage(agent, sender, new PingRequestImpl(random.nextLong())));
+        messages.put("FindNodeRequest", rpcMessage(agent, sender, new FindNodeRequestImpl(random.nextLong(), NodeId.createRandom())));
+        messages.put("FindNodeResponse", rpcMessage(agent, sender, new FindNodeResponseImpl(random.nextLong(), contacts(20))));
+        List<StorageEntry> entries = entries(agent, 10, valueSize, random);
+        messages.put("StoreRequest", rpcMessage(agent, sender, new StoreRequestImpl(random.nextLong(),
+                entries.toArray(new StorageEntry[entries.size()]), true)));
+        HashMap<String,Integer> counters = new HashMap<String,Integer>();
+        counters.put("Likir", Integer.valueOf(entries.size()));
+        messages.put("FindValueResponse", rpcMessage(agent, sender, new FindValueResponseImpl(random.nextLong(), contacts(4), entries, counters)));
+
+        System.out.println(String.format("%-18s %10s %10s %12s %12s %12s %12s %12s", "message", "java B", "binary B",
+                "java enc ns", "binary enc ns", "template ns", "java dec ns", "binary dec ns"));
+        for (Map.Entry<String,DHTMessage> e : messages.entrySet())
+        {
+            DHTMessage message = e.getValue();
+            byte[] java = MessageCodec.encodeJava(message);
+            byte[] binary = MessageCodec.encodeBinary(message);
+            check(message, java, binary);
+
+            //warm up both paths before measuring
+            measure(message, false, WARMUP);
+            measure(message, true, WARMUP);
+            long[] javaTimes = measure(message, false, iterations);
+            long[] binaryTimes = measure(message, true, iterations);
+            long templateTime = binaryTimes[0];
+            if (message instanceof RPCMessageImpl)
+            {
+                RPCMessageImpl templated = withTemplate((RPCMessageImpl)message);
+                if (!Arrays.equals(binary, MessageCodec.encodeBinary(templated)))
+                    System.out.println("WARNING: " + message.getMsgOpCode() + " is encoded differently with its template");
+                measure(templated, true, WARMUP);
+                templateTime = measure(templated, true, iterations)[0];
+            }
+            System.out.println(String.format("%-18s %10d %10d %12d %12d %12d %12d %12d", e.getKey(), java.length, binary.length,
+                    javaTimes[0], binaryTimes[0], templateTime, javaTimes[1], binaryTimes[1]));
+        }
+    }
+
+    //returns the average encoding and decoding time, in ns
+    private static long[] measure(DHTMessage message, boolean binary, int iterations) throws Exception
+    {
+        long sink = 0;
+        byte[] data = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            data = binary ? MessageCodec.encodeBinary(message) : MessageCodec.encodeJava(message);
+            sink += data.length;
+        }
+        long encode = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            sink += MessageCodec.decode(ByteBuffer.wrap(data)).getSid();
+        }
+        long decode = (System.nanoTime() - start) / iterations;
+        if (sink == 42)
+            System.out.print("");
+        return new long[] {encode, decode};
+    }
+
+    //both encodings must decode to the same message. The binary encoding is compared, since the
+    //Java one depends on the objects shared by the message (the public keys of the entries)
+    private static void check(DHTMessage message, byte[] java, byte[] binary) throws Exception
+    {
+        byte[] fromJava = MessageCodec.encodeBinary(MessageCodec.decode(ByteBuffer.wrap(java)));
+        byte[] fromBinary = MessageCodec.encodeBinary(MessageCodec.decode(ByteBuffer.wrap(binary)));
+        if (!Arrays.equals(binary, fromJava) || !Arrays.equals(binary, fromBinary))
+            System.out.println("WARNING: " + message.getMsgOpCode() + " doesn't survive the round trip");
+    }
+
+    private static RPCMessageImpl rpcMessage(SecurityAgent agent, NodeId sender, RPC rpc) throws Exception
+    {
+        AuthNodeId authNodeId = new AuthNodeId(sender, agent.getPublicKey(), "BenchUser", System.currentTimeMillis() + 3600000);
+        authNodeId.setSignature(agent.sign(authNodeId.getContent()));
+        Authenticator auth = new Authenticator(NodeId.createRandom(), new Nonce(sender, true).getNonce(),
+                agent.hash(MessageCodec.encodeRPC(rpc)));
+        auth.setSignature(agent.sign(auth.getContent()));
+        return new RPCMessageImpl(authNodeId, auth, rpc);
+    }
+
+    private static RPCMessageImpl withTemplate(RPCMessageImpl message) throws Exception
+    {
+        RPCMessageImpl templated = new RPCMessageImpl(message.getAuthNodeId(), message.getAuthenticator(), message.getRPC());
+        templated.setFrameTemplate(MessageCodec.encodeFrameTemplate(message.getMsgOpCode(), message.getAuthNodeId()));
+        return templated;
+    }
+
+    private static Collection<Contact> contacts(int n)
+    {
+        List<Contact> contacts = new ArrayList<Contact>();
+        for (int i = 0; i < n; i++)
+            contacts.add(new ContactImpl(NodeId.createRandom(), new InetSocketAddress("127.0.0.1", 8000 + i)));
+        return contacts;
+    }
+
+    private static List<StorageEntry> entries(SecurityAgent agent, int n, int valueSize, Random random) throws Exception
+    {
+        List<StorageEntry> entries = new ArrayList<StorageEntry>();
+        for (int i = 0; i < n; i++)
+        {
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            Credentials credentials = new Credentials("BenchUser", agent.getPublicKey(), System.currentTimeMillis(), 3600000, agent.hash(value));
+            credentials.setSignature(agent.sign(credentials.getContent()));
+            entries.add(new StorageEntry(NodeId.createRandom(), new ContentImpl(value, "Likir"), credentials));
+        }
+        return entries;
+    }
+}
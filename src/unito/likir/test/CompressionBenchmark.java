@@ -0,0 +1,215 @@
+package unito.likir.test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import unito.likir.NodeId;
+import unito.likir.messages.dht.DHTMessage;
+import unito.likir.messages.dht.FindValueResponseImpl;
+import unito.likir.messages.dht.MessageCodec;
+import unito.likir.messages.dht.Nonce;
+import unito.likir.messages.dht.RPC;
+import unito.likir.messages.dht.RPCMessage;
+import unito.likir.messages.dht.RPCMessageImpl;
+import unito.likir.messages.dht.StoreRequestImpl;
+import unito.likir.routing.Contact;
+import unito.likir.routing.ContactImpl;
+import unito.likir.security.AuthNodeId;
+import unito.likir.security.Authenticator;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.StorageEntry;
+
+/**
+ * Measures the compression of the STORE requests and FIND_VALUE responses on a
+ * few kinds of values: JSON-like records, text, random bytes and almost identical
+ * values. For each message the binary length with and without compression and the
+ * time spent to encode and decode it are printed. The messages are built and
+ * signed with a local key, so no CA is needed.
+ *
+ * Usage: CompressionBenchmark [iterations] [valueSize] [entries]
+ */
+public class CompressionBenchmark
+{
+    private static final int WARMUP = 500;
+    private static final String[] WORDS = {"the", "node", "value", "key", "store", "lookup", "overlay", "peer",
+            "identity", "content", "a", "of", "is", "and", "to", "signed", "with", "network"};
+
+    public static void main(String... args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000; //measured encodings per message
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 2048; //size of the stored values
+        int n = args.length > 2 ? Integer.parseInt(args[2]) : 10; //entries per message
+        int threshold = MessageCodec.getCompressionThreshold() < 0 ? 1024 : MessageCodec.getCompressionThreshold();
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        Random random = new Random(42);
+        NodeId sender = NodeId.createRandom();
+
+        Map<String,List<byte[]>> corpora = new LinkedHashMap<String,List<byte[]>>();
+        corpora.put("json", json(n, valueSize, random));
+        corpora.put("text", text(n, valueSize, random));
+        corpora.put("random", random(n, valueSize, random));
+        corpora.put("similar", similar(n, valueSize, random));
+
+        System.out.println(String.format("%-8s %-18s %10s %10s %7s %12s %12s %12s %12s", "values", "message", "plain B", "deflated B",
+                "ratio", "plain enc ns", "defl enc ns", "plain dec ns", "defl dec ns"));
+        for (Map.Entry<String,List<byte[]>> c : corpora.entrySet())
+        {
+            List<StorageEntry> entries = entries(agent, c.getValue());
+            HashMap<String,Integer> counters = new HashMap<String,Integer>();
+            counters.put("Likir", Integer.valueOf(entries.size()));
+            Map<String,DHTMessage> messages = new LinkedHashMap<String,DHTMessage>();
+            messages.put("StoreRequest", rpcMessage(agent, sender, new StoreRequestImpl(random.nextLong(),
+                    entries.toArray(new StorageEntry[entries.size()]), true)));
+            messages.put("FindValueResponse", rpcMessage(agent, sender, new FindValueResponseImpl(random.nextLong(),
+                    contacts(4), entries, counters)));
+
+            for (Map.Entry<String,DHTMessage> e : messages.entrySet())
+            {
+                DHTMessage message = e.getValue();
+                MessageCodec.setCompressionThreshold(-1);
+                byte[] plain = MessageCodec.encodeBinary(message);
+                measure(message, WARMUP);
+                long[] plainTimes = measure(message, iterations);
+                MessageCodec.setCompressionThreshold(threshold);
+                byte[] deflated = MessageCodec.encodeBinary(message);
+                check(message, plain, deflated);
+                measure(message, WARMUP);
+                long[] deflatedTimes = measure(message, iterations);
+                System.out.println(String.format("%-8s %-18s %10d %10d %7.2f %12d %12d %12d %12d", c.getKey(), e.getKey(),
+                        plain.length, deflated.length, (double)plain.length / deflated.length,
+                        plainTimes[0], deflatedTimes[0], plainTimes[1], deflatedTimes[1]));
+            }
+        }
+    }
+
+    //returns the average encoding and decoding time, in ns
+    private static long[] measure(DHTMessage message, int iterations) throws Exception
+    {
+        long sink = 0;
+        byte[] data = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            data = MessageCodec.encodeBinary(message);
+            sink += data.length;
+        }
+        long encode = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            sink += MessageCodec.decode(ByteBuffer.wrap(data)).getSid();
+        }
+        long decode = (System.nanoTime() - start) / iterations;
+        if (sink == 42)
+            System.out.print("");
+        return new long[] {encode, decode};
+    }
+
+    //the compressed message must decode to the same RPC, with the same hash
+    private static void check(DHTMessage message, byte[] plain, byte[] deflated) throws Exception
+    {
+        RPC expected = ((RPCMessage)message).getRPC();
+        RPC fromDeflated = ((RPCMessage)MessageCodec.decode(ByteBuffer.wrap(deflated))).getRPC();
+        RPC fromPlain = ((RPCMessage)MessageCodec.decode(ByteBuffer.wrap(plain))).getRPC();
+        if (!Arrays.equals(MessageCodec.encodeRPC(expected), MessageCodec.encodeRPC(fromDeflated))
+                || !Arrays.equals(MessageCodec.encodeRPC(expected), MessageCodec.encodeRPC(fromPlain)))
+            System.out.println("WARNING: " + message.getMsgOpCode() + " doesn't survive the round trip");
+    }
+
+    private static RPCMessageImpl rpcMessage(SecurityAgent agent, NodeId sender, RPC rpc) throws Exception
+    {
+        AuthNodeId authNodeId = new AuthNodeId(sender, agent.getPublicKey(), "BenchUser", System.currentTimeMillis() + 3600000);
+        authNodeId.setSignature(agent.sign(authNodeId.getContent()));
+        Authenticator auth = new Authenticator(NodeId.createRandom(), new Nonce(sender, true).getNonce(),
+                agent.hash(MessageCodec.encodeRPC(rpc)));
+        auth.setSignature(agent.sign(auth.getContent()));
+        return new RPCMessageImpl(authNodeId, auth, rpc);
+    }
+
+    private static Collection<Contact> contacts(int n)
+    {
+        List<Contact> contacts = new ArrayList<Contact>();
+        for (int i = 0; i < n; i++)
+            contacts.add(new ContactImpl(NodeId.createRandom(), new InetSocketAddress("127.0.0.1", 8000 + i)));
+        return contacts;
+    }
+
+    private static List<StorageEntry> entries(SecurityAgent agent, List<byte[]> values) throws Exception
+    {
+        List<StorageEntry> entries = new ArrayList<StorageEntry>();
+        for (byte[] value : values)
+        {
+            Credentials credentials = new Credentials("BenchUser", agent.getPublicKey(), System.currentTimeMillis(), 3600000, agent.hash(value));
+            credentials.setSignature(agent.sign(credentials.getContent()));
+            entries.add(new StorageEntry(NodeId.createRandom(), new ContentImpl(value, "Likir"), credentials));
+        }
+        return entries;
+    }
+
+    private static List<byte[]> json(int n, int size, Random random)
+    {
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < n; i++)
+        {
+            StringBuilder sb = new StringBuilder("[");
+            while (sb.length() < size)
+                sb.append("{\"id\":").append(random.nextInt(100000)).append(",\"user\":\"user").append(random.nextInt(1000))
+                        .append("\",\"time\":").append(System.currentTimeMillis() - random.nextInt(1000000))
+                        .append(",\"tags\":[\"").append(WORDS[random.nextInt(WORDS.length)]).append("\"]},");
+            values.add(sb.substring(0, size).getBytes());
+        }
+        return values;
+    }
+
+    private static List<byte[]> text(int n, int size, Random random)
+    {
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < n; i++)
+        {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < size)
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ". " : " ");
+            values.add(sb.substring(0, size).getBytes());
+        }
+        return values;
+    }
+
+    private static List<byte[]> random(int n, int size, Random random)
+    {
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < n; i++)
+        {
+            byte[] value = new byte[size];
+            random.nextBytes(value);
+            values.add(value);
+        }
+        return values;
+    }
+
+    //versions of the same random value, each one differing in a few bytes
+    private static List<byte[]> similar(int n, int size, Random random)
+    {
+        byte[] base = new byte[size];
+        random.nextBytes(base);
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < n; i++)
+        {
+            byte[] value = base.clone();
+            for (int j = 0; j < 4; j++)
+                value[random.nextInt(size)] = (byte)random.nextInt();
+            values.add(value);
+        }
+        return values;
+    }
+}
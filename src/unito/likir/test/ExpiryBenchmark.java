@@ -0,0 +1,89 @@
+package unito.likir.test;
+
+import java.util.Random;
+import unito.likir.NodeId;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ConcurrentStorage;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.Storage;
+import unito.likir.storage.StorageEntry;
+import unito.likir.storage.StorageImpl;
+
+/**
+ * Compares the removal of the expired entries by a walk of all the stored values,
+ * as the storage cleaner did, and by the sweep of the expiry index, in batches as
+ * the StorageCleaner does. The storage is filled with the given number of entries,
+ * of which the given number is already expired; the walk costs in proportion to the
+ * stored entries, the sweep to the expired ones. The entries are not signed.
+ * Must be run from a directory containing the Settings folder.
+ *
+ * Usage: ExpiryBenchmark [entries] [expired]
+ */
+public class ExpiryBenchmark
+{
+    private static final int BATCH = 256;
+
+    public static void main(String... args) throws Exception
+    {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 500000; //entries stored
+        int expired = args.length > 1 ? Integer.parseInt(args[1]) : 1000; //of which expired
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        System.out.println("Entries: " + entries + " - expired: " + expired);
+        System.out.println(String.format("%-18s %12s %12s %10s", "storage", "walk ms", "sweep ms", "removed"));
+        for (int pass = 0; pass < 2; pass++) //the first pass warms up
+        {
+            Storage[] storages = {new StorageImpl(), new ConcurrentStorage()};
+            for (Storage storage : storages)
+            {
+                fill(storage, agent, entries, expired);
+                long start = System.nanoTime();
+                int walked = 0;
+                synchronized (storage)
+                {
+                    long now = System.currentTimeMillis();
+                    for (StorageEntry entry : storage.values())
+                    {
+                        if (now > entry.getExpireTime() && storage.remove(entry))
+                            walked++;
+                    }
+                }
+                long walk = System.nanoTime() - start;
+
+                fill(storage, agent, entries, expired);
+                start = System.nanoTime();
+                int swept = 0;
+                int removed;
+                do
+                {
+                    removed = storage.removeExpired(System.currentTimeMillis(), BATCH);
+                    swept += removed;
+                }
+                while (removed == BATCH);
+                long sweep = System.nanoTime() - start;
+                if (walked != swept)
+                    System.out.println("WARNING: " + walked + " entries removed by the walk, " + swept + " by the sweep");
+                if (pass == 1)
+                    System.out.println(String.format("%-18s %12.2f %12.2f %10d", storage.getClass().getSimpleName(),
+                            walk / 1000000.0, sweep / 1000000.0, swept));
+            }
+        }
+    }
+
+    private static void fill(Storage storage, SecurityAgent agent, int entries, int expired)
+    {
+        storage.clear();
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++)
+        {
+            byte[] value = new byte[16];
+            random.nextBytes(value);
+            long time = i < expired ? now - 7200000 - i : now + i; //the first ones expired an hour ago
+            Credentials credentials = new Credentials("owner" + (i % 4), agent.getPublicKey(), time, 3600000, null);
+            storage.store(new StorageEntry(NodeId.createRandom(), new ContentImpl(value, "Likir"), credentials));
+        }
+    }
+}
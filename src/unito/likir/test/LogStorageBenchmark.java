@@ -0,0 +1,119 @@
+package unito.likir.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import unito.likir.NodeId;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ConcurrentStorage;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.LogStorage;
+import unito.likir.storage.Storage;
+import unito.likir.storage.StorageEntry;
+
+/**
+ * Measures the LogStorage: the cost of the stores compared to a ConcurrentStorage,
+ * the recovery of the entries after a restart, the compaction of the log after half
+ * of the entries are removed and the recovery of a log whose last record is
+ * truncated. The entries found after every restart are checked. The entries are not
+ * signed. Must be run from a directory containing the Settings folder; the log is
+ * written in a bench subdirectory of logStoragePath, which is deleted.
+ *
+ * Usage: LogStorageBenchmark [entries] [valueSize]
+ */
+public class LogStorageBenchmark
+{
+    public static void main(String... args) throws Exception
+    {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200000; //entries stored
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 100; //bytes per value
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        File directory = new File(unito.likir.settings.PropFinder.get(unito.likir.settings.Settings.LOG_STORAGE_PATH), "bench");
+        delete(directory);
+        Random random = new Random(42);
+        List<StorageEntry> stored = new ArrayList<StorageEntry>();
+        for (int i = 0; i < entries; i++)
+        {
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            Credentials credentials = new Credentials("owner" + (i % 4), agent.getPublicKey(), System.currentTimeMillis(), 3600000, null);
+            stored.add(new StorageEntry(NodeId.createRandom(), new ContentImpl(value, "Likir"), credentials));
+        }
+        System.out.println("Entries: " + entries + " - value size: " + valueSize);
+
+        long concurrent = fill(new ConcurrentStorage(), stored);
+        LogStorage log = new LogStorage(directory);
+        long logged = fill(log, stored);
+        System.out.println(String.format("store: concurrent %d op/s, log %d op/s", concurrent, logged));
+        for (int i = 0; i < entries; i += 2)
+            log.remove(stored.get(i));
+        log.close();
+
+        log = reopen(directory, stored, "restart");
+        long before = log.getLogSize();
+        long start = System.nanoTime();
+        log.compact();
+        System.out.println(String.format("compaction: %.1f ms, log %d -> %d bytes", (System.nanoTime() - start) / 1000000.0, before,
+                log.getLogSize()));
+        log.close();
+        log = reopen(directory, stored, "compacted");
+        log.store(stored.get(0));
+        log.close();
+
+        //an interrupted write: the last record is truncated
+        File[] segments = directory.listFiles();
+        Arrays.sort(segments);
+        File last = segments[segments.length - 1]; //the LOCK file is the first one
+        FileOutputStream out = new FileOutputStream(last, true);
+        out.write(new byte[] {0, 0, 1, 0, 1, 2, 3});
+        out.close();
+        log = reopen(directory, stored, "truncated");
+        System.out.println(log);
+        log.close();
+        delete(directory);
+    }
+
+    //returns the stores per second
+    private static long fill(Storage storage, List<StorageEntry> entries)
+    {
+        long start = System.nanoTime();
+        for (StorageEntry entry : entries)
+            storage.store(entry);
+        return entries.size() * 1000000000L / Math.max(System.nanoTime() - start, 1);
+    }
+
+    //the odd entries are expected (and the first one after the compacted restart)
+    private static LogStorage reopen(File directory, List<StorageEntry> entries, String name) throws Exception
+    {
+        LogStorage log = new LogStorage(directory);
+        int missing = 0;
+        for (int i = 0; i < entries.size(); i++)
+        {
+            StorageEntry e = entries.get(i);
+            boolean found = log.get(e.getKey(), "Likir", e.getOwnerId(), false) != null
+                    && Arrays.equals(log.get(e.getKey(), "Likir", e.getOwnerId(), false).iterator().next().getContent().getValue(),
+                            e.getContent().getValue());
+            boolean expected = i % 2 == 1 || (i == 0 && name.equals("truncated"));
+            if (found != expected)
+                missing++;
+        }
+        System.out.println(String.format("%s: recovered %d entries in %d ms, log %d bytes%s", name, log.getRecoveredCount(),
+                log.getRecoveryTime(), log.getLogSize(), missing == 0 ? "" : " - WARNING: " + missing + " wrong entries"));
+        return log;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,110 @@
+package unito.likir.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import unito.likir.EnvironmentImpl;
+import unito.likir.Node;
+import unito.likir.NodeId;
+import unito.likir.io.ObservableFuture;
+import unito.likir.io.ThreadMode;
+import unito.likir.routing.Contact;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+
+/**
+ * Compares platform threads and virtual threads on the same lookup workload:
+ * a small local network is built for each thread mode, then every node starts
+ * its share of lookups for random keys at the same time and the benchmark waits
+ * for all of them. As for ApplicationTest, the CA must be running.
+ *
+ * Usage: LookupBenchmark [nodes] [lookups] [initialPort]
+ */
+public class LookupBenchmark
+{
+
+    public static void main(String... args)
+    {
+        int nodeNumber = args.length > 0 ? Integer.parseInt(args[0]) : 20; //number of nodes in the network
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000; //concurrent lookups per run
+        int initialPort = args.length > 2 ? Integer.parseInt(args[2]) : 8000; //initial UDP port
+
+        if (!ThreadMode.isVirtualSupported())
+        {
+            System.out.println("Virtual threads are not supported by this JVM: both runs use platform threads");
+        }
+
+        int port = initialPort;
+        for (ThreadMode mode : ThreadMode.values())
+        {
+            run(mode, nodeNumber, lookups, port);
+            port += nodeNumber + 10;
+        }
+    }
+
+    private static void run(ThreadMode mode, int nodeNumber, int lookups, int initialPort)
+    {
+        //the pools of the nodes are built reading this setting
+        PropFinder.set(Settings.THREAD_MODE, mode.toString());
+
+        EnvironmentImpl env = new EnvironmentImpl();
+        //the CA remembers the key of every userId: a new prefix is used at each execution
+        env.registerNodes(nodeNumber, "Bench" + mode + Long.toString(System.currentTimeMillis(), 36) + "U", initialPort);
+        env.startupAll();
+        env.bootstrapAll();
+        List<Node> nodes = env.getAllNodes();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        List<ObservableFuture<Collection<Contact>>> futures = new ArrayList<ObservableFuture<Collection<Contact>>>(lookups);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+        {
+            Node n = nodes.get(i % nodes.size());
+            futures.add(n.lookup(NodeId.createRandom()));
+        }
+
+        int completed = 0;
+        int failed = 0;
+        for (ObservableFuture<Collection<Contact>> future : futures)
+        {
+            try
+            {
+                Collection<Contact> result = future.get();
+                if (result != null && !result.isEmpty())
+                {
+                    completed++;
+                }
+                else
+                {
+                    failed++;
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                failed++;
+            }
+            catch (ExecutionException ee)
+            {
+                failed++;
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("******************* " + mode + " threads (" + nodes.get(0).getExecutor().getThreadMode() + ") *******************");
+        System.out.println("Nodes: " + nodes.size() + " - lookups: " + lookups + " - completed: " + completed + " - failed: " + failed);
+        System.out.println("Time: " + elapsed + " ms - throughput: " + (lookups * 1000L / Math.max(elapsed, 1)) + " lookups/s");
+        System.out.println("Peak platform threads: " + threads.getPeakThreadCount());
+        System.out.println(nodes.get(0).getExecutorStatus());
+        System.out.println(nodes.get(0).getSecurityAgent().getAuthNodeIdCache());
+        if (nodes.get(0).getSecurityAgent().getSessionKeyManager() != null)
+            System.out.println(nodes.get(0).getSecurityAgent().getSessionKeyManager());
+
+        env.shutDownAll(false);
+        PropFinder.set(Settings.THREAD_MODE, null);
+    }
+}
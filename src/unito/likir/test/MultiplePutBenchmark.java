@@ -0,0 +1,107 @@
+package unito.likir.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import unito.likir.storage.MultiplePutContent;
+
+/**
+ * Compares the legacy Java serialization of a MultiplePutContent with its binary
+ * batch format, on batches of small unsigned contents (counters and short items).
+ * For each batch size the encoded length, the encoding time, the time to rebuild
+ * the arrays with createFromBytes() and the time to walk the batch with a Cursor,
+ * as the server does, are printed.
+ *
+ * Usage: MultiplePutBenchmark [iterations] [valueSize]
+ */
+public class MultiplePutBenchmark
+{
+    private static final int WARMUP = 2000;
+    private static final String[] TYPES = {"counter", "follower", "like"};
+
+    public static void main(String... args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000; //measured encodings per batch
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 16; //size of the contents
+        Random random = new Random(42);
+
+        System.out.println(String.format("%8s %10s %10s %12s %12s %12s %12s %12s", "contents", "java B", "binary B",
+                "java enc ns", "binary enc ns", "java dec ns", "binary dec ns", "cursor ns"));
+        for (int n : new int[] {1, 10, 100, 1000})
+        {
+            MultiplePutContent mpc = new MultiplePutContent(n);
+            for (int i = 0; i < n; i++)
+            {
+                byte[] value = new byte[valueSize];
+                random.nextBytes(value);
+                mpc.putContent(value, TYPES[i % TYPES.length], 3600000 + random.nextInt(1000));
+            }
+            byte[] java = javaBytes(mpc);
+            byte[] binary = mpc.toBytes();
+            check(mpc, java);
+            check(mpc, binary);
+
+            int rounds = Math.max(10, iterations / n);
+            long[] times = new long[5];
+            for (int pass = 0; pass < 2; pass++)
+            {
+                int count = pass == 0 ? Math.max(10, WARMUP / n) : rounds;
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    sink += javaBytes(mpc).length;
+                times[0] = (System.nanoTime() - start) / count;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    sink += mpc.toBytes().length;
+                times[1] = (System.nanoTime() - start) / count;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    sink += MultiplePutContent.createFromBytes(java).getContent().length;
+                times[2] = (System.nanoTime() - start) / count;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    sink += MultiplePutContent.createFromBytes(binary).getContent().length;
+                times[3] = (System.nanoTime() - start) / count;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                {
+                    MultiplePutContent.Cursor cursor = MultiplePutContent.cursor(binary);
+                    while (cursor.next())
+                        sink += cursor.getValue().length + cursor.getType().length() + cursor.getTtl();
+                }
+                times[4] = (System.nanoTime() - start) / count;
+                if (sink == 42)
+                    System.out.print("");
+            }
+            System.out.println(String.format("%8d %10d %10d %12d %12d %12d %12d %12d", n, java.length, binary.length,
+                    times[0], times[1], times[2], times[3], times[4]));
+        }
+    }
+
+    private static byte[] javaBytes(MultiplePutContent mpc) throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(mpc);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    //both encodings must give back the same contents
+    private static void check(MultiplePutContent mpc, byte[] bytes)
+    {
+        MultiplePutContent.Cursor cursor = MultiplePutContent.cursor(bytes);
+        int i = 0;
+        while (cursor.next())
+        {
+            if (!Arrays.equals(mpc.getContent()[i], cursor.getValue()) || !mpc.getType()[i].equals(cursor.getType())
+                    || mpc.getTtl()[i] != cursor.getTtl())
+                System.out.println("WARNING: content " + i + " doesn't survive the round trip");
+            i++;
+        }
+        if (i != mpc.getContent().length)
+            System.out.println("WARNING: " + i + " contents read out of " + mpc.getContent().length);
+    }
+}
@@ -0,0 +1,113 @@
+package unito.likir.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import unito.likir.EnvironmentImpl;
+import unito.likir.Node;
+import unito.likir.NodeId;
+import unito.likir.io.InMemoryNetwork;
+import unito.likir.routing.Contact;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+
+/**
+ * Measures lookup and put throughput on a simulated network: the nodes run in
+ * this JVM and exchange their datagrams through the in-memory transport, with
+ * the given latency and loss, so no UDP port is used. As for ApplicationTest,
+ * the CA must be running.
+ *
+ * Usage: NetworkSimulation [nodes] [lookups] [puts] [latency] [loss]
+ */
+public class NetworkSimulation
+{
+
+    public static void main(String... args)
+    {
+        int nodeNumber = args.length > 0 ? Integer.parseInt(args[0]) : 100; //number of simulated nodes
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000; //concurrent lookups
+        int puts = args.length > 2 ? Integer.parseInt(args[2]) : 1000; //concurrent puts
+        String latency = args.length > 3 ? args[3] : "5"; //one way latency (in milliseconds)
+        String loss = args.length > 4 ? args[4] : "0"; //probability that a datagram is lost
+
+        PropFinder.set(Settings.TRANSPORT, "memory");
+        PropFinder.set(Settings.MEMORY_LATENCY, latency);
+        PropFinder.set(Settings.MEMORY_LOSS, loss);
+
+        EnvironmentImpl env = new EnvironmentImpl();
+        //the CA remembers the key of every userId: a new prefix is used at each execution
+        env.registerNodes(nodeNumber, "Sim" + Long.toString(System.currentTimeMillis(), 36) + "U", 20000);
+        env.startupAll();
+        env.bootstrapAll();
+        List<Node> nodes = env.getAllNodes();
+
+        //lookups
+        List<Future<Collection<Contact>>> lookupFutures = new ArrayList<Future<Collection<Contact>>>(lookups);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+        {
+            lookupFutures.add(nodes.get(i % nodes.size()).lookup(NodeId.createRandom()));
+        }
+        int completed = 0;
+        for (Future<Collection<Contact>> future : lookupFutures)
+        {
+            Collection<Contact> result = waitFor(future);
+            if (result != null && !result.isEmpty())
+            {
+                completed++;
+            }
+        }
+        report("Lookups", lookups, completed, System.nanoTime() - start);
+
+        //puts
+        List<Future<Integer>> putFutures = new ArrayList<Future<Integer>>(puts);
+        start = System.nanoTime();
+        for (int i = 0; i < puts; i++)
+        {
+            byte[] content = ("content " + i).getBytes();
+            putFutures.add(nodes.get(i % nodes.size()).put(NodeId.createRandom(), content, "sim", 600000));
+        }
+        completed = 0;
+        for (Future<Integer> future : putFutures)
+        {
+            Integer stored = waitFor(future);
+            if (stored != null && stored > 0)
+            {
+                completed++;
+            }
+        }
+        report("Puts", puts, completed, System.nanoTime() - start);
+
+        System.out.println(InMemoryNetwork.getDefault());
+        System.out.println(nodes.get(0).getExecutorStatus());
+
+        env.shutDownAll(false);
+        System.exit(0);
+    }
+
+    private static <T> T waitFor(Future<T> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            return null;
+        }
+        catch (ExecutionException ee)
+        {
+            return null;
+        }
+    }
+
+    private static void report(String operation, int total, int completed, long nanos)
+    {
+        long elapsed = Math.max(nanos / 1000000, 1);
+        System.out.println("******************* " + operation + " *******************");
+        System.out.println("Requested: " + total + " - completed: " + completed + " - failed: " + (total - completed));
+        System.out.println("Time: " + elapsed + " ms - throughput: " + (total * 1000L / elapsed) + " ops/s");
+    }
+}
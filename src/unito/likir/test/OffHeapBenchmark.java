@@ -0,0 +1,91 @@
+package unito.likir.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import unito.likir.NodeId;
+import unito.likir.messages.dht.MessageCodec;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.settings.PropFinder;
+import unito.likir.settings.Settings;
+import unito.likir.storage.ConcurrentStorage;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.StorageEntry;
+
+/**
+ * Compares a ConcurrentStorage keeping the values on the heap with one keeping them
+ * in a ValueArena: the heap used by the stored entries, the duration of a full
+ * garbage collection, and the time spent to store the entries and to answer the
+ * FIND_VALUEs of random keys (getLimited() and the encoding of the entries, which
+ * reads the values in place). The entries are not signed.
+ * The off-heap run uses valueArenaSize, or 1 GB if it is 0. Must be run from a directory
+ * containing the Settings folder; the JVM needs a heap larger than the values
+ * (e.g. -Xmx1g for the defaults), which also bounds the direct memory.
+ *
+ * Usage: OffHeapBenchmark [entries] [valueSize]
+ */
+public class OffHeapBenchmark
+{
+    public static void main(String... args) throws Exception
+    {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000; //entries stored
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 2000; //bytes per value
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        String arenaSize = PropFinder.get(Settings.VALUE_ARENA_SIZE);
+        if (Long.parseLong(arenaSize) <= 0)
+            arenaSize = "1073741824";
+        System.out.println("Entries: " + entries + " - value size: " + valueSize);
+        System.out.println(String.format("%-8s %10s %10s %10s %10s", "values", "heap MB", "full GC ms", "store ms", "encode ms"));
+        for (String mode : new String[] {"heap", "off-heap"})
+        {
+            PropFinder.set(Settings.VALUE_ARENA_SIZE, mode.equals("heap") ? "0" : arenaSize);
+            System.gc();
+            long base = usedHeap();
+            ConcurrentStorage storage = new ConcurrentStorage();
+            Random random = new Random(42);
+            List<NodeId> keys = new ArrayList<NodeId>();
+            long start = System.nanoTime();
+            for (int i = 0; i < entries; i++)
+            {
+                byte[] value = new byte[valueSize];
+                random.nextBytes(value);
+                Credentials credentials = new Credentials("owner" + (i % 4), agent.getPublicKey(), System.currentTimeMillis(), 3600000, null);
+                NodeId key = NodeId.createRandom();
+                keys.add(key);
+                storage.store(new StorageEntry(key, new ContentImpl(value, "Likir"), credentials));
+            }
+            long store = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long encoded = 0;
+            for (int i = 0; i < entries; i++)
+            {
+                for (StorageEntry entry : storage.getLimited(keys.get(random.nextInt(entries)), "Likir", null, false))
+                    encoded += MessageCodec.encodeEntry(entry).length;
+            }
+            long encode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            System.gc();
+            long gc = System.nanoTime() - start;
+            long heap = usedHeap() - base;
+            System.out.println(String.format("%-8s %10.1f %10.1f %10.1f %10.1f", mode, heap / 1048576.0, gc / 1000000.0,
+                    store / 1000000.0, encode / 1000000.0));
+            if (storage.getArena() != null)
+                System.out.println(storage.getArena());
+            if (encoded == 0)
+                System.out.println("WARNING: nothing encoded");
+            storage.clear();
+        }
+        PropFinder.set(Settings.VALUE_ARENA_SIZE, null);
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,103 @@
+package unito.likir.test;
+
+import unito.likir.NodeId;
+import unito.likir.messages.dht.Nonce;
+import unito.likir.security.AuthNodeId;
+import unito.likir.security.Authenticator;
+import unito.likir.security.NodeSecurityAgent;
+import unito.likir.security.SecurityAgent;
+import unito.likir.security.SessionKeyManager;
+
+/**
+ * Compares the cost of authenticating an RPC with a signature and with the session
+ * key shared by two nodes: the time spent by the sender to build the Authenticator
+ * and by the addressee to verify it, the length of the signature and of the MAC, and
+ * the one-time cost of the key exchange (the verification of the KeyShare and the
+ * derivation of the session key). The agents use keys of the configured signature
+ * suite; no CA is needed.
+ *
+ * Usage: SessionKeyBenchmark [iterations]
+ */
+public class SessionKeyBenchmark
+{
+    private static final int WARMUP = 500;
+
+    public static void main(String... args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000; //measured Authenticators per mode
+
+        SecurityAgent ca = new SecurityAgent();
+        ca.initKeyPair();
+        NodeSecurityAgent alice = agent(ca, "Alice");
+        NodeSecurityAgent bob = agent(ca, "Bob");
+        SessionKeyManager aliceKeys = new SessionKeyManager(alice, 3600000, 1024);
+        SessionKeyManager bobKeys = new SessionKeyManager(bob, 3600000, 1024);
+        NodeId bobId = bob.getAuthNodeId().getContent().getNodeId();
+        byte[] rpcHash = alice.hash(new byte[20]);
+
+        //Bob learns the share of Alice from a signed message, and Alice that of Bob from his answer
+        long start = System.nanoTime();
+        Authenticator first = new Authenticator(bobId, new Nonce(bobId, true).getNonce(), rpcHash);
+        aliceKeys.authenticate(first);
+        bobKeys.learn(first.getKeyShare(), alice.getAuthNodeId());
+        Authenticator answer = new Authenticator(alice.getAuthNodeId().getContent().getNodeId(), first.getContent().getNonce(), rpcHash);
+        bobKeys.authenticate(answer);
+        aliceKeys.learn(answer.getKeyShare(), bob.getAuthNodeId());
+        long exchange = System.nanoTime() - start;
+
+        long[] signed = new long[2];
+        long[] session = new long[2];
+        int signatureLength = 0;
+        int macLength = 0;
+        for (int pass = 0; pass < 2; pass++)
+        {
+            int count = pass == 0 ? WARMUP : iterations;
+            boolean valid = true;
+            Authenticator auth = null;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+            {
+                auth = new Authenticator(bobId, new Nonce(bobId, true).getNonce(), rpcHash);
+                auth.setSignature(alice.sign(auth.getContent()));
+            }
+            signed[0] = (System.nanoTime() - start) / count;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                valid &= bob.verifySignature(auth.getContent(), auth.getSignature(), alice.getPublicKey());
+            signed[1] = (System.nanoTime() - start) / count;
+            signatureLength = auth.getSignature().length;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+            {
+                auth = new Authenticator(bobId, new Nonce(bobId, true).getNonce(), rpcHash);
+                valid &= aliceKeys.authenticate(auth);
+            }
+            session[0] = (System.nanoTime() - start) / count;
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+                valid &= bobKeys.verify(auth, alice.getAuthNodeId());
+            session[1] = (System.nanoTime() - start) / count;
+            macLength = auth.getMac().length;
+            if (!valid)
+                System.out.println("WARNING: invalid Authenticator");
+        }
+
+        System.out.println("Key exchange (both nodes): " + exchange / 1000 + " us");
+        System.out.println(String.format("%-10s %10s %10s %8s", "mode", "build us", "verify us", "auth B"));
+        System.out.println(String.format("%-10s %10.1f %10.1f %8d", "signature", signed[0] / 1000.0, signed[1] / 1000.0, signatureLength));
+        System.out.println(String.format("%-10s %10.1f %10.1f %8d", "session", session[0] / 1000.0, session[1] / 1000.0, macLength));
+        System.out.println("Alice: " + aliceKeys);
+        System.out.println("Bob: " + bobKeys);
+    }
+
+    private static NodeSecurityAgent agent(SecurityAgent ca, String user) throws Exception
+    {
+        NodeSecurityAgent agent = new NodeSecurityAgent(null);
+        agent.initKeyPair();
+        AuthNodeId authNodeId = new AuthNodeId(NodeId.createRandom(), agent.getPublicKey(), user, System.currentTimeMillis() + 3600000);
+        authNodeId.setSignature(ca.sign(authNodeId.getContent()));
+        agent.setAuthNodeId(authNodeId);
+        return agent;
+    }
+}
@@ -0,0 +1,104 @@
+package unito.likir.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import unito.likir.NodeId;
+import unito.likir.messages.dht.MessageCodec;
+import unito.likir.messages.dht.Nonce;
+import unito.likir.messages.dht.PingRequestImpl;
+import unito.likir.messages.dht.RPC;
+import unito.likir.messages.dht.RPCMessageImpl;
+import unito.likir.messages.dht.StoreRequestImpl;
+import unito.likir.security.AuthNodeId;
+import unito.likir.security.Authenticator;
+import unito.likir.security.Credentials;
+import unito.likir.security.CryptoSuite;
+import unito.likir.security.CryptoSuites;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.StorageEntry;
+
+/**
+ * Compares the signature suites: for each suite the time spent to generate a key
+ * pair, to sign an Authenticator and to verify it, the length of the signatures and
+ * of the encoded public keys, and the binary length of a PING request and of a
+ * STORE request of small signed entries. The agents, the CA included, use keys of
+ * the measured suite; no CA is needed.
+ *
+ * Usage: SignatureBenchmark [iterations]
+ */
+public class SignatureBenchmark
+{
+    private static final int WARMUP = 500;
+
+    public static void main(String... args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000; //measured signatures per suite
+
+        System.out.println(String.format("%-8s %10s %10s %10s %8s %8s %10s %10s", "suite", "keygen us", "sign us",
+                "verify us", "sig B", "key B", "ping B", "store B"));
+        for (CryptoSuite suite : new CryptoSuite[] {CryptoSuites.RSA, CryptoSuites.ED25519})
+        {
+            CryptoSuites.setConfigured(suite);
+            SecurityAgent ca = new SecurityAgent();
+            ca.initKeyPair();
+            SecurityAgent agent = new SecurityAgent();
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++)
+                agent.initKeyPair();
+            long keygen = (System.nanoTime() - start) / 10;
+
+            NodeId sender = NodeId.createRandom();
+            AuthNodeId authNodeId = new AuthNodeId(sender, agent.getPublicKey(), "BenchUser", System.currentTimeMillis() + 3600000);
+            authNodeId.setSignature(ca.sign(authNodeId.getContent()));
+            Authenticator auth = new Authenticator(NodeId.createRandom(), new Nonce(sender, true).getNonce(), agent.hash(new byte[20]));
+            auth.setSignature(agent.sign(auth.getContent()));
+            if (!agent.verifySignature(authNodeId.getContent(), authNodeId.getSignature(), ca.getPublicKey()))
+                System.out.println("WARNING: invalid AuthNodeId signature");
+
+            long[] times = new long[2];
+            for (int pass = 0; pass < 2; pass++)
+            {
+                int count = pass == 0 ? WARMUP : iterations;
+                boolean valid = true;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    auth.setSignature(agent.sign(auth.getContent()));
+                times[0] = (System.nanoTime() - start) / count;
+                start = System.nanoTime();
+                for (int i = 0; i < count; i++)
+                    valid &= agent.verifySignature(auth.getContent(), auth.getSignature(), agent.getPublicKey());
+                times[1] = (System.nanoTime() - start) / count;
+                if (!valid)
+                    System.out.println("WARNING: invalid Authenticator signature");
+            }
+
+            Random random = new Random(42);
+            int ping = MessageCodec.encodeBinary(rpcMessage(agent, authNodeId, sender, new PingRequestImpl(random.nextLong()))).length;
+            List<StorageEntry> entries = new ArrayList<StorageEntry>();
+            for (int i = 0; i < 10; i++)
+            {
+                byte[] value = new byte[32];
+                random.nextBytes(value);
+                Credentials credentials = new Credentials("BenchUser", agent.getPublicKey(), System.currentTimeMillis(), 3600000, agent.hash(value));
+                credentials.setSignature(agent.sign(credentials.getContent()));
+                entries.add(new StorageEntry(NodeId.createRandom(), new ContentImpl(value, "Likir"), credentials));
+            }
+            int store = MessageCodec.encodeBinary(rpcMessage(agent, authNodeId, sender, new StoreRequestImpl(random.nextLong(),
+                    entries.toArray(new StorageEntry[entries.size()]), true))).length;
+
+            System.out.println(String.format("%-8s %10d %10d %10d %8d %8d %10d %10d", suite.getName(), keygen / 1000,
+                    times[0] / 1000, times[1] / 1000, auth.getSignature().length,
+                    suite.encodePublicKey(agent.getPublicKey()).length, ping, store));
+        }
+    }
+
+    private static RPCMessageImpl rpcMessage(SecurityAgent agent, AuthNodeId authNodeId, NodeId sender, RPC rpc) throws Exception
+    {
+        Authenticator auth = new Authenticator(NodeId.createRandom(), new Nonce(sender, true).getNonce(),
+                agent.hash(MessageCodec.encodeRPC(rpc)));
+        auth.setSignature(agent.sign(auth.getContent()));
+        return new RPCMessageImpl(authNodeId, auth, rpc);
+    }
+}
@@ -0,0 +1,154 @@
+package unito.likir.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import unito.likir.NodeId;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ConcurrentStorage;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.Storage;
+import unito.likir.storage.StorageEntry;
+import unito.likir.storage.StorageImpl;
+
+/**
+ * Measures the throughput of a Storage shared by an increasing number of threads
+ * running a mix of stores and gets, as the server sessions of a node do. The
+ * storage is filled with the given number of entries (four per key, by two owners
+ * and of two types), then every thread repeatedly reads the entries of a random key
+ * (by type, by owner or all of them) or stores a new entry; a scan of all the values,
+ * as the storage cleaner does, runs during the measure. The synchronized StorageImpl
+ * and the ConcurrentStorage are compared. The entries are not signed.
+ * Must be run from a directory containing the Settings folder; the JVM may need a
+ * larger heap for a million entries (-Xmx2g).
+ *
+ * Usage: StorageBenchmark [entries] [seconds] [maxThreads] [storePercent]
+ */
+public class StorageBenchmark
+{
+    private static final String[] TYPES = {"Likir", "counter"};
+    private static final String[] OWNERS = {"alice", "bob"};
+
+    public static void main(String... args) throws Exception
+    {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000; //entries initially stored
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2; //duration of every run
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+        int storePercent = args.length > 3 ? Integer.parseInt(args[3]) : 20; //share of the operations which are stores
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        NodeId[] keys = new NodeId[Math.max(1, entries / 4)];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = NodeId.createRandom();
+
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors() + " - entries: " + entries
+                + " - stores: " + storePercent + "%");
+        System.out.println(String.format("%8s %16s %16s %8s", "threads", "synchronized op/s", "concurrent op/s", "ratio"));
+        Storage[] storages = {new StorageImpl(), new ConcurrentStorage()};
+        for (Storage storage : storages)
+        {
+            Random random = new Random(42);
+            for (int i = 0; i < entries; i++)
+                storage.store(entry(agent, keys[i / 4 % keys.length], i, random));
+            run(storage, agent, keys, 1, seconds, storePercent); //warm up
+        }
+        for (int threads = 1; threads <= maxThreads; threads <<= 1)
+        {
+            long locked = run(storages[0], agent, keys, threads, seconds, storePercent);
+            long concurrent = run(storages[1], agent, keys, threads, seconds, storePercent);
+            System.out.println(String.format("%8d %16d %16d %8.2f", threads, locked, concurrent, (double)concurrent / Math.max(locked, 1)));
+        }
+        System.out.println(storages[1]);
+    }
+
+    private static StorageEntry entry(SecurityAgent agent, NodeId key, long time, Random random)
+    {
+        byte[] value = new byte[16];
+        random.nextBytes(value);
+        Credentials credentials = new Credentials(OWNERS[(int)(time % 2)], agent.getPublicKey(), time, 3600000, null);
+        return new StorageEntry(key, new ContentImpl(value, TYPES[(int)(time / 2 % 2)]), credentials);
+    }
+
+    //returns the operations per second
+    private static long run(final Storage storage, final SecurityAgent agent, final NodeId[] keys, int threads, double seconds,
+            final int storePercent) throws Exception
+    {
+        final AtomicLong operations = new AtomicLong(0);
+        final AtomicLong time = new AtomicLong(System.currentTimeMillis() << 8); //submission times of the new entries
+        final CountDownLatch start = new CountDownLatch(1);
+        final long duration = (long)(seconds * 1000000000L);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++)
+        {
+            final Random random = new Random(t);
+            Thread worker = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        long end = System.nanoTime() + duration;
+                        long count = 0;
+                        long sink = 0;
+                        while (System.nanoTime() < end)
+                        {
+                            NodeId key = keys[random.nextInt(keys.length)];
+                            int op = random.nextInt(100);
+                            if (op < storePercent)
+                                storage.store(entry(agent, key, time.incrementAndGet(), random));
+                            else
+                            {
+                                Collection<StorageEntry> result;
+                                if (op % 3 == 0)
+                                    result = storage.get(key, TYPES[op & 1], null, false);
+                                else if (op % 3 == 1)
+                                    result = storage.get(key, TYPES[op & 1], OWNERS[(op >> 1) & 1], true);
+                                else
+                                    result = storage.get(key, null, null, false);
+                                sink += result == null ? 0 : result.size();
+                            }
+                            count++;
+                        }
+                        operations.addAndGet(count + (sink & 0));
+                    }
+                    catch (InterruptedException ie)
+                    {
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        Thread scanner = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    start.await();
+                    synchronized (storage) //as the storage cleaner
+                    {
+                        storage.values();
+                    }
+                }
+                catch (InterruptedException ie)
+                {
+                }
+            }
+        };
+        scanner.start();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - begin;
+        scanner.join();
+        return operations.get() * 1000000000L / Math.max(elapsed, 1);
+    }
+}
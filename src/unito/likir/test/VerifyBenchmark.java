@@ -0,0 +1,116 @@
+package unito.likir.test;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import unito.likir.NodeId;
+import unito.likir.security.Credentials;
+import unito.likir.security.SecurityAgent;
+import unito.likir.storage.ContentImpl;
+import unito.likir.storage.StorageEntry;
+
+/**
+ * Measures the throughput of the signature verification of a SecurityAgent shared by
+ * an increasing number of threads, as the agent of a node is shared by its session
+ * managers. Every thread verifies the Credentials of stored entries; the locked run
+ * serializes the verifications on the agent, as the synchronized agent did, to show
+ * how the lock-free agent scales with the available cores.
+ *
+ * Usage: VerifyBenchmark [seconds] [maxThreads]
+ */
+public class VerifyBenchmark
+{
+    public static void main(String... args) throws Exception
+    {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2; //duration of every run
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+
+        SecurityAgent agent = new SecurityAgent();
+        agent.initKeyPair();
+        Random random = new Random(42);
+        List<StorageEntry> entries = new ArrayList<StorageEntry>();
+        for (int i = 0; i < 64; i++)
+        {
+            byte[] value = new byte[256];
+            random.nextBytes(value);
+            Credentials credentials = new Credentials("BenchUser", agent.getPublicKey(), System.currentTimeMillis(), 3600000, agent.hash(value));
+            credentials.setSignature(agent.sign(credentials.getContent()));
+            entries.add(new StorageEntry(NodeId.createRandom(), new ContentImpl(value, "Likir"), credentials));
+        }
+
+        run(agent, entries, 2, seconds, false); //warm up
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        System.out.println(String.format("%8s %16s %16s %8s", "threads", "lock-free ver/s", "locked ver/s", "scaling"));
+        long single = 0;
+        for (int threads = 1; threads <= maxThreads; threads <<= 1)
+        {
+            long free = run(agent, entries, threads, seconds, false);
+            long locked = run(agent, entries, threads, seconds, true);
+            if (threads == 1)
+                single = free;
+            System.out.println(String.format("%8d %16d %16d %8.2f", threads, free, locked, (double)free / Math.max(single, 1)));
+        }
+    }
+
+    //returns the verifications per second
+    private static long run(final SecurityAgent agent, final List<StorageEntry> entries, int threads, double seconds,
+            final boolean locked) throws Exception
+    {
+        final AtomicLong verified = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long duration = (long)(seconds * 1000000000L);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t;
+            Thread worker = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        long end = System.nanoTime() + duration;
+                        long count = 0;
+                        for (int i = offset; System.nanoTime() < end; i++)
+                        {
+                            Credentials c = entries.get(i % entries.size()).getCredentials();
+                            boolean valid;
+                            if (locked)
+                            {
+                                synchronized (agent)
+                                {
+                                    valid = agent.verifySignature(c.getContent(), c.getSignature(), c.getContent().getPublicKey());
+                                }
+                            }
+                            else
+                                valid = agent.verifySignature(c.getContent(), c.getSignature(), c.getContent().getPublicKey());
+                            if (!valid)
+                                System.out.println("WARNING: invalid signature");
+                            count++;
+                        }
+                        verified.addAndGet(count);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                    }
+                    catch (SignatureException se)
+                    {
+                        System.out.println("WARNING: " + se.getMessage());
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - begin;
+        return verified.get() * 1000000000L / Math.max(elapsed, 1);
+    }
+}
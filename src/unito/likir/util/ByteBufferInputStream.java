@@ -0,0 +1,57 @@
+package unito.likir.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading the remaining bytes of a ByteBuffer. The buffer is read
+ * in place (no copy is made), so direct buffers can be decoded without moving
+ * their content to the heap. Reading advances the buffer position.
+ */
+public class ByteBufferInputStream extends InputStream
+{
+	private final ByteBuffer buffer;
+
+	/**
+	 * Create a new stream over the remaining bytes of buffer
+	 * @param buffer the source buffer
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer)
+	{
+		if (buffer == null)
+			throw new NullPointerException("The buffer is null!");
+		this.buffer = buffer;
+	}
+
+	public int read()
+	{
+		if (!buffer.hasRemaining())
+			return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len)
+	{
+		if (len == 0)
+			return 0;
+		if (!buffer.hasRemaining())
+			return -1;
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	public long skip(long n)
+	{
+		if (n <= 0)
+			return 0;
+		int skipped = (int)Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	public int available()
+	{
+		return buffer.remaining();
+	}
+}